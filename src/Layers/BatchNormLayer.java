@@ -0,0 +1,522 @@
+package Layers;
+
+import optimizers.Optimizer;
+import optimizers.SgdOptimizer;
+
+import java.io.Serial;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Batch normalization over the channels of the previous layer's output.
+ *
+ * Each channel is normalized with a mean and variance and then scaled and shifted by a learned
+ * gamma and beta. While training (see {@link #setTraining(boolean)}) the statistics are those of the
+ * current batch. The network trains one image at a time, so the batch is the current sample together
+ * with the samples of the preceding {@code batchSize - 1} training steps, and the gradient flows
+ * through the current sample's share of the batch mean and variance. The earlier samples of the
+ * batch are constants at that point, since their steps are already done. This keeps every channel at
+ * unit scale however the weights before it grow, so the layer before it trains stably at its usual
+ * rate; the layer after it sees larger inputs than without batch norm and may need a smaller one. A frozen layer normalizes with the moving statistics, as in inference.
+ *
+ * Every complete batch is folded into a moving estimate of the mean and variance, and inference uses
+ * that estimate, so it computes a fixed per-channel affine map, which {@link #fold()} merges into a
+ * neighbouring layer so that a served network pays nothing for it.
+ *
+ * The moving statistics are learned state but not trainable parameters, so they are not part of
+ * {@link #copyParametersTo}; they travel through {@link #copyStateTo} and {@link #copyStateFrom}.
+ */
+public class BatchNormLayer extends Layer {
+    @Serial
+    private static final long serialVersionUID = 1L;
+    private static final double EPSILON = 1e-5;  // Added to the variance to keep the division stable
+
+    private int _channels;  // Number of normalized channels
+    private int _rows;  // Number of rows in each channel
+    private int _columns;  // Number of columns in each channel
+    private double _learningRate;  // Learning rate for gamma and beta
+    private int _batchSize;  // Number of training samples per statistics batch
+    private double _momentum;  // Weight of the old estimate when a batch is folded into the moving statistics
+    private Optimizer _optimizer;  // Update rule for gamma and beta, with its state; SGD when not set
+
+    private double[] _gamma;  // Learned scale of each channel
+    private double[] _beta;  // Learned shift of each channel
+    private double[] _runningMean;  // Moving estimate of each channel's mean
+    private double[] _runningVariance;  // Moving estimate of each channel's variance
+    private long _batches;  // Number of complete batches folded into the moving statistics
+
+    private transient double[] _batchSum;  // Sum of the inputs of the current batch, per channel
+    private transient double[] _batchSquareSum;  // Sum of the squared inputs of the current batch, per channel
+    private transient int _batchCount;  // Number of samples in the current batch
+    private transient double[] _scale;  // Effective scale of each channel, derived from gamma and the statistics
+    private transient double[] _shift;  // Effective shift of each channel, derived from beta and the statistics
+    private transient double[] _gradient;  // Scratch buffer for the gamma and beta gradients
+
+    private transient boolean _training;  // Whether forward passes normalize with batch statistics
+    private transient double[][] _recentSums;  // Per-channel input sums of the latest training samples, a ring
+    private transient double[][] _recentSquareSums;  // Per-channel squared input sums, in the same ring
+    private transient int _recentCount;  // Number of samples in the ring, up to batchSize - 1
+    private transient int _recentNext;  // Slot of the ring the next sample goes into
+    private transient double[] _sampleSum;  // Per-channel input sums of the sample of the last forward pass
+    private transient double[] _sampleSquareSum;  // Per-channel squared input sums of that sample
+    private transient double[] _forwardMean;  // Mean each channel was normalized with in the last forward pass
+    private transient double[] _forwardInverseDeviation;  // One over the deviation used in the last forward pass
+    private transient double _forwardElements;  // Elements per channel the batch statistics covered, 0 for the moving statistics
+
+    private double[] lastX;  // Stores the input for use in backpropagation
+    private double[] lastOut;  // Stores the output for use in backpropagation
+
+    /**
+     * Constructor to initialize the BatchNormLayer with specified parameters.
+     *
+     * @param _channels Number of input channels, or input neurons after a fully connected layer.
+     * @param _rows Number of rows in each channel.
+     * @param _columns Number of columns in each channel.
+     * @param learningRate Learning rate for gamma and beta.
+     * @param batchSize Number of training samples whose statistics are gathered before the moving statistics are updated.
+     * @param momentum Weight of the old estimate when a batch is folded in, e.g. 0.9.
+     */
+    public BatchNormLayer(int _channels, int _rows, int _columns, double learningRate, int batchSize, double momentum) {
+        this._channels = _channels;
+        this._rows = _rows;
+        this._columns = _columns;
+        _learningRate = learningRate;
+        _batchSize = batchSize;
+        _momentum = momentum;
+
+        _gamma = new double[_channels];
+        _beta = new double[_channels];
+        _runningMean = new double[_channels];
+        _runningVariance = new double[_channels];
+        Arrays.fill(_gamma, 1.0);
+        Arrays.fill(_runningVariance, 1.0);
+    }
+
+    /**
+     * Switches between batch statistics, while training, and the moving statistics.
+     *
+     * @param training Whether the following forward passes are part of training steps.
+     */
+    @Override
+    public void setTraining(boolean training) {
+        _training = training;
+    }
+
+    @Override
+    public void forward(double[] input, int inOffset, double[] output, int outOffset) {
+        if (_scale == null) {
+            updateAffine();
+        }
+        int plane = _rows * _columns;
+
+        if (_training && !_frozen) {
+            forwardWithBatchStatistics(input, inOffset, output, outOffset);
+            return;
+        }
+        _forwardElements = 0;
+
+        for (int channel = 0; channel < _channels; channel++) {
+            double scale = _scale[channel];
+            double shift = _shift[channel];
+            int start = channel * plane;
+
+            for (int i = start; i < start + plane; i++) {
+                output[outOffset + i] = input[inOffset + i] * scale + shift;
+            }
+        }
+    }
+
+    /**
+     * Normalizes a training sample with the statistics of its batch: the sample itself and the
+     * samples of the preceding training steps, up to the batch size. The statistics are kept for
+     * the backward pass.
+     */
+    private void forwardWithBatchStatistics(double[] input, int inOffset, double[] output, int outOffset) {
+        if (_forwardMean == null) {
+            _forwardMean = new double[_channels];
+            _forwardInverseDeviation = new double[_channels];
+            _sampleSum = new double[_channels];
+            _sampleSquareSum = new double[_channels];
+        }
+        int plane = _rows * _columns;
+        _forwardElements = (double) (_recentCount + 1) * plane;
+
+        for (int channel = 0; channel < _channels; channel++) {
+            int start = inOffset + channel * plane;
+            double sum = 0;
+            double squareSum = 0;
+            for (int i = start; i < start + plane; i++) {
+                sum += input[i];
+                squareSum += input[i] * input[i];
+            }
+            _sampleSum[channel] = sum;
+            _sampleSquareSum[channel] = squareSum;
+
+            for (int r = 0; r < _recentCount; r++) {
+                sum += _recentSums[r][channel];
+                squareSum += _recentSquareSums[r][channel];
+            }
+            double mean = sum / _forwardElements;
+            double variance = Math.max(0.0, squareSum / _forwardElements - mean * mean);
+            double inverseDeviation = 1.0 / Math.sqrt(variance + EPSILON);
+            _forwardMean[channel] = mean;
+            _forwardInverseDeviation[channel] = inverseDeviation;
+
+            double scale = _gamma[channel] * inverseDeviation;
+            double shift = _beta[channel] - mean * scale;
+            for (int i = start; i < start + plane; i++) {
+                output[outOffset + i - inOffset] = input[i] * scale + shift;
+            }
+        }
+    }
+
+    @Override
+    public void backward(double[] input, int inOffset, double[] output, int outOffset,
+                         double[] dLdO, int dLdOOffset, double[] dLdX, int dLdXOffset) {
+        if (_frozen && dLdX == null) {
+            return;  // Nothing to update and nothing to propagate
+        }
+        if (_forwardElements > 0) {
+            backwardWithBatchStatistics(input, inOffset, dLdO, dLdOOffset, dLdX, dLdXOffset);
+            return;
+        }
+        if (_scale == null) {
+            updateAffine();
+        }
+        if (_gradient == null) {
+            _gradient = new double[2 * _channels];
+        }
+        int plane = _rows * _columns;
+
+        for (int channel = 0; channel < _channels; channel++) {
+            double scale = _scale[channel];
+            double mean = _runningMean[channel];
+            double inverseDeviation = 1.0 / Math.sqrt(_runningVariance[channel] + EPSILON);
+            double dGamma = 0;
+            double dBeta = 0;
+            int start = channel * plane;
+
+            // The statistics are constants of the forward pass, so the gradient is that of an affine map
+            for (int i = start; i < start + plane; i++) {
+                double error = dLdO[dLdOOffset + i];
+                dGamma += error * (input[inOffset + i] - mean) * inverseDeviation;
+                dBeta += error;
+                if (dLdX != null) {
+                    dLdX[dLdXOffset + i] = error * scale;
+                }
+            }
+            _gradient[channel] = dGamma;
+            _gradient[_channels + channel] = dBeta;
+        }
+
+        if (!_frozen) {
+            if (_batches > 0) {
+                // Gamma and beta only train once they act on normalized inputs
+                Optimizer optimizer = getOptimizer();
+                optimizer.beginStep();
+                optimizer.update(_gamma, 0, _gradient, 0, 1.0, _channels, 0);
+                optimizer.update(_beta, 0, _gradient, _channels, 1.0, _channels, _channels);
+            }
+
+            if (_sampleSum == null) {
+                _sampleSum = new double[_channels];
+                _sampleSquareSum = new double[_channels];
+            }
+            for (int channel = 0; channel < _channels; channel++) {
+                double sum = 0;
+                double squareSum = 0;
+                int start = inOffset + channel * plane;
+                for (int i = start; i < start + plane; i++) {
+                    sum += input[i];
+                    squareSum += input[i] * input[i];
+                }
+                _sampleSum[channel] = sum;
+                _sampleSquareSum[channel] = squareSum;
+            }
+            accumulateStatistics();
+            updateAffine();
+        }
+    }
+
+    /**
+     * Backpropagates through a forward pass that used batch statistics. The mean and variance
+     * depend on the current sample, so the input gradient of element i of a channel is
+     * {@code gamma / deviation * (dy_i - sum(dy) / n - xhat_i * sum(dy * xhat) / n)}, with the sums
+     * over the current sample and n the elements the statistics covered.
+     */
+    private void backwardWithBatchStatistics(double[] input, int inOffset, double[] dLdO, int dLdOOffset,
+                                             double[] dLdX, int dLdXOffset) {
+        if (_gradient == null) {
+            _gradient = new double[2 * _channels];
+        }
+        int plane = _rows * _columns;
+
+        for (int channel = 0; channel < _channels; channel++) {
+            double mean = _forwardMean[channel];
+            double inverseDeviation = _forwardInverseDeviation[channel];
+            double dGamma = 0;
+            double dBeta = 0;
+            int start = channel * plane;
+
+            for (int i = start; i < start + plane; i++) {
+                double error = dLdO[dLdOOffset + i];
+                dGamma += error * (input[inOffset + i] - mean) * inverseDeviation;
+                dBeta += error;
+            }
+            _gradient[channel] = dGamma;
+            _gradient[_channels + channel] = dBeta;
+
+            if (dLdX != null) {
+                double scale = _gamma[channel] * inverseDeviation;
+                double meanError = dBeta / _forwardElements;
+                double meanErrorTimesNormalized = dGamma / _forwardElements;
+                for (int i = start; i < start + plane; i++) {
+                    double normalized = (input[inOffset + i] - mean) * inverseDeviation;
+                    dLdX[dLdXOffset + i] = scale * (dLdO[dLdOOffset + i] - meanError - normalized * meanErrorTimesNormalized);
+                }
+            }
+        }
+
+        if (!_frozen) {
+            Optimizer optimizer = getOptimizer();
+            optimizer.beginStep();
+            optimizer.update(_gamma, 0, _gradient, 0, 1.0, _channels, 0);
+            optimizer.update(_beta, 0, _gradient, _channels, 1.0, _channels, _channels);
+
+            rememberSample();
+            accumulateStatistics();
+            updateAffine();
+        }
+    }
+
+    /**
+     * Adds the sums of the last forward pass's sample to the ring of recent samples that later
+     * samples are normalized with, dropping the oldest once the ring holds {@code batchSize - 1}.
+     */
+    private void rememberSample() {
+        int capacity = _batchSize - 1;
+        if (capacity <= 0) {
+            return;  // Every sample is a batch of its own
+        }
+        if (_recentSums == null) {
+            _recentSums = new double[capacity][_channels];
+            _recentSquareSums = new double[capacity][_channels];
+        }
+        System.arraycopy(_sampleSum, 0, _recentSums[_recentNext], 0, _channels);
+        System.arraycopy(_sampleSquareSum, 0, _recentSquareSums[_recentNext], 0, _channels);
+        _recentNext = (_recentNext + 1) % capacity;
+        _recentCount = Math.min(_recentCount + 1, capacity);
+    }
+
+    /**
+     * Adds the sums of the last trained sample to the statistics of the current batch and folds the
+     * batch into the moving statistics once it is complete. The first batch replaces the initial
+     * identity statistics.
+     */
+    private void accumulateStatistics() {
+        if (_batchSum == null) {
+            _batchSum = new double[_channels];
+            _batchSquareSum = new double[_channels];
+        }
+        int plane = _rows * _columns;
+
+        for (int channel = 0; channel < _channels; channel++) {
+            _batchSum[channel] += _sampleSum[channel];
+            _batchSquareSum[channel] += _sampleSquareSum[channel];
+        }
+        _batchCount++;
+
+        if (_batchCount < _batchSize) {
+            return;  // Keep gathering the current batch
+        }
+
+        double weight = _batches == 0 ? 0.0 : _momentum;
+        double n = (double) _batchCount * plane;
+
+        for (int channel = 0; channel < _channels; channel++) {
+            double mean = _batchSum[channel] / n;
+            double variance = Math.max(0.0, _batchSquareSum[channel] / n - mean * mean);
+
+            _runningMean[channel] = weight * _runningMean[channel] + (1 - weight) * mean;
+            _runningVariance[channel] = weight * _runningVariance[channel] + (1 - weight) * variance;
+        }
+
+        _batches++;
+        _batchCount = 0;
+        Arrays.fill(_batchSum, 0.0);
+        Arrays.fill(_batchSquareSum, 0.0);
+    }
+
+    /**
+     * Recomputes the per-channel scale and shift that the forward pass applies.
+     */
+    private void updateAffine() {
+        if (_scale == null) {
+            _scale = new double[_channels];
+            _shift = new double[_channels];
+        }
+
+        for (int channel = 0; channel < _channels; channel++) {
+            _scale[channel] = _gamma[channel] / Math.sqrt(_runningVariance[channel] + EPSILON);
+            _shift[channel] = _beta[channel] - _runningMean[channel] * _scale[channel];
+        }
+    }
+
+    /**
+     * Merges this layer's affine map into a neighbouring layer, so the network computes the same
+     * function without this layer. A preceding convolution or linear fully connected layer has its
+     * weights scaled and a bias added; otherwise a following fully connected layer absorbs the map
+     * into its weights and bias. The caller removes this layer from the network afterwards.
+     *
+     * @return The layer that absorbed the normalization.
+     * @throws IllegalStateException If no neighbouring layer can absorb it.
+     */
+    public Layer fold() {
+        updateAffine();
+
+        if (_previousLayer instanceof ConvolutionLayer convolution && convolution.canScaleOutputChannels()) {
+            convolution.scaleOutputChannels(_scale, _shift);
+            return convolution;
+        }
+        if (_previousLayer instanceof FullyConnectedLayer fullyConnected && fullyConnected.isLinear()) {
+            fullyConnected.scaleOutputs(_scale, _shift);
+            return fullyConnected;
+        }
+        if (_nextLayer instanceof FullyConnectedLayer fullyConnected) {
+            fullyConnected.absorbInputAffine(_scale, _shift, _rows * _columns);
+            return fullyConnected;
+        }
+        throw new IllegalStateException("Batch norm can only be folded into a preceding convolution or linear "
+                + "fully connected layer, or into a following fully connected layer");
+    }
+
+    /**
+     * Gets the optimizer updating gamma and beta, falling back to SGD when none was set.
+     *
+     * @return The bound optimizer.
+     */
+    private Optimizer getOptimizer() {
+        if (_optimizer == null) {
+            _optimizer = new SgdOptimizer().bind(getParameterCount(), _learningRate);
+        }
+        return _optimizer;
+    }
+
+    @Override
+    public void setOptimizer(Optimizer optimizer) {
+        _optimizer = optimizer.bind(getParameterCount(), _learningRate);
+    }
+
+    @Override
+    public double[] getOutput(List<double[][]> input) {
+            return getOutput(matrixToVector(input));
+    }
+
+    @Override
+    public double[] getOutput(double[] input) {
+            lastX = input;  // Store input for use in backpropagation
+            lastOut = new double[input.length];
+            forward(input, 0, lastOut, 0);
+
+            if (_nextLayer != null) {
+                return _nextLayer.getOutput(lastOut);
+            } else {
+                return lastOut;
+            }
+    }
+
+    @Override
+    public void backPropagation(double[] dLdO) {
+        boolean propagate = hasTrainablePredecessor();  // Stop at the frozen boundary
+        double[] dLdX = propagate ? new double[dLdO.length] : null;  // Gradient w.r.t input of this layer
+
+        try {
+            backward(lastX, 0, lastOut, 0, dLdO, 0, dLdX, 0);
+
+            if (propagate) {
+                _previousLayer.backPropagation(dLdX);
+            }
+        } catch (Exception e) {
+            System.err.println("Error during backpropagation: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void backPropagation(List<double[][]> dLdO) {
+            backPropagation(matrixToVector(dLdO));
+    }
+
+    @Override
+    public int getOutputLength() {
+        return _channels;
+    }
+
+    @Override
+    public int getOutputRows() {
+        return _rows;
+    }
+
+    @Override
+    public int getOutputColumns() {
+        return _columns;
+    }
+
+    @Override
+    public int getOutputElements() {
+        return _channels * _rows * _columns;
+    }
+
+    @Override
+    public int getInputElements() {
+        return getOutputElements();
+    }
+
+    @Override
+    public int getParameterCount() {
+        return 2 * _channels;
+    }
+
+    @Override
+    public long getForwardFlops() {
+        return 2L * getOutputElements();
+    }
+
+    @Override
+    public long getBackwardFlops() {
+        return 10L * getOutputElements();  // Input gradient through the batch statistics, gamma and beta gradients
+    }
+
+    @Override
+    public void copyParametersTo(double[] target, int offset) {
+        System.arraycopy(_gamma, 0, target, offset, _channels);
+        System.arraycopy(_beta, 0, target, offset + _channels, _channels);
+    }
+
+    @Override
+    public void copyParametersFrom(double[] source, int offset) {
+        System.arraycopy(source, offset, _gamma, 0, _channels);
+        System.arraycopy(source, offset + _channels, _beta, 0, _channels);
+        updateAffine();
+    }
+
+    @Override
+    public int getStateCount() {
+        return 2 * _channels + 1;
+    }
+
+    @Override
+    public void copyStateTo(double[] target, int offset) {
+        System.arraycopy(_runningMean, 0, target, offset, _channels);
+        System.arraycopy(_runningVariance, 0, target, offset + _channels, _channels);
+        target[offset + 2 * _channels] = _batches;
+    }
+
+    @Override
+    public void copyStateFrom(double[] source, int offset) {
+        System.arraycopy(source, offset, _runningMean, 0, _channels);
+        System.arraycopy(source, offset + _channels, _runningVariance, 0, _channels);
+        _batches = (long) source[offset + 2 * _channels];
+        updateAffine();
+    }
+}
@@ -1,16 +1,20 @@
 package Layers;
 
+import optimizers.Optimizer;
+import optimizers.SgdOptimizer;
+
 import java.io.Serial;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
 import static data.MatrixUtility.add;
-import static data.MatrixUtility.multiply;
 
 public class ConvolutionLayer extends Layer {
     @Serial
     private static final long serialVersionUID = 1L;
+    private static final double SPARSE_DENSITY_THRESHOLD = 0.4;  // Input density below which the scatter kernel is used
     private transient long SEED;  // Random seed for initializing filters
 
     private List<double[][]> _filters;  // List of filters for convolution
@@ -21,8 +25,15 @@ public class ConvolutionLayer extends Layer {
     private int _inRows;  // Number of input rows
     private int _inColumns;  // Number of input columns
     private double _learningRate;  // Learning rate for updating filters
+    private boolean _multiChannel;  // Whether each output channel sums over all input channels
+    private Optimizer _optimizer;  // Update rule for the filters, with its state; SGD when not set
+    private double[] _bias;  // Fixed bias of each output channel, set when a batch norm layer is folded in; null for none
 
     private List<double[][]> _lastInput;  // Stores the last input received for backpropagation
+    private transient double[] _filterGradient;  // Scratch buffer for filter gradients in the flat kernels
+    private transient double[] _rowTile;  // Rings of convolution output rows, one per channel, used by the fused pooling kernel
+    private transient double[] _sparseOutput;  // Full convolution output used when the fused kernel takes the sparse path
+    private transient SparsityMonitor _inputSparsity;  // Chooses between the sparse and dense kernels
 
     /**
      * Constructor to initialize the ConvolutionLayer with specified parameters.
@@ -37,6 +48,28 @@ public class ConvolutionLayer extends Layer {
      * @param learningRate Learning rate for the layer.
      */
     public ConvolutionLayer(int _filterSize, int _stepSize, int _inLength, int _inRows, int _inColumns, long SEED, int numFilters, double learningRate) {
+        this(_filterSize, _stepSize, _inLength, _inRows, _inColumns, SEED, numFilters, learningRate, false);
+    }
+
+    /**
+     * Constructor to initialize the ConvolutionLayer with specified parameters and channel mode.
+     *
+     * In the default fan-out mode every filter is applied to every input channel separately, so the
+     * layer produces numFilters * _inLength output channels. In multi-channel mode each of the
+     * numFilters output channels owns one filter per input channel and sums over all of them, so
+     * stacking layers does not multiply the channel count.
+     *
+     * @param _filterSize Size of the filters.
+     * @param _stepSize Step size for the convolution operation.
+     * @param _inLength Number of input channels.
+     * @param _inRows Number of input rows.
+     * @param _inColumns Number of input columns.
+     * @param SEED Random seed for filter initialization.
+     * @param numFilters Number of filters (output channels in multi-channel mode) to generate.
+     * @param learningRate Learning rate for the layer.
+     * @param multiChannel Whether each output channel sums over all input channels.
+     */
+    public ConvolutionLayer(int _filterSize, int _stepSize, int _inLength, int _inRows, int _inColumns, long SEED, int numFilters, double learningRate, boolean multiChannel) {
         this._filterSize = _filterSize;
         this._stepSize = _stepSize;
         this._inLength = _inLength;
@@ -44,8 +77,40 @@ public class ConvolutionLayer extends Layer {
         this._inColumns = _inColumns;
         this.SEED = SEED;
         _learningRate = learningRate;
+        _multiChannel = multiChannel;
+
+        generateRandomFilters(multiChannel ? numFilters * _inLength : numFilters);  // Generate filters randomly
+    }
+
+    /**
+     * Gets the number of (input channel, filter) pairs that feed each output channel.
+     *
+     * @return Number of input planes summed into every output channel.
+     */
+    private int pairsPerChannel() {
+        return _multiChannel ? _inLength : 1;
+    }
+
+    /**
+     * Gets the input channel of a given pair feeding an output channel.
+     *
+     * @param channel The output channel.
+     * @param pair Index of the pair, below {@link #pairsPerChannel()}.
+     * @return The input channel read by the pair.
+     */
+    private int inputChannelOf(int channel, int pair) {
+        return _multiChannel ? pair : channel / _filters.size();
+    }
 
-        generateRandomFilters(numFilters);  // Generate filters randomly
+    /**
+     * Gets the filter of a given pair feeding an output channel.
+     *
+     * @param channel The output channel.
+     * @param pair Index of the pair, below {@link #pairsPerChannel()}.
+     * @return Index of the filter applied by the pair.
+     */
+    private int filterIndexOf(int channel, int pair) {
+        return _multiChannel ? channel * _inLength + pair : channel % _filters.size();
     }
 
     /**
@@ -88,11 +153,27 @@ public class ConvolutionLayer extends Layer {
         List<double[][]> output = new ArrayList<>();
 
         try {
-            for (int m = 0; m < list.size(); m++) {
-                for (double[][] filter : _filters) {
-                    output.add(convolve(list.get(m), filter, _stepSize));  // Apply convolution for each filter
+            double[][][] channels = new double[getOutputLength()][][];
+
+            // Output channels are independent, so large layers compute them on several threads
+            IntraOpExecutor.forRange(channels.length, getForwardFlops(), (from, to) -> {
+                for (int o = from; o < to; o++) {
+                    double[][] channel = convolve(list.get(inputChannelOf(o, 0)), _filters.get(filterIndexOf(o, 0)), _stepSize);
+
+                    for (int p = 1; p < pairsPerChannel(); p++) {
+                        channel = add(channel, convolve(list.get(inputChannelOf(o, p)), _filters.get(filterIndexOf(o, p)), _stepSize));
+                    }
+                    if (_bias != null) {
+                        for (double[] row : channel) {
+                            for (int c = 0; c < row.length; c++) {
+                                row[c] += _bias[o];
+                            }
+                        }
+                    }
+                    channels[o] = channel;
                 }
-            }
+            });
+            output.addAll(Arrays.asList(channels));  // Apply convolution for each output channel
         } catch (Exception e) {
             System.err.println("Error during convolution forward pass: " + e.getMessage());
             e.printStackTrace();
@@ -193,47 +274,63 @@ public class ConvolutionLayer extends Layer {
 
     @Override
     public void backPropagation(double[] dLdO) {
-            List<double[][]> matrixInput = vectorToMatrix(dLdO, _inLength, _inRows, _inColumns);
+            List<double[][]> matrixInput = vectorToMatrix(dLdO, getOutputLength(), getOutputRows(), getOutputColumns());
             backPropagation(matrixInput);
     }
 
     @Override
     public void backPropagation(List<double[][]> dLdO) {
+        boolean propagate = hasTrainablePredecessor();  // Stop at the frozen boundary
+        if (_frozen && !propagate) {
+            return;  // Nothing to update and nothing to propagate
+        }
+
         try {
-            List<double[][]> filtersDelta = new ArrayList<>();
             List<double[][]> dldOPreviousLayer = new ArrayList<>();
+            int filterElements = _filterSize * _filterSize;
+
+            if (_filterGradient == null) {
+                _filterGradient = new double[_filters.size() * filterElements];
+            }
+            Arrays.fill(_filterGradient, 0.0);
 
-            for (int f = 0; f < _filters.size(); f++) {
-                filtersDelta.add(new double[_filterSize][_filterSize]);
+            if (propagate) {
+                for (int i = 0; i < _lastInput.size(); i++) {
+                    dldOPreviousLayer.add(new double[_inRows][_inColumns]);
+                }
             }
 
-            for (int i = 0; i < _lastInput.size(); i++) {
-                double[][] errorForInput = new double[_inRows][_inColumns];
+            for (int o = 0; o < dLdO.size(); o++) {
+                double[][] error = dLdO.get(o);
+                double[][] spacedError = spaceArray(error);
+                double[][] flippedError = flipArrayHorizontally(flipArrayVertically(spacedError));
 
-                for (int f = 0; f < _filters.size(); f++) {
+                for (int p = 0; p < pairsPerChannel(); p++) {
+                    int i = inputChannelOf(o, p);
+                    int f = filterIndexOf(o, p);
                     double[][] currFilter = _filters.get(f);
-                    double[][] error = dLdO.get(i * _filters.size() + f);
 
-                    double[][] spacedError = spaceArray(error);
-                    double[][] dldF = convolve(_lastInput.get(i), spacedError, 1);
+                    if (!_frozen) {
+                        double[][] dldF = convolve(_lastInput.get(i), spacedError, 1);
 
-                    double[][] delta = multiply(dldF, _learningRate * -1);
-                    double[][] newTotalDelta = add(filtersDelta.get(f), delta);
-                    filtersDelta.set(f, newTotalDelta);
+                        for (int x = 0; x < _filterSize; x++) {
+                            for (int y = 0; y < _filterSize; y++) {
+                                _filterGradient[f * filterElements + x * _filterSize + y] += dldF[x][y];  // Accumulate the filter gradient
+                            }
+                        }
+                    }
 
-                    double[][] flippedError = flipArrayHorizontally(flipArrayVertically(spacedError));
-                    errorForInput = add(errorForInput, fullConvolve(currFilter, flippedError));
+                    if (propagate) {
+                        dldOPreviousLayer.set(i, add(dldOPreviousLayer.get(i), fullConvolve(currFilter, flippedError)));
+                    }
                 }
-
-                dldOPreviousLayer.add(errorForInput);
             }
 
-            for (int f = 0; f < _filters.size(); f++) {
-                double[][] modified = add(filtersDelta.get(f), _filters.get(f));
-                _filters.set(f, modified);
+            if (!_frozen) {
+                applyFilterGradient();
             }
 
-            if (_previousLayer != null) {
+            if (propagate) {
                 _previousLayer.backPropagation(dldOPreviousLayer);
             }
         } catch (Exception e) {
@@ -332,9 +429,456 @@ public class ConvolutionLayer extends Layer {
         return output;
     }
 
+    @Override
+    public void forward(double[] input, int inOffset, double[] output, int outOffset) {
+        if (selectSparse(input, inOffset)) {
+            scatterForward(input, inOffset, output, outOffset);
+            return;
+        }
+
+        int outRows = getOutputRows();
+        int outColumns = getOutputColumns();
+
+        // Every output row of every channel is a tile of its own, computed on several threads for large layers
+        IntraOpExecutor.forRange(getOutputLength() * outRows, getForwardFlops(), (from, to) -> {
+            for (int tile = from; tile < to; tile++) {
+                convolveRow(input, inOffset, tile / outRows, tile % outRows, 0, outColumns, output, outOffset + tile * outColumns);
+            }
+        });
+    }
+
+    /**
+     * Measures the density of the input and decides whether the scatter kernel should handle it.
+     *
+     * @param input Array holding the flattened input.
+     * @param inOffset Index of the first input element.
+     * @return True when the input is sparse enough for the scatter kernel.
+     */
+    private boolean selectSparse(double[] input, int inOffset) {
+        if (_inputSparsity == null) {
+            _inputSparsity = new SparsityMonitor(getInputElements(), SPARSE_DENSITY_THRESHOLD);
+        }
+        return _inputSparsity.select(input, inOffset);
+    }
+
+    /**
+     * Sparse forward kernel. Instead of sliding every filter over every input position, each
+     * non-zero input pixel adds its contribution to the output positions whose windows cover it,
+     * so the cost scales with the number of non-zero inputs rather than the input size.
+     *
+     * @param input Array holding the flattened input.
+     * @param inOffset Index of the first input element.
+     * @param output Array receiving the flattened output.
+     * @param outOffset Index of the first output element.
+     */
+    private void scatterForward(double[] input, int inOffset, double[] output, int outOffset) {
+        int[] indices = _inputSparsity.getIndices();
+        int count = _inputSparsity.getCount();
+        long flops = getForwardFlops() * count / getInputElements();  // Only the non-zero inputs cost anything
+
+        IntraOpExecutor.forRange(getOutputLength(), flops, (from, to) ->
+                scatterChannels(input, inOffset, output, outOffset, indices, count, from, to));
+    }
+
+    /**
+     * Scatters the gathered non-zero inputs into a range of output channels.
+     *
+     * @param input Array holding the flattened input.
+     * @param inOffset Index of the first input element.
+     * @param output Array receiving the flattened output.
+     * @param outOffset Index of the first output element.
+     * @param indices Ascending indices of the non-zero inputs.
+     * @param count Number of valid indices.
+     * @param fromChannel First output channel to compute.
+     * @param toChannel Output channel after the last one to compute.
+     */
+    private void scatterChannels(double[] input, int inOffset, double[] output, int outOffset, int[] indices, int count,
+                                 int fromChannel, int toChannel) {
+        int outRows = getOutputRows();
+        int outColumns = getOutputColumns();
+        int inPlane = _inRows * _inColumns;
+        int outPlane = outRows * outColumns;
+
+        for (int channel = fromChannel; channel < toChannel; channel++) {
+            double bias = _bias == null ? 0.0 : _bias[channel];  // Every output starts at its channel's bias
+            Arrays.fill(output, outOffset + channel * outPlane, outOffset + (channel + 1) * outPlane, bias);
+        }
+
+        int start = 0;  // Indices are ascending, so each input plane owns a contiguous range of them
+        for (int m = 0; m < _inLength; m++) {
+            int end = start;
+            while (end < count && indices[end] < (m + 1) * inPlane) {
+                end++;
+            }
+
+            for (int channel = fromChannel; channel < toChannel; channel++) {
+                for (int p = 0; p < pairsPerChannel(); p++) {
+                    if (inputChannelOf(channel, p) != m) {
+                        continue;
+                    }
+                    double[][] filter = _filters.get(filterIndexOf(channel, p));
+                    int channelStart = outOffset + channel * outPlane;
+
+                    for (int n = start; n < end; n++) {
+                        int index = indices[n] - m * inPlane;
+                        int r = index / _inColumns;
+                        int c = index % _inColumns;
+                        double value = input[inOffset + indices[n]];
+
+                        // Filter offsets whose window lands on this pixel: x <= r, (r - x) a multiple of the step and in range
+                        int xLow = Math.max(0, r - (outRows - 1) * _stepSize);
+                        int xStart = xLow + (r - xLow) % _stepSize;
+                        int xEnd = Math.min(_filterSize - 1, r);
+                        int yLow = Math.max(0, c - (outColumns - 1) * _stepSize);
+                        int yStart = yLow + (c - yLow) % _stepSize;
+                        int yEnd = Math.min(_filterSize - 1, c);
+
+                        for (int x = xStart; x <= xEnd; x += _stepSize) {
+                            double[] filterRow = filter[x];
+                            int outIndex = channelStart + (r - x) / _stepSize * outColumns + (c - yStart) / _stepSize;
+
+                            for (int y = yStart; y <= yEnd; y += _stepSize) {
+                                output[outIndex--] += value * filterRow[y];
+                            }
+                        }
+                    }
+                }
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Computes a span of one row of one output channel, summing over every input plane feeding that channel.
+     *
+     * @param input Array holding the flattened input.
+     * @param inOffset Index of the first input element.
+     * @param channel The output channel.
+     * @param row The output row.
+     * @param columnStart First output column to compute.
+     * @param columnEnd Output column after the last one to compute.
+     * @param output Array receiving the row.
+     * @param outStart Index receiving column 0 of the row.
+     */
+    private void convolveRow(double[] input, int inOffset, int channel, int row, int columnStart, int columnEnd, double[] output, int outStart) {
+        int inPlane = _inRows * _inColumns;
+
+        for (int p = 0; p < pairsPerChannel(); p++) {
+            double[][] filter = _filters.get(filterIndexOf(channel, p));
+            int rowStart = inOffset + inputChannelOf(channel, p) * inPlane + row * _stepSize * _inColumns;
+            double initial = p == 0 && _bias != null ? _bias[channel] : 0.0;  // The first pair starts from the bias
+
+            for (int c = columnStart; c < columnEnd; c++) {
+                int windowStart = rowStart + c * _stepSize;
+                double sum = initial;
+
+                for (int x = 0; x < _filterSize; x++) {
+                    double[] filterRow = filter[x];
+                    int inputIndex = windowStart + x * _inColumns;
+
+                    for (int y = 0; y < _filterSize; y++) {
+                        sum += filterRow[y] * input[inputIndex + y];
+                    }
+                }
+                output[outStart + c] = p == 0 ? sum : output[outStart + c] + sum;
+            }
+        }
+    }
+
+    /**
+     * Maps a changed region of the input to the region of the output that depends on it.
+     *
+     * @param inputRegion Changed input region as {rowStart, rowEnd, columnStart, columnEnd}, ends exclusive.
+     * @return The output region whose windows overlap the input region, in the same form.
+     */
+    public int[] getAffectedOutputRegion(int[] inputRegion) {
+        return new int[]{
+                Math.max(0, Math.ceilDiv(inputRegion[0] - _filterSize + 1, _stepSize)),
+                Math.min(getOutputRows(), Math.floorDiv(inputRegion[1] - 1, _stepSize) + 1),
+                Math.max(0, Math.ceilDiv(inputRegion[2] - _filterSize + 1, _stepSize)),
+                Math.min(getOutputColumns(), Math.floorDiv(inputRegion[3] - 1, _stepSize) + 1)
+        };
+    }
+
+    /**
+     * Recomputes only one region of the output, in every output channel, leaving the rest untouched.
+     *
+     * @param input Array holding the flattened input.
+     * @param inOffset Index of the first input element.
+     * @param output Array holding the flattened output of an earlier forward pass.
+     * @param outOffset Index of the first output element.
+     * @param outputRegion Output region to recompute as {rowStart, rowEnd, columnStart, columnEnd}, ends exclusive.
+     */
+    public void forwardRegion(double[] input, int inOffset, double[] output, int outOffset, int[] outputRegion) {
+        int outColumns = getOutputColumns();
+        int outPlane = getOutputRows() * outColumns;
+
+        for (int channel = 0; channel < getOutputLength(); channel++) {
+            for (int r = outputRegion[0]; r < outputRegion[1]; r++) {
+                convolveRow(input, inOffset, channel, r, outputRegion[2], outputRegion[3],
+                        output, outOffset + channel * outPlane + r * outColumns);
+            }
+        }
+    }
+
+    /**
+     * Fused forward kernel for a convolution followed directly by a max pooling layer.
+     *
+     * Convolution output rows are computed one at a time into a small ring that holds just one
+     * pooling window of rows, and each pooling row is taken as soon as its window is complete. The
+     * full convolution output is never materialized; the pool's flat argmax buffer receives indices
+     * into the (virtual) convolution output so that both layers' backward kernels work unchanged.
+     *
+     * @param pool The max pooling layer consuming this layer's output.
+     * @param input Array holding the flattened input.
+     * @param inOffset Index of the first input element.
+     * @param output Array receiving the flattened pooled output.
+     * @param outOffset Index of the first pooled output element.
+     */
+    public void forwardPooled(MaxPoolLayer pool, double[] input, int inOffset, double[] output, int outOffset) {
+        int convRows = getOutputRows();
+        int convColumns = getOutputColumns();
+        int window = pool.getWindowSize();
+        int poolStep = pool.getStepSize();
+        int poolRows = pool.getOutputRows();
+        int poolColumns = pool.getOutputColumns();
+        int convPlane = convRows * convColumns;
+        int[] maxIndex = pool.getMaxIndexBuffer();
+
+        if (selectSparse(input, inOffset)) {
+            // A sparse input is cheaper to scatter in full than to convolve row by row
+            if (_sparseOutput == null) {
+                _sparseOutput = new double[getOutputElements()];
+            }
+            scatterForward(input, inOffset, _sparseOutput, 0);
+            pool.forward(_sparseOutput, 0, output, outOffset);
+            return;
+        }
+
+        int tileLength = window * convColumns;
+        if (_rowTile == null || _rowTile.length < getOutputLength() * tileLength) {
+            _rowTile = new double[getOutputLength() * tileLength];  // One ring per channel, so channels can run on different threads
+        }
+
+        IntraOpExecutor.forRange(getOutputLength(), getForwardFlops(), (from, to) -> {
+            for (int channel = from; channel < to; channel++) {
+                int tileOffset = channel * tileLength;
+                int o = channel * poolRows * poolColumns;
+                int nextRow = 0;  // Next convolution row that has not been computed yet
+
+                for (int pr = 0; pr < poolRows; pr++) {
+                    int firstRow = pr * poolStep;
+                    nextRow = Math.max(nextRow, firstRow);
+
+                    // Compute only the convolution rows this pooling window has not seen yet
+                    for (; nextRow < firstRow + window; nextRow++) {
+                        convolveRow(input, inOffset, channel, nextRow, 0, convColumns, _rowTile, tileOffset + (nextRow % window) * convColumns);
+                    }
+
+                    for (int pc = 0; pc < poolColumns; pc++) {
+                        int firstColumn = pc * poolStep;
+                        double max = Double.NEGATIVE_INFINITY;
+                        int maxRow = firstRow;
+                        int maxColumn = firstColumn;
+
+                        for (int x = 0; x < window; x++) {
+                            int tileStart = tileOffset + ((firstRow + x) % window) * convColumns;
+
+                            for (int y = 0; y < window; y++) {
+                                double value = _rowTile[tileStart + firstColumn + y];
+                                if (value > max) {
+                                    max = value;
+                                    maxRow = firstRow + x;
+                                    maxColumn = firstColumn + y;
+                                }
+                            }
+                        }
+
+                        output[outOffset + o] = max;
+                        maxIndex[o] = channel * convPlane + maxRow * convColumns + maxColumn;
+                        o++;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void backward(double[] input, int inOffset, double[] output, int outOffset,
+                         double[] dLdO, int dLdOOffset, double[] dLdX, int dLdXOffset) {
+        if (_frozen && dLdX == null) {
+            return;  // Nothing to update and nothing to propagate
+        }
+
+        int outRows = getOutputRows();
+        int outColumns = getOutputColumns();
+        int inPlane = _inRows * _inColumns;
+        int filterElements = _filterSize * _filterSize;
+
+        if (_filterGradient == null) {
+            _filterGradient = new double[_filters.size() * filterElements];
+        }
+        Arrays.fill(_filterGradient, 0.0);
+
+        if (dLdX != null) {
+            Arrays.fill(dLdX, dLdXOffset, dLdXOffset + getInputElements(), 0.0);
+        }
+
+        int outPlane = outRows * outColumns;
+
+        for (int channel = 0; channel < getOutputLength(); channel++) {
+            int channelStart = dLdOOffset + channel * outPlane;
+
+            for (int p = 0; p < pairsPerChannel(); p++) {
+                int f = filterIndexOf(channel, p);
+                double[][] filter = _filters.get(f);
+                int plane = inputChannelOf(channel, p) * inPlane;
+                int gradientStart = f * filterElements;
+                int g = channelStart;
+
+                for (int r = 0; r < outRows; r++) {
+                    int rowStart = plane + r * _stepSize * _inColumns;
+
+                    for (int c = 0; c < outColumns; c++) {
+                        double error = dLdO[g++];
+                        if (error == 0.0) {
+                            continue;  // Nothing flows through this output position
+                        }
+                        int windowStart = rowStart + c * _stepSize;
+
+                        for (int x = 0; x < _filterSize; x++) {
+                            double[] filterRow = filter[x];
+                            int inputIndex = windowStart + x * _inColumns;
+                            int gradientIndex = gradientStart + x * _filterSize;
+
+                            for (int y = 0; y < _filterSize; y++) {
+                                _filterGradient[gradientIndex + y] += error * input[inOffset + inputIndex + y];
+                                if (dLdX != null) {
+                                    dLdX[dLdXOffset + inputIndex + y] += error * filterRow[y];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // Apply the accumulated filter updates once every input gradient has used the old filters
+        if (!_frozen) {
+            applyFilterGradient();
+        }
+    }
+
+    /**
+     * Updates every filter from the gradient accumulated in the filter gradient buffer, one filter
+     * row at a time. The buffer uses the same flat layout as the layer's parameters.
+     */
+    private void applyFilterGradient() {
+        Optimizer optimizer = getOptimizer();
+        optimizer.beginStep();
+
+        for (int f = 0; f < _filters.size(); f++) {
+            double[][] filter = _filters.get(f);
+
+            for (int x = 0; x < _filterSize; x++) {
+                int parameterIndex = (f * _filterSize + x) * _filterSize;
+                optimizer.update(filter[x], 0, _filterGradient, parameterIndex, 1.0, _filterSize, parameterIndex);
+            }
+        }
+    }
+
+    /**
+     * Gets the optimizer updating the filters, falling back to SGD for layers saved before optimizers existed.
+     *
+     * @return The bound optimizer.
+     */
+    private Optimizer getOptimizer() {
+        if (_optimizer == null) {
+            _optimizer = new SgdOptimizer().bind(getParameterCount(), _learningRate);
+        }
+        return _optimizer;
+    }
+
+    @Override
+    public void setOptimizer(Optimizer optimizer) {
+        _optimizer = optimizer.bind(getParameterCount(), _learningRate);
+    }
+
+    /**
+     * Whether every output channel owns its filters, which folding a per-channel scale requires. In
+     * fan-out mode with several input channels a filter is shared by several output channels.
+     *
+     * @return True if output channels can be scaled independently.
+     */
+    public boolean canScaleOutputChannels() {
+        return _multiChannel || _inLength == 1;
+    }
+
+    /**
+     * Replaces every output y of a channel with scale * y + shift by scaling the channel's filters and
+     * bias, e.g. to fold in a batch norm layer. The bias is fixed: training only updates the filters.
+     *
+     * @param scale Scale of each output channel.
+     * @param shift Shift of each output channel.
+     * @throws IllegalStateException If output channels share filters.
+     */
+    public void scaleOutputChannels(double[] scale, double[] shift) {
+        if (!canScaleOutputChannels()) {
+            throw new IllegalStateException("Output channels share filters in fan-out mode with several input channels");
+        }
+        if (_bias == null) {
+            _bias = new double[getOutputLength()];
+        }
+
+        for (int channel = 0; channel < getOutputLength(); channel++) {
+            for (int p = 0; p < pairsPerChannel(); p++) {
+                for (double[] filterRow : _filters.get(filterIndexOf(channel, p))) {
+                    for (int y = 0; y < _filterSize; y++) {
+                        filterRow[y] *= scale[channel];
+                    }
+                }
+            }
+            _bias[channel] = _bias[channel] * scale[channel] + shift[channel];
+        }
+    }
+
+    @Override
+    public int getParameterCount() {
+        return _filters.size() * _filterSize * _filterSize;
+    }
+
+    @Override
+    public long getForwardFlops() {
+        int pairs = _multiChannel ? _inLength : 1;  // Filter applications summed into every output value
+        return 2L * getOutputElements() * pairs * _filterSize * _filterSize;
+    }
+
+    @Override
+    public long getBackwardFlops() {
+        return 2 * getForwardFlops() + getParameterCount();  // Filter and input gradients, then the update
+    }
+
+    @Override
+    public void copyParametersTo(double[] target, int offset) {
+        for (int f = 0; f < _filters.size(); f++) {
+            for (int x = 0; x < _filterSize; x++) {
+                System.arraycopy(_filters.get(f)[x], 0, target, offset + (f * _filterSize + x) * _filterSize, _filterSize);
+            }
+        }
+    }
+
+    @Override
+    public void copyParametersFrom(double[] source, int offset) {
+        for (int f = 0; f < _filters.size(); f++) {
+            for (int x = 0; x < _filterSize; x++) {
+                System.arraycopy(source, offset + (f * _filterSize + x) * _filterSize, _filters.get(f)[x], 0, _filterSize);
+            }
+        }
+    }
+
     @Override
     public int getOutputLength() {
-            return _filters.size() * _inLength;
+            return _multiChannel ? _filters.size() / _inLength : _filters.size() * _inLength;
     }
 
     @Override
@@ -352,4 +896,9 @@ public class ConvolutionLayer extends Layer {
     public int getOutputElements() {
             return getOutputColumns() * getOutputRows() * getOutputLength();
     }
+
+    @Override
+    public int getInputElements() {
+        return _inLength * _inRows * _inColumns;
+    }
 }
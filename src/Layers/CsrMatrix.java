@@ -0,0 +1,177 @@
+package Layers;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A sparse matrix in compressed sparse row (CSR) form: the non-zero values of every row are stored
+ * back to back together with their column indices, and {@code _rowStart} marks where each row begins.
+ * Memory and the cost of a matrix-vector product scale with the number of non-zero values.
+ */
+public final class CsrMatrix implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+    private final int _rows;  // Number of rows
+    private final int _columns;  // Number of columns
+    private final int[] _rowStart;  // Index of each row's first value; the last entry is the number of values
+    private final int[] _columnIndex;  // Column of every stored value
+    private final double[] _values;  // Stored values, row by row
+
+    private CsrMatrix(int rows, int columns, int[] rowStart, int[] columnIndex, double[] values) {
+        _rows = rows;
+        _columns = columns;
+        _rowStart = rowStart;
+        _columnIndex = columnIndex;
+        _values = values;
+    }
+
+    /**
+     * Compresses a dense matrix, keeping only values whose magnitude exceeds a threshold.
+     *
+     * @param dense The dense matrix.
+     * @param threshold Values with a magnitude at or below it are dropped.
+     * @return The compressed matrix.
+     */
+    public static CsrMatrix compress(double[][] dense, double threshold) {
+        int columns = dense.length == 0 ? 0 : dense[0].length;
+        int[] rowStart = new int[dense.length + 1];
+
+        for (int i = 0; i < dense.length; i++) {
+            int kept = 0;
+            for (double value : dense[i]) {
+                if (Math.abs(value) > threshold) {
+                    kept++;
+                }
+            }
+            rowStart[i + 1] = rowStart[i] + kept;
+        }
+
+        int[] columnIndex = new int[rowStart[dense.length]];
+        double[] values = new double[columnIndex.length];
+        int n = 0;
+
+        for (double[] row : dense) {
+            for (int j = 0; j < columns; j++) {
+                if (Math.abs(row[j]) > threshold) {
+                    columnIndex[n] = j;
+                    values[n++] = row[j];
+                }
+            }
+        }
+        return new CsrMatrix(dense.length, columns, rowStart, columnIndex, values);
+    }
+
+    /**
+     * Drops every stored value whose magnitude is at or below a threshold.
+     *
+     * @param threshold The magnitude threshold.
+     * @return A new matrix without the dropped values.
+     */
+    public CsrMatrix prune(double threshold) {
+        int[] rowStart = new int[_rows + 1];
+        int[] columnIndex = new int[_values.length];
+        double[] values = new double[_values.length];
+        int n = 0;
+
+        for (int i = 0; i < _rows; i++) {
+            for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                if (Math.abs(_values[k]) > threshold) {
+                    columnIndex[n] = _columnIndex[k];
+                    values[n++] = _values[k];
+                }
+            }
+            rowStart[i + 1] = n;
+        }
+        return new CsrMatrix(_rows, _columns, rowStart, Arrays.copyOf(columnIndex, n), Arrays.copyOf(values, n));
+    }
+
+    /**
+     * Adds one row, scaled by a value, to a dense vector: {@code z += x * row(i)}.
+     *
+     * @param i Index of the row.
+     * @param x Value to scale the row by.
+     * @param z Array holding the vector.
+     * @param zOffset Index of the vector's first element.
+     */
+    public void addRow(int i, double x, double[] z, int zOffset) {
+        for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+            z[zOffset + _columnIndex[k]] += x * _values[k];
+        }
+    }
+
+    /**
+     * Calculates the dot product of one row with a dense vector.
+     *
+     * @param i Index of the row.
+     * @param v Array holding the vector.
+     * @param vOffset Index of the vector's first element.
+     * @return The dot product.
+     */
+    public double rowDot(int i, double[] v, int vOffset) {
+        double sum = 0;
+        for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+            sum += _values[k] * v[vOffset + _columnIndex[k]];
+        }
+        return sum;
+    }
+
+    /**
+     * Copies the entries of a dense vector at the columns stored in one row, in storage order.
+     *
+     * @param i Index of the row.
+     * @param v Array holding the dense vector.
+     * @param target Array receiving the gathered entries.
+     * @param targetOffset Index of the first gathered entry.
+     */
+    public void gatherRow(int i, double[] v, double[] target, int targetOffset) {
+        for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+            target[targetOffset + k - _rowStart[i]] = v[_columnIndex[k]];
+        }
+    }
+
+    /**
+     * Expands the matrix back to dense form.
+     *
+     * @return A new dense matrix.
+     */
+    public double[][] toDense() {
+        double[][] dense = new double[_rows][_columns];
+        for (int i = 0; i < _rows; i++) {
+            for (int k = _rowStart[i]; k < _rowStart[i + 1]; k++) {
+                dense[i][_columnIndex[k]] = _values[k];
+            }
+        }
+        return dense;
+    }
+
+    public int getRowStart(int i) {
+        return _rowStart[i];
+    }
+
+    public int getRowLength(int i) {
+        return _rowStart[i + 1] - _rowStart[i];
+    }
+
+    /**
+     * Gets the stored values, row by row. Changing them changes the matrix; its structure is fixed.
+     *
+     * @return The backing array of values.
+     */
+    public double[] getValues() {
+        return _values;
+    }
+
+    public int getNonZeroCount() {
+        return _values.length;
+    }
+
+    /**
+     * Gets the memory taken by the matrix arrays.
+     *
+     * @return Size in bytes of the values, column indices and row starts.
+     */
+    public long getByteSize() {
+        return (long) _values.length * (Double.BYTES + Integer.BYTES) + (long) _rowStart.length * Integer.BYTES;
+    }
+}
@@ -1,6 +1,11 @@
 package Layers;
 
+import optimizers.Optimizer;
+import optimizers.SgdOptimizer;
+
 import java.io.Serial;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -8,15 +13,26 @@ public class FullyConnectedLayer extends Layer {
     @Serial
     private static final long serialVersionUID = 1L;
     private transient long SEED;  // Random seed for initializing weights
-    private final double leak = 0.01;  // Leak factor for Leaky ReLU activation
+    private final double leak = 0.01;  // Unused since the activation is a plain ReLU; kept so saved models still load
+    private static final double SPARSE_DENSITY_THRESHOLD = 0.5;  // Input density below which only non-zero rows are visited
 
-    private double[][] _weights;  // Weights of the layer
+    private double[][] _weights;  // Weights of the layer, or null while they are pruned or attached off-heap
+    private CsrMatrix _sparseWeights;  // Pruned weights in compressed sparse row form, one row per input neuron; null when dense
     private int _inLength;  // Number of input neurons
     private int _outLength;  // Number of output neurons
     private double _learningRate;  // Learning rate for weight updates
+    private boolean _linear;  // Whether the layer outputs its weighted sums without activation, e.g. as logits
+    private Optimizer _optimizer;  // Update rule for the weights, with its state; SGD when not set
+    private double[] _bias;  // Fixed bias of each output neuron, set when a batch norm layer is folded in; null for none
 
-    private double[] lastZ;  // Stores the weighted sum before activation
+    private double[] lastOut;  // Stores the output after activation for use in backpropagation
     private double[] lastX;  // Stores the input for use in backpropagation
+    private transient double[] _dLdZ;  // Scratch buffer for the gradient w.r.t the weighted sum
+    private transient double[] _rowGradient;  // Scratch buffer for the gradient of the weights kept in one pruned row
+    private transient SparsityMonitor _inputSparsity;  // Chooses between the sparse and dense kernels
+    private transient MemorySegment _weightSegment;  // Off-heap weights in row-major order, or null when on-heap
+    private transient long _weightIndex;  // Index of the first weight in the segment
+    private transient boolean _weightsConfined;  // Whether the segment can only be read by the thread that owns it
 
     /**
      * Constructor to initialize the FullyConnectedLayer with specified parameters.
@@ -36,6 +52,20 @@ public class FullyConnectedLayer extends Layer {
         setRandomWeights();  // Set random weights
     }
 
+    /**
+     * Constructor to initialize the FullyConnectedLayer, optionally without an activation function.
+     *
+     * @param _inLength Number of input neurons.
+     * @param _outLength Number of output neurons.
+     * @param SEED Random seed for weight initialization.
+     * @param learningRate Learning rate for the layer.
+     * @param linear Whether the layer outputs its weighted sums directly, as logits for a softmax head.
+     */
+    public FullyConnectedLayer(int _inLength, int _outLength, long SEED, double learningRate, boolean linear) {
+        this(_inLength, _outLength, SEED, learningRate);
+        this._linear = linear;
+    }
+
     /**
      * Performs the forward pass of the fully connected layer.
      *
@@ -45,27 +75,258 @@ public class FullyConnectedLayer extends Layer {
     public double[] fullyConnectedForwardPass(double[] input) {
         lastX = input;  // Store input for use in backpropagation
 
-        double[] z = new double[_outLength];  // Weighted sum before activation
         double[] out = new double[_outLength];  // Output after activation
 
         try {
-            for (int i = 0; i < _inLength; i++) {
-                for (int j = 0; j < _outLength; j++) {
-                    z[j] += input[i] * _weights[i][j];  // Calculate weighted sum
-                }
+            forward(input, 0, out, 0);
+            lastOut = out;  // Store output for use in backpropagation
+        } catch (Exception e) {
+            System.err.println("Error during forward pass: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        return out;
+    }
+
+    @Override
+    public void forward(double[] input, int inOffset, double[] output, int outOffset) {
+        weightedSum(input, inOffset, output, outOffset);
+        activate(output, outOffset, output, outOffset);
+    }
+
+    /**
+     * Calculates the weighted sum of the inputs for every output neuron, before activation.
+     *
+     * @param input Array holding the input vector.
+     * @param inOffset Index of the first input element.
+     * @param z Array receiving the weighted sums.
+     * @param zOffset Index of the first weighted sum.
+     */
+    public void weightedSum(double[] input, int inOffset, double[] z, int zOffset) {
+        if (_bias != null) {
+            System.arraycopy(_bias, 0, z, zOffset, _outLength);  // The sums start from the bias
+        } else {
+            Arrays.fill(z, zOffset, zOffset + _outLength, 0.0);
+        }
+
+        if (_inputSparsity == null) {
+            _inputSparsity = new SparsityMonitor(_inLength, SPARSE_DENSITY_THRESHOLD);
+        }
+
+        boolean sparseInput = _inputSparsity.select(input, inOffset);
+        int[] indices = _inputSparsity.getIndices();
+        int rows = sparseInput ? _inputSparsity.getCount() : _inLength;  // Sparse input: only rows with a non-zero input contribute
+
+        if (_sparseWeights != null) {
+            for (int n = 0; n < rows; n++) {
+                int i = sparseInput ? indices[n] : n;
+                addRow(i, input[inOffset + i], z, zOffset);
+            }
+            return;
+        }
+
+        // Output neurons are independent, so large layers split them across threads
+        int units = _weightSegment != null && _weightsConfined ? 1 : _outLength;  // Confined weights stay on the owner thread
+        IntraOpExecutor.forRange(units, 2L * rows * _outLength, (from, to) -> {
+            for (int n = 0; n < rows; n++) {
+                int i = sparseInput ? indices[n] : n;
+                addRow(i, input[inOffset + i], z, zOffset, from * _outLength / units, to * _outLength / units);
+            }
+        });
+    }
+
+    /**
+     * Updates previously calculated weighted sums after a single input changed, without revisiting
+     * the other inputs.
+     *
+     * @param inputIndex Index of the input that changed.
+     * @param delta New input value minus the old one.
+     * @param z Array holding the weighted sums to update.
+     * @param zOffset Index of the first weighted sum.
+     */
+    public void updateWeightedSum(int inputIndex, double delta, double[] z, int zOffset) {
+        addRow(inputIndex, delta, z, zOffset);
+    }
+
+    /**
+     * Adds the weight row of one input neuron, scaled by a value, to the weighted sums.
+     *
+     * @param i Index of the input neuron.
+     * @param x Value to scale the row by.
+     * @param z Array holding the weighted sums.
+     * @param zOffset Index of the first weighted sum.
+     */
+    private void addRow(int i, double x, double[] z, int zOffset) {
+        if (_sparseWeights != null) {
+            _sparseWeights.addRow(i, x, z, zOffset);  // Only the weights that survived pruning
+            return;
+        }
+        addRow(i, x, z, zOffset, 0, _outLength);
+    }
+
+    /**
+     * Adds a span of the dense weight row of one input neuron, scaled by a value, to the weighted sums.
+     *
+     * @param i Index of the input neuron.
+     * @param x Value to scale the row by.
+     * @param z Array holding the weighted sums.
+     * @param zOffset Index of the first weighted sum.
+     * @param from First output neuron to update.
+     * @param to Output neuron after the last one to update.
+     */
+    private void addRow(int i, double x, double[] z, int zOffset, int from, int to) {
+        if (_weightSegment != null) {
+            long rowStart = _weightIndex + (long) i * _outLength;
+
+            for (int j = from; j < to; j++) {
+                z[zOffset + j] += x * _weightSegment.getAtIndex(PARAMETER_LAYOUT, rowStart + j);  // Calculate weighted sum
             }
+            return;
+        }
+
+        double[] row = _weights[i];
+        for (int j = from; j < to; j++) {
+            z[zOffset + j] += x * row[j];  // Calculate weighted sum
+        }
+    }
+
+    /**
+     * Applies the activation function to weighted sums. Input and output may be the same region.
+     *
+     * @param z Array holding the weighted sums.
+     * @param zOffset Index of the first weighted sum.
+     * @param output Array receiving the activated outputs.
+     * @param outOffset Index of the first output.
+     */
+    public void activate(double[] z, int zOffset, double[] output, int outOffset) {
+        if (_linear) {
+            System.arraycopy(z, zOffset, output, outOffset, _outLength);  // Identity, a no-op when in place
+            return;
+        }
+
+        for (int j = 0; j < _outLength; j++) {
+            output[outOffset + j] = reLu(z[zOffset + j]);  // Apply ReLU activation function
+        }
+    }
 
-            lastZ = z;  // Store weighted sum for use in backpropagation
+    @Override
+    public void backward(double[] input, int inOffset, double[] output, int outOffset,
+                         double[] dLdO, int dLdOOffset, double[] dLdX, int dLdXOffset) {
+        if (_frozen && dLdX == null) {
+            return;  // Nothing to update and nothing to propagate
+        }
+        if (_weightSegment != null && !_frozen) {
+            throw new IllegalStateException("Off-heap weights are read-only; copy them back on-heap to train");
+        }
+        if (_dLdZ == null) {
+            _dLdZ = new double[_outLength];
+        }
+        Optimizer optimizer = _frozen ? null : getOptimizer();
+        if (optimizer != null) {
+            optimizer.beginStep();
+        }
 
+        if (_linear) {
+            System.arraycopy(dLdO, dLdOOffset, _dLdZ, 0, _outLength);  // The identity has derivative 1
+        } else {
+            // The ReLU output is positive exactly when its input was, so the derivative can be read off the output
             for (int j = 0; j < _outLength; j++) {
-                out[j] = reLu(z[j]);  // Apply ReLU activation function
+                _dLdZ[j] = dLdO[dLdOOffset + j] * derivativeReLu(output[outOffset + j]);
             }
-        } catch (Exception e) {
-            System.err.println("Error during forward pass: " + e.getMessage());
-            e.printStackTrace();
         }
 
-        return out;
+        // A stateless optimizer leaves rows with a zero input, and so a zero gradient, unchanged
+        boolean skipZeroRows = optimizer == null || optimizer.isStateless();
+
+        if (dLdX == null && skipZeroRows && _inputSparsity != null && _inputSparsity.isActive()) {
+            // No input gradient is needed and only rows with a non-zero input have a weight gradient
+            int[] indices = _inputSparsity.getIndices();
+            int count = _inputSparsity.getCount();
+
+            for (int n = 0; n < count; n++) {
+                updateRow(optimizer, indices[n], input[inOffset + indices[n]]);
+            }
+            return;
+        }
+
+        for (int k = 0; k < _inLength; k++) {
+            double dzdw = input[inOffset + k];  // Partial derivative of z w.r.t weight
+
+            if (dLdX != null) {
+                dLdX[dLdXOffset + k] = inputGradient(k);  // Uses the old weights, before the row is updated
+            }
+
+            if (optimizer != null && (dzdw != 0.0 || !skipZeroRows)) {
+                updateRow(optimizer, k, dzdw);  // A zero input leaves the whole row's gradient at zero
+            }
+        }
+    }
+
+    /**
+     * Calculates the gradient w.r.t one input from the gradient w.r.t the weighted sums.
+     *
+     * @param k Index of the input neuron.
+     * @return The gradient w.r.t the input.
+     */
+    private double inputGradient(int k) {
+        if (_sparseWeights != null) {
+            return _sparseWeights.rowDot(k, _dLdZ, 0);
+        }
+
+        double sum = 0;
+        if (_weightSegment != null) {
+            long rowStart = _weightIndex + (long) k * _outLength;
+
+            for (int j = 0; j < _outLength; j++) {
+                sum += _dLdZ[j] * _weightSegment.getAtIndex(PARAMETER_LAYOUT, rowStart + j);  // Frozen off-heap weights still pass gradients on
+            }
+            return sum;
+        }
+
+        double[] row = _weights[k];
+        for (int j = 0; j < _outLength; j++) {
+            sum += _dLdZ[j] * row[j];  // Accumulate gradient w.r.t input
+        }
+        return sum;
+    }
+
+    /**
+     * Applies the weight update for the row of a single input neuron.
+     *
+     * @param optimizer The optimizer applying the update.
+     * @param k Index of the input neuron.
+     * @param dzdw The input value, i.e. the partial derivative of z w.r.t each weight in the row.
+     */
+    private void updateRow(Optimizer optimizer, int k, double dzdw) {
+        if (_sparseWeights != null) {
+            // Pruned weights stay zero: only the kept weights of the row are updated, in storage order
+            if (_rowGradient == null) {
+                _rowGradient = new double[_outLength];
+            }
+            int start = _sparseWeights.getRowStart(k);
+            _sparseWeights.gatherRow(k, _dLdZ, _rowGradient, 0);
+            optimizer.update(_sparseWeights.getValues(), start, _rowGradient, 0, dzdw, _sparseWeights.getRowLength(k), start);
+            return;
+        }
+
+        optimizer.update(_weights[k], 0, _dLdZ, 0, dzdw, _outLength, k * _outLength);  // Update the weights
+    }
+
+    /**
+     * Gets the optimizer updating the weights, falling back to SGD for layers saved before optimizers existed.
+     *
+     * @return The bound optimizer.
+     */
+    private Optimizer getOptimizer() {
+        if (_optimizer == null) {
+            _optimizer = new SgdOptimizer().bind(getParameterCount(), _learningRate);
+        }
+        return _optimizer;
+    }
+
+    @Override
+    public void setOptimizer(Optimizer optimizer) {
+        _optimizer = optimizer.bind(getParameterCount(), _learningRate);
     }
 
     @Override
@@ -86,28 +347,13 @@ public class FullyConnectedLayer extends Layer {
 
     @Override
     public void backPropagation(double[] dLdO) {
-        double[] dLdX = new double[_inLength];  // Gradient w.r.t input of this layer
+        boolean propagate = hasTrainablePredecessor();  // Stop at the frozen boundary
+        double[] dLdX = propagate ? new double[_inLength] : null;  // Gradient w.r.t input of this layer
 
         try {
-            for (int k = 0; k < _inLength; k++) {
-                double dLdX_sum = 0;
-
-                for (int j = 0; j < _outLength; j++) {
-                    double dOdz = derivativeReLu(lastZ[j]);  // Derivative of activation function
-                    double dzdw = lastX[k];  // Partial derivative of z w.r.t weight
-                    double dZdX = _weights[k][j];  // Partial derivative of z w.r.t input
-
-                    double dLdw = dLdO[j] * dOdz * dzdw;  // Gradient w.r.t weight
+            backward(lastX, 0, lastOut, 0, dLdO, 0, dLdX, 0);
 
-                    _weights[k][j] -= dLdw * _learningRate;  // Update the weights
-
-                    dLdX_sum += dLdO[j] * dOdz * dZdX;  // Accumulate gradient w.r.t input
-                }
-
-                dLdX[k] = dLdX_sum;
-            }
-
-            if (_previousLayer != null) {
+            if (propagate) {
                 _previousLayer.backPropagation(dLdX);
             }
         } catch (Exception e) {
@@ -142,6 +388,195 @@ public class FullyConnectedLayer extends Layer {
         return _outLength;  // Return the number of output elements (neurons)
     }
 
+    @Override
+    public int getInputElements() {
+        return _inLength;
+    }
+
+    @Override
+    public int getParameterCount() {
+        return _sparseWeights != null ? _sparseWeights.getNonZeroCount() : _inLength * _outLength;  // Pruned weights are not parameters
+    }
+
+    @Override
+    public long getForwardFlops() {
+        return 2L * getParameterCount() + 2L * _outLength;  // Weighted sums, then bias and activation
+    }
+
+    @Override
+    public long getBackwardFlops() {
+        return 4L * getParameterCount() + 2L * _outLength;  // Weight update and input gradient
+    }
+
+    @Override
+    public void copyParametersTo(double[] target, int offset) {
+        if (_sparseWeights != null) {
+            System.arraycopy(_sparseWeights.getValues(), 0, target, offset, getParameterCount());
+            return;
+        }
+        if (_weightSegment != null) {
+            MemorySegment.copy(_weightSegment, PARAMETER_LAYOUT, _weightIndex * PARAMETER_LAYOUT.byteSize(), target, offset, getParameterCount());
+            return;
+        }
+
+        for (int i = 0; i < _inLength; i++) {
+            System.arraycopy(_weights[i], 0, target, offset + i * _outLength, _outLength);
+        }
+    }
+
+    @Override
+    public void copyParametersFrom(double[] source, int offset) {
+        if (_sparseWeights != null) {
+            System.arraycopy(source, offset, _sparseWeights.getValues(), 0, getParameterCount());
+            return;
+        }
+        if (_weights == null) {
+            _weights = new double[_inLength][_outLength];  // Bring detached weights back on-heap
+        }
+        _weightSegment = null;
+
+        for (int i = 0; i < _inLength; i++) {
+            System.arraycopy(source, offset + i * _outLength, _weights[i], 0, _outLength);
+        }
+    }
+
+    /**
+     * Reads the weights straight from a memory segment from now on and releases the on-heap copy.
+     * The layer can still predict, but training requires copying the weights back on-heap.
+     *
+     * @param segment Segment holding the weights in row-major order (input neuron, then output neuron).
+     * @param index Index of the first weight in the segment.
+     */
+    @Override
+    public void attachParameters(MemorySegment segment, long index) {
+        if (_sparseWeights != null) {
+            super.attachParameters(segment, index);  // Pruned weights are already small, so they are copied
+            return;
+        }
+        _weightSegment = segment;
+        _weightIndex = index;
+        _weightsConfined = !segment.isAccessibleBy(new Thread(() -> { }));  // No unstarted thread owns a shared segment
+        _weights = null;
+    }
+
+    /**
+     * Replaces every weighted sum z with scale * z + shift, e.g. to fold in a batch norm layer that
+     * follows a linear layer. The bias is fixed: training only updates the weights.
+     *
+     * @param scale Scale of each output neuron.
+     * @param shift Shift of each output neuron.
+     */
+    public void scaleOutputs(double[] scale, double[] shift) {
+        requireOnHeapWeights();
+        if (_bias == null) {
+            _bias = new double[_outLength];
+        }
+
+        for (double[] row : _weights) {
+            for (int j = 0; j < _outLength; j++) {
+                row[j] *= scale[j];
+            }
+        }
+        for (int j = 0; j < _outLength; j++) {
+            _bias[j] = _bias[j] * scale[j] + shift[j];
+        }
+    }
+
+    /**
+     * Absorbs a per-channel affine map applied to the input, x -> scale * x + shift, into the weights
+     * and bias, e.g. to fold in a batch norm layer that precedes this layer.
+     *
+     * @param scale Scale of each input channel.
+     * @param shift Shift of each input channel.
+     * @param plane Number of consecutive inputs in each channel.
+     */
+    public void absorbInputAffine(double[] scale, double[] shift, int plane) {
+        requireOnHeapWeights();
+        if (_bias == null) {
+            _bias = new double[_outLength];
+        }
+
+        for (int i = 0; i < _inLength; i++) {
+            int channel = i / plane;
+            double[] row = _weights[i];
+
+            for (int j = 0; j < _outLength; j++) {
+                _bias[j] += row[j] * shift[channel];  // Uses the weight before it is scaled
+                row[j] *= scale[channel];
+            }
+        }
+    }
+
+    /**
+     * Checks that the dense weights can be modified.
+     *
+     * @throws IllegalStateException If the weights are attached off-heap or pruned.
+     */
+    private void requireOnHeapWeights() {
+        if (_weightSegment != null) {
+            throw new IllegalStateException("Off-heap weights are read-only; copy them back on-heap to modify them");
+        }
+        if (_sparseWeights != null) {
+            throw new IllegalStateException("Pruned weights can only be updated by training");
+        }
+    }
+
+    /**
+     * Zeroes the weights with the smallest magnitudes until the given fraction of all weights is zero,
+     * and from then on stores only the remaining weights in compressed sparse row form. Forward and
+     * backward passes then visit only the kept weights, and training keeps the pruned ones at zero.
+     * Pruning an already pruned layer to a higher sparsity removes further weights.
+     *
+     * @param sparsity Target fraction of zero weights, between 0 and 1.
+     */
+    public void prune(double sparsity) {
+        if (_weightSegment != null) {
+            throw new IllegalStateException("Off-heap weights are read-only; copy them back on-heap to prune them");
+        }
+        int total = _inLength * _outLength;
+        int kept = getParameterCount();
+        int remove = (int) Math.round(sparsity * total) - (total - kept);  // Weights already pruned count towards the target
+        if (remove <= 0) {
+            return;
+        }
+
+        double[] magnitudes = new double[kept];
+        copyParametersTo(magnitudes, 0);
+        for (int i = 0; i < kept; i++) {
+            magnitudes[i] = Math.abs(magnitudes[i]);
+        }
+        Arrays.sort(magnitudes);
+        double threshold = magnitudes[Math.min(remove, kept) - 1];
+
+        _sparseWeights = _sparseWeights != null ? _sparseWeights.prune(threshold) : CsrMatrix.compress(_weights, threshold);
+        _weights = null;
+        if (_optimizer != null) {
+            _optimizer = _optimizer.bind(getParameterCount(), _learningRate);  // The state follows the kept weights
+        }
+    }
+
+    /**
+     * Gets the fraction of weights removed by pruning.
+     *
+     * @return Fraction of pruned weights, 0 for a dense layer.
+     */
+    public double getSparsity() {
+        return 1.0 - (double) getParameterCount() / ((double) _inLength * _outLength);
+    }
+
+    /**
+     * Gets the memory taken by the weights.
+     *
+     * @return Size in bytes of the dense weights, or of the compressed arrays once pruned.
+     */
+    public long getWeightByteSize() {
+        return _sparseWeights != null ? _sparseWeights.getByteSize() : (long) _inLength * _outLength * Double.BYTES;
+    }
+
+    public boolean isLinear() {
+        return _linear;
+    }
+
     /**
      * Sets the weights of the layer to random values using a Gaussian distribution.
      */
@@ -172,6 +607,6 @@ public class FullyConnectedLayer extends Layer {
      * @return The derivative of ReLU.
      */
     public double derivativeReLu(double input) {
-        return input > 0 ? 1 : leak;
+        return input > 0 ? 1 : 0;  // Matches the forward pass, which outputs exactly 0 for negative inputs
     }
 }
@@ -0,0 +1,190 @@
+package Layers;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Shared thread pool that splits a single layer's kernel across cores, to cut the latency of one
+ * prediction rather than to raise throughput.
+ *
+ * A kernel describes its work as a range of independent units, e.g. output channels, output rows or
+ * output neurons, together with an estimate of its floating point operations. The range is split
+ * into at most as many chunks as there are threads, and never into chunks cheaper than
+ * {@link #getMinTaskFlops()}, so small kernels stay serial instead of paying for the hand-off. The
+ * calling thread runs the first chunk itself and waits for the rest. Calls made from inside the
+ * pool run serially, so nested kernels cannot oversubscribe the cores. The pool has a worker for
+ * every core but one, so several threads can each run split kernels at once, e.g. the batch threads
+ * of a {@code network.ParallelScheduler}; workers are only started when needed.
+ *
+ * The parallelism set with {@link #setParallelism(int)} applies to the whole process. Code that wants
+ * its own, e.g. a scheduler sharing the cores between batch and kernel threads, runs its kernels
+ * through {@link #runWithParallelism(int, Runnable)}, which only affects the calling thread.
+ */
+public final class IntraOpExecutor {
+    private static final long DEFAULT_MIN_TASK_FLOPS = 65_536;  // Roughly the cost of waking a parked worker, in operations
+
+    private static volatile int _parallelism = Runtime.getRuntime().availableProcessors();  // Threads a kernel may use, counting the caller
+    private static final ThreadLocal<Integer> _threadParallelism = new ThreadLocal<>();  // Override for the current thread, or null
+    private static volatile long _minTaskFlops = DEFAULT_MIN_TASK_FLOPS;  // Smallest chunk worth handing to another thread
+    private static volatile ForkJoinPool _pool;  // Worker threads, created on first use
+    private static int _poolSize;  // Number of workers of the current pool
+
+    /**
+     * Work on a contiguous range of independent units.
+     */
+    @FunctionalInterface
+    public interface RangeTask {
+        /**
+         * Processes the units from one index up to, but excluding, another. Chunks of the same call
+         * may run at the same time and must write disjoint outputs.
+         *
+         * @param from First unit to process.
+         * @param to Unit after the last one to process.
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * Worker thread of a pool, marked so that kernels called from it run serially.
+     */
+    private static final class Worker extends ForkJoinWorkerThread {
+        private Worker(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            setName("intra-op-" + getPoolIndex());  // The index is only assigned once the thread is registered
+        }
+    }
+
+    private IntraOpExecutor() {
+    }
+
+    /**
+     * Runs a range of units, split across the pool when the work is large enough.
+     *
+     * @param units Number of units.
+     * @param flops Estimated operations of all units together.
+     * @param task Work on a range of units.
+     */
+    public static void forRange(int units, long flops, RangeTask task) {
+        Integer threadParallelism = _threadParallelism.get();
+        int parallelism = threadParallelism != null ? threadParallelism : _parallelism;
+        int chunks = (int) Math.min(Math.min(units, parallelism), flops / _minTaskFlops);
+        if (chunks <= 1 || isWorkerThread()) {
+            task.run(0, units);
+            return;
+        }
+
+        ForkJoinPool pool = getPool();
+        ForkJoinTask<?>[] forks = new ForkJoinTask<?>[chunks - 1];
+        for (int k = 1; k < chunks; k++) {
+            int from = (int) ((long) units * k / chunks);
+            int to = (int) ((long) units * (k + 1) / chunks);
+            forks[k - 1] = pool.submit(() -> task.run(from, to));
+        }
+
+        RuntimeException failure = null;
+        try {
+            task.run(0, units / chunks);  // The caller takes the first chunk instead of idling
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (ForkJoinTask<?> fork : forks) {
+            try {
+                fork.join();  // Every chunk finishes before the output is used, even after a failure
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Whether the current thread belongs to the pool, in which case kernels run serially.
+     *
+     * @return True on a worker thread.
+     */
+    private static boolean isWorkerThread() {
+        return Thread.currentThread() instanceof Worker;  // Also true for the workers of a replaced pool
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (_pool == null) {
+            _poolSize = Math.max(1, Math.max(_parallelism, Runtime.getRuntime().availableProcessors()) - 1);
+            _pool = new ForkJoinPool(_poolSize, Worker::new, null, false);
+        }
+        return _pool;
+    }
+
+    public static int getParallelism() {
+        return _parallelism;
+    }
+
+    /**
+     * Sets how many threads a single kernel may use, counting the calling thread. The pool is only
+     * replaced when it is too small. The old pool is not shut down, since a kernel running on
+     * another thread may still be submitting chunks to it; its workers exit on their own once they
+     * have been idle for the pool's keep-alive time.
+     *
+     * @param parallelism Number of threads; 1 keeps every kernel serial.
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        if (_pool != null && parallelism - 1 > _poolSize) {
+            _pool = null;  // The next kernel creates a larger pool
+        }
+        _parallelism = parallelism;
+    }
+
+    /**
+     * Runs a task whose kernels may use a given number of threads, counting the calling thread,
+     * without changing the parallelism of any other thread. Calls may nest; the previous value is
+     * restored when the task returns.
+     *
+     * @param parallelism Number of threads; 1 keeps every kernel of the task serial.
+     * @param task The task.
+     */
+    public static void runWithParallelism(int parallelism, Runnable task) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        Integer previous = _threadParallelism.get();
+        _threadParallelism.set(parallelism);
+        try {
+            task.run();
+        } finally {
+            if (previous == null) {
+                _threadParallelism.remove();
+            } else {
+                _threadParallelism.set(previous);
+            }
+        }
+    }
+
+    public static long getMinTaskFlops() {
+        return _minTaskFlops;
+    }
+
+    /**
+     * Sets the cost threshold: the smallest estimated work, in floating point operations, worth
+     * handing to another thread. A kernel cheaper than twice this runs serially.
+     *
+     * @param minTaskFlops Operations per chunk.
+     */
+    public static void setMinTaskFlops(long minTaskFlops) {
+        if (minTaskFlops < 1) {
+            throw new IllegalArgumentException("The cost threshold must be positive");
+        }
+        _minTaskFlops = minTaskFlops;
+    }
+}
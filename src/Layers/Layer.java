@@ -1,16 +1,24 @@
 package Layers;
 
+import optimizers.Optimizer;
+
 import java.io.Serial;
 import java.io.Serializable;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
 public abstract class Layer implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
+    // Layout of a parameter stored in a memory segment; little-endian so parameter files are portable
+    public static final ValueLayout.OfDouble PARAMETER_LAYOUT = ValueLayout.JAVA_DOUBLE.withOrder(ByteOrder.LITTLE_ENDIAN);
     // Pointers to the next and previous layers in the network
     protected Layer _nextLayer;
     protected Layer _previousLayer;
+    protected boolean _frozen;  // Whether the layer's parameters are excluded from training
 
     /**
      * Gets the next layer in the network.
@@ -48,6 +56,54 @@ public abstract class Layer implements Serializable {
         this._previousLayer = _previousLayer;
     }
 
+    public boolean isFrozen() {
+        return _frozen;
+    }
+
+    /**
+     * Freezes or unfreezes the layer. A frozen layer keeps its parameters fixed during training but
+     * still passes gradients through to earlier layers that are not frozen.
+     *
+     * @param frozen Whether the layer's parameters should be excluded from training.
+     */
+    public void setFrozen(boolean frozen) {
+        this._frozen = frozen;
+    }
+
+    /**
+     * Switches between training and inference behaviour, for layers whose forward pass differs
+     * between the two. The network switches to training for the duration of a training call. Does
+     * nothing by default.
+     *
+     * @param training Whether the following passes are part of training.
+     */
+    public void setTraining(boolean training) {
+    }
+
+    /**
+     * Whether training updates this layer's parameters.
+     *
+     * @return True if the layer has parameters and is not frozen.
+     */
+    public boolean isTrainable() {
+        return !_frozen && getParameterCount() > 0;
+    }
+
+    /**
+     * Whether any earlier layer is trainable, i.e. whether anybody consumes the gradient with
+     * respect to this layer's input. Backpropagation stops at the first layer where this is false.
+     *
+     * @return True if an earlier layer is trainable.
+     */
+    public boolean hasTrainablePredecessor() {
+        for (Layer layer = _previousLayer; layer != null; layer = layer._previousLayer) {
+            if (layer.isTrainable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // Abstract methods that must be implemented by subclasses
     public abstract double[] getOutput(List<double[][]> input);
     public abstract double[] getOutput(double[] input);
@@ -59,6 +115,128 @@ public abstract class Layer implements Serializable {
     public abstract int getOutputRows();
     public abstract int getOutputColumns();
     public abstract int getOutputElements();
+    public abstract int getInputElements();
+
+    /**
+     * Gets the number of trainable parameters in the layer.
+     *
+     * @return Number of parameters, 0 for layers without any.
+     */
+    public abstract int getParameterCount();
+
+    /**
+     * Estimates the floating point operations of one forward pass, counting a multiply-add as two.
+     *
+     * @return Operations per sample.
+     */
+    public abstract long getForwardFlops();
+
+    /**
+     * Estimates the floating point operations of one backward pass that updates the parameters and
+     * propagates the gradient to the input, counting a multiply-add as two.
+     *
+     * @return Operations per sample.
+     */
+    public abstract long getBackwardFlops();
+
+    /**
+     * Sets the rule used to update this layer's parameters. The optimizer is bound to the layer, so
+     * the same configured instance can be passed to every layer. Layers without parameters ignore it.
+     *
+     * @param optimizer The configured optimizer.
+     */
+    public void setOptimizer(Optimizer optimizer) {
+    }
+
+    /**
+     * Copies the layer's parameters into a flat array, in the same order that {@link #getParameterCount()} counts them.
+     *
+     * @param target Array receiving the parameters.
+     * @param offset Index of the first parameter in the array.
+     */
+    public void copyParametersTo(double[] target, int offset) {
+    }
+
+    /**
+     * Replaces the layer's parameters with values from a flat array in the order of {@link #copyParametersTo}.
+     *
+     * @param source Array holding the parameters.
+     * @param offset Index of the first parameter in the array.
+     */
+    public void copyParametersFrom(double[] source, int offset) {
+    }
+
+    /**
+     * Gets the number of values of state the layer learns outside its trainable parameters, such as
+     * the moving statistics of batch norm. Copies, snapshots and parameter exchanges must carry this
+     * state along with the parameters, or the copy computes a different function.
+     *
+     * @return Number of state values, 0 for layers without any.
+     */
+    public int getStateCount() {
+        return 0;
+    }
+
+    /**
+     * Copies the layer's state into a flat array, in the same order that {@link #getStateCount()} counts it.
+     *
+     * @param target Array receiving the state.
+     * @param offset Index of the first state value in the array.
+     */
+    public void copyStateTo(double[] target, int offset) {
+    }
+
+    /**
+     * Replaces the layer's state with values from a flat array in the order of {@link #copyStateTo}.
+     *
+     * @param source Array holding the state.
+     * @param offset Index of the first state value in the array.
+     */
+    public void copyStateFrom(double[] source, int offset) {
+    }
+
+    /**
+     * Takes the layer's parameters from a memory segment, e.g. a memory-mapped parameter file, in
+     * the order of {@link #copyParametersTo}. By default the parameters are copied on-heap; layers
+     * with large parameter sets read them from the segment in place instead.
+     *
+     * @param segment Segment holding the parameters as little-endian doubles.
+     * @param index Index of the layer's first parameter in the segment.
+     */
+    public void attachParameters(MemorySegment segment, long index) {
+        double[] values = new double[getParameterCount()];
+        MemorySegment.copy(segment, PARAMETER_LAYOUT, index * PARAMETER_LAYOUT.byteSize(), values, 0, values.length);
+        copyParametersFrom(values, 0);
+    }
+
+    /**
+     * Flat forward kernel used by the compiled execution plan. Reads this layer's input from
+     * {@code input} starting at {@code inOffset} and writes {@link #getOutputElements()} values
+     * into {@code output} starting at {@code outOffset}. Implementations must not allocate.
+     *
+     * @param input Array holding the flattened input (channel, row, column order).
+     * @param inOffset Index of the first input element.
+     * @param output Array receiving the flattened output.
+     * @param outOffset Index of the first output element.
+     */
+    public abstract void forward(double[] input, int inOffset, double[] output, int outOffset);
+
+    /**
+     * Flat backward kernel used by the compiled execution plan. Expects the input and output of
+     * the matching {@link #forward} call to still be in place, updates this layer's parameters and,
+     * when {@code dLdX} is not null, writes the gradient with respect to the input.
+     *
+     * @param input Array holding the input of the last forward call.
+     * @param inOffset Index of the first input element.
+     * @param output Array holding the output of the last forward call.
+     * @param outOffset Index of the first output element.
+     * @param dLdO Array holding the gradient with respect to the output.
+     * @param dLdOOffset Index of the first output gradient element.
+     * @param dLdX Array receiving the gradient with respect to the input, or null to skip it.
+     * @param dLdXOffset Index of the first input gradient element.
+     */
+    public abstract void backward(double[] input, int inOffset, double[] output, int outOffset,
+                                  double[] dLdO, int dLdOOffset, double[] dLdX, int dLdXOffset);
 
     /**
      * Converts a list of matrices into a single vector.
@@ -2,6 +2,7 @@ package Layers;
 
 import java.io.Serial;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class MaxPoolLayer extends Layer {
@@ -16,6 +17,7 @@ public class MaxPoolLayer extends Layer {
 
     List<int[][]> _lastMaxRow;    // Stores the row indices of max values during pooling
     List<int[][]> _lastMaxColumn; // Stores the column indices of max values during pooling
+    private transient int[] _lastMaxIndex; // Flat input index of each max value, used by the flat kernels
 
     /**
      * Constructor to initialize the MaxPoolLayer with specified parameters.
@@ -64,19 +66,23 @@ public class MaxPoolLayer extends Layer {
         int[][] maxColumn = new int[getOutputRows()][getOutputColumns()];
 
         try {
-            for (int r = 0; r < getOutputRows(); r += _stepSize) {
-                for (int c = 0; c < getOutputColumns(); c += _stepSize) {
+            for (int r = 0; r < getOutputRows(); r++) {
+                for (int c = 0; c < getOutputColumns(); c++) {
 
                     double max = Double.NEGATIVE_INFINITY;  // Initialize max with the smallest possible value
                     maxRow[r][c] = -1;
                     maxColumn[r][c] = -1;
 
+                    // Each output cell covers the window starting at (r * step, c * step) in the input
+                    int rowStart = r * _stepSize;
+                    int columnStart = c * _stepSize;
+
                     for (int x = 0; x < _windowSize; x++) {
                         for (int y = 0; y < _windowSize; y++) {
-                            if (r + x < input.length && c + y < input[0].length && max < input[r + x][c + y]) {
-                                max = input[r + x][c + y];
-                                maxRow[r][c] = r + x;
-                                maxColumn[r][c] = c + y;
+                            if (rowStart + x < input.length && columnStart + y < input[0].length && max < input[rowStart + x][columnStart + y]) {
+                                max = input[rowStart + x][columnStart + y];
+                                maxRow[r][c] = rowStart + x;
+                                maxColumn[r][c] = columnStart + y;
                             }
                         }
                     }
@@ -116,6 +122,10 @@ public class MaxPoolLayer extends Layer {
 
     @Override
     public void backPropagation(List<double[][]> dLdO) {
+        if (!hasTrainablePredecessor()) {
+            return;  // Nobody consumes the gradient w.r.t the input
+        }
+
         try {
             List<double[][]> dXdL = new ArrayList<>();
             int l = 0;
@@ -148,6 +158,110 @@ public class MaxPoolLayer extends Layer {
         }
     }
 
+    /**
+     * Gets the flat argmax buffer shared by the forward and backward kernels, allocating it on first use.
+     * Each entry is the index of an output cell's max value relative to the start of the input.
+     *
+     * @return The argmax buffer.
+     */
+    int[] getMaxIndexBuffer() {
+        if (_lastMaxIndex == null) {
+            _lastMaxIndex = new int[getOutputElements()];
+        }
+        return _lastMaxIndex;
+    }
+
+    int getWindowSize() {
+        return _windowSize;
+    }
+
+    int getStepSize() {
+        return _stepSize;
+    }
+
+    @Override
+    public void forward(double[] input, int inOffset, double[] output, int outOffset) {
+        poolRegion(input, inOffset, output, outOffset, 0, getOutputRows(), 0, getOutputColumns());
+    }
+
+    /**
+     * Maps a changed region of the input to the region of the output that depends on it.
+     *
+     * @param inputRegion Changed input region as {rowStart, rowEnd, columnStart, columnEnd}, ends exclusive.
+     * @return The output region whose windows overlap the input region, in the same form.
+     */
+    public int[] getAffectedOutputRegion(int[] inputRegion) {
+        return new int[]{
+                Math.max(0, Math.ceilDiv(inputRegion[0] - _windowSize + 1, _stepSize)),
+                Math.min(getOutputRows(), Math.floorDiv(inputRegion[1] - 1, _stepSize) + 1),
+                Math.max(0, Math.ceilDiv(inputRegion[2] - _windowSize + 1, _stepSize)),
+                Math.min(getOutputColumns(), Math.floorDiv(inputRegion[3] - 1, _stepSize) + 1)
+        };
+    }
+
+    /**
+     * Recomputes only one region of the output, in every channel, leaving the rest untouched.
+     *
+     * @param input Array holding the flattened input.
+     * @param inOffset Index of the first input element.
+     * @param output Array holding the flattened output of an earlier forward pass.
+     * @param outOffset Index of the first output element.
+     * @param outputRegion Output region to recompute as {rowStart, rowEnd, columnStart, columnEnd}, ends exclusive.
+     */
+    public void forwardRegion(double[] input, int inOffset, double[] output, int outOffset, int[] outputRegion) {
+        poolRegion(input, inOffset, output, outOffset, outputRegion[0], outputRegion[1], outputRegion[2], outputRegion[3]);
+    }
+
+    private void poolRegion(double[] input, int inOffset, double[] output, int outOffset,
+                            int rowStart, int rowEnd, int columnStart, int columnEnd) {
+        int outRows = getOutputRows();
+        int outColumns = getOutputColumns();
+        int inPlane = _inRows * _inColumns;
+        int[] maxIndexBuffer = getMaxIndexBuffer();
+
+        for (int l = 0; l < _inLength; l++) {
+            int plane = l * inPlane;
+
+            for (int r = rowStart; r < rowEnd; r++) {
+                for (int c = columnStart; c < columnEnd; c++) {
+                    int o = (l * outRows + r) * outColumns + c;
+                    int windowStart = plane + r * _stepSize * _inColumns + c * _stepSize;
+                    double max = Double.NEGATIVE_INFINITY;
+                    int maxIndex = windowStart;
+
+                    for (int x = 0; x < _windowSize; x++) {
+                        int rowIndex = windowStart + x * _inColumns;
+
+                        for (int y = 0; y < _windowSize; y++) {
+                            double value = input[inOffset + rowIndex + y];
+                            if (value > max) {
+                                max = value;
+                                maxIndex = rowIndex + y;
+                            }
+                        }
+                    }
+
+                    output[outOffset + o] = max;
+                    maxIndexBuffer[o] = maxIndex;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void backward(double[] input, int inOffset, double[] output, int outOffset,
+                         double[] dLdO, int dLdOOffset, double[] dLdX, int dLdXOffset) {
+        if (dLdX == null) {
+            return;  // Pooling has no parameters, so there is nothing to do without an input gradient
+        }
+
+        Arrays.fill(dLdX, dLdXOffset, dLdXOffset + getInputElements(), 0.0);
+
+        for (int o = 0; o < _lastMaxIndex.length; o++) {
+            dLdX[dLdXOffset + _lastMaxIndex[o]] += dLdO[dLdOOffset + o];
+        }
+    }
+
     @Override
     public int getOutputLength() {
         return _inLength;
@@ -167,4 +281,24 @@ public class MaxPoolLayer extends Layer {
     public int getOutputElements() {
             return _inLength * getOutputRows() * getOutputColumns();
     }
+
+    @Override
+    public int getInputElements() {
+        return _inLength * _inRows * _inColumns;
+    }
+
+    @Override
+    public int getParameterCount() {
+        return 0;  // Pooling has nothing to train
+    }
+
+    @Override
+    public long getForwardFlops() {
+        return (long) getOutputElements() * _windowSize * _windowSize;  // One comparison per window element
+    }
+
+    @Override
+    public long getBackwardFlops() {
+        return getOutputElements();  // Each gradient is added at its max position
+    }
 }
@@ -0,0 +1,89 @@
+package Layers;
+
+/**
+ * Tracks how dense a layer's input is and decides, call by call, whether the sparse kernels
+ * should handle it.
+ *
+ * While the running density is below the threshold every call gathers the indices of the
+ * non-zero inputs, which is exactly the work the sparse kernels need anyway. Once inputs turn
+ * dense the gather is skipped and only repeated every {@link #PROBE_INTERVAL} calls, so a dense
+ * input costs next to nothing extra while a switch back to sparse input is still picked up.
+ */
+final class SparsityMonitor {
+    private static final int PROBE_INTERVAL = 32;  // Dense calls between two density probes
+    private static final double SMOOTHING = 0.1;  // Weight of the newest measurement in the running density
+
+    private final double _threshold;  // Density below which the sparse kernels win
+    private final int[] _indices;  // Indices of the non-zero inputs of the last gathered call
+    private int _count;  // Number of valid entries in _indices
+    private double _density = Double.NaN;  // Running density, unknown until the first call
+    private int _callsSinceProbe;  // Dense calls since the density was last measured
+    private boolean _active;  // Whether the last call selected the sparse kernels
+
+    /**
+     * Constructor to initialize the monitor for inputs of a fixed length.
+     *
+     * @param length Number of input elements.
+     * @param threshold Density below which the sparse kernels should be used.
+     */
+    SparsityMonitor(int length, double threshold) {
+        _indices = new int[length];
+        _threshold = threshold;
+    }
+
+    /**
+     * Decides whether the sparse kernels should handle this input. When it returns true,
+     * {@link #getIndices()} and {@link #getCount()} describe the non-zero entries in ascending order.
+     *
+     * @param values Array holding the input.
+     * @param offset Index of the first input element.
+     * @return True when the sparse kernels should be used for this input.
+     */
+    boolean select(double[] values, int offset) {
+        if (_density >= _threshold && ++_callsSinceProbe < PROBE_INTERVAL) {
+            _active = false;
+            return false;  // Still dense, and no probe is due yet
+        }
+        _callsSinceProbe = 0;
+
+        int count = 0;
+        for (int i = 0; i < _indices.length; i++) {
+            if (values[offset + i] != 0.0) {
+                _indices[count++] = i;
+            }
+        }
+        _count = count;
+
+        double measured = (double) count / _indices.length;
+        _density = Double.isNaN(_density) ? measured : _density + SMOOTHING * (measured - _density);
+        _active = measured < _threshold;
+        return _active;
+    }
+
+    /**
+     * Whether the last call to {@link #select} chose the sparse kernels, in which case the gathered
+     * indices still describe the input that was used.
+     *
+     * @return True when the last input was handled sparsely.
+     */
+    boolean isActive() {
+        return _active;
+    }
+
+    int[] getIndices() {
+        return _indices;
+    }
+
+    int getCount() {
+        return _count;
+    }
+
+    /**
+     * Gets the running density of the inputs seen so far.
+     *
+     * @return Fraction of non-zero inputs, or NaN before the first call.
+     */
+    double getDensity() {
+        return _density;
+    }
+}
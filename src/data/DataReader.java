@@ -69,4 +69,35 @@ public class DataReader implements Serializable {
 
         return images;
     }
+
+    /**
+     * Parses a single CSV line into an image, for reading files too large to hold in memory. The
+     * line holds the label followed by the pixel values, or only the pixel values for unlabelled data.
+     *
+     * @param line One line of the CSV file.
+     * @return The image, with a label of -1 when the line has none.
+     * @throws IllegalArgumentException If the line does not hold one number per pixel, with or without a label.
+     */
+    public Image parseLine(String line) {
+        String[] lineItems = line.split(",");
+        int pixels = rows * columns;
+        if (lineItems.length != pixels && lineItems.length != pixels + 1) {
+            throw new IllegalArgumentException("expected " + pixels + " pixel values, with or without a label, but got " + lineItems.length + " values");
+        }
+
+        double[][] data = new double[rows][columns];
+        int i = 0;
+
+        try {
+            int label = lineItems.length == pixels + 1 ? Integer.parseInt(lineItems[i++].trim()) : -1;
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < columns; col++) {
+                    data[row][col] = Double.parseDouble(lineItems[i++]);
+                }
+            }
+            return new Image(data, label);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value " + (i - 1) + " is not a number", e);
+        }
+    }
 }
@@ -6,6 +6,7 @@ public class Image implements Serializable {
     private static final long serialVersionUID = 1L;
     private double[][] data;  // 2D array to hold the pixel data for the image
     private int label;  // Label representing the class of the image (e.g., digit 0-9)
+    private double[][][] channels;  // Every channel of a multi-channel image, or null for a single channel
 
     /**
      * Constructor to initialize the Image object with data and label.
@@ -19,7 +20,39 @@ public class Image implements Serializable {
     }
 
     /**
-     * Gets the pixel data of the image.
+     * Constructor to initialize a multi-channel Image object (e.g. the red, green and blue planes of
+     * a color image) with data and label.
+     *
+     * @param channels Array of 2D pixel arrays, one for each channel, all of the same size.
+     * @param label Integer label representing the class of the image.
+     */
+    public Image(double[][][] channels, int label) {
+        this.data = channels[0];
+        this.channels = channels.length > 1 ? channels : null;
+        this.label = label;
+    }
+
+    /**
+     * Gets the number of channels in the image.
+     *
+     * @return Number of channels.
+     */
+    public int getChannelCount() {
+        return channels == null ? 1 : channels.length;
+    }
+
+    /**
+     * Gets the pixel data of a single channel.
+     *
+     * @param channel Index of the channel.
+     * @return 2D array of pixel values for the channel.
+     */
+    public double[][] getChannel(int channel) {
+        return channels == null ? data : channels[channel];
+    }
+
+    /**
+     * Gets the pixel data of the image. For multi-channel images this is the first channel.
      *
      * @return 2D array of pixel values.
      */
@@ -0,0 +1,102 @@
+package data;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Converts decoded pictures into the grayscale pixel grids the network reads, with one value per
+ * pixel from 0 (black) to 255 (white), the scale of the MNIST CSV files.
+ */
+public final class ImageConverter {
+
+    private ImageConverter() {
+    }
+
+    /**
+     * Gets the gray value of a packed RGB pixel from its luminance.
+     *
+     * @param rgb Pixel in the default RGB color model, as returned by {@link BufferedImage#getRGB(int, int)}.
+     * @return Gray value from 0 to 255; for a gray pixel, its level.
+     */
+    public static double grayValue(int rgb) {
+        int red = (rgb >> 16) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int blue = rgb & 0xFF;
+        return 0.299 * red + 0.587 * green + 0.114 * blue;
+    }
+
+    /**
+     * Resizes a picture to the size of a target grid and writes its gray values into the grid. When
+     * shrinking, every target pixel is the average of the source pixels it covers; when enlarging, it
+     * is the nearest source pixel. A picture with a light background, i.e. a mean above half, is
+     * inverted, since the network was trained on light digits on a dark background.
+     *
+     * @param source Decoded picture of any size.
+     * @param target Grid receiving the gray values; its size decides the output size.
+     * @param rowBuffer Reusable buffer for one source row, or null to allocate one.
+     * @return The row buffer, large enough for this picture, for the next call.
+     */
+    public static int[] toGrayscale(BufferedImage source, double[][] target, int[] rowBuffer) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int rows = target.length;
+        int columns = target[0].length;
+        if (rowBuffer == null || rowBuffer.length < width) {
+            rowBuffer = new int[width];
+        }
+
+        if (width >= columns && height >= rows) {
+            for (double[] row : target) {
+                Arrays.fill(row, 0.0);
+            }
+            // Every source pixel adds to the one target pixel it falls into
+            for (int y = 0; y < height; y++) {
+                source.getRGB(0, y, width, 1, rowBuffer, 0, width);
+                double[] targetRow = target[(int) ((long) y * rows / height)];
+                for (int x = 0; x < width; x++) {
+                    targetRow[(int) ((long) x * columns / width)] += grayValue(rowBuffer[x]);
+                }
+            }
+            for (int r = 0; r < rows; r++) {
+                long sourceRows = coveredCount(r, rows, height);
+                for (int c = 0; c < columns; c++) {
+                    target[r][c] /= sourceRows * coveredCount(c, columns, width);
+                }
+            }
+        } else {
+            for (int r = 0; r < rows; r++) {
+                source.getRGB(0, (int) ((long) r * height / rows), width, 1, rowBuffer, 0, width);
+                for (int c = 0; c < columns; c++) {
+                    target[r][c] = grayValue(rowBuffer[(int) ((long) c * width / columns)]);
+                }
+            }
+        }
+
+        double sum = 0;
+        for (double[] row : target) {
+            for (double value : row) {
+                sum += value;
+            }
+        }
+        if (sum > 127.5 * rows * columns) {
+            for (double[] row : target) {
+                for (int c = 0; c < columns; c++) {
+                    row[c] = 255 - row[c];
+                }
+            }
+        }
+        return rowBuffer;
+    }
+
+    /**
+     * Counts the source indices that map to a target index when a length is shrunk.
+     *
+     * @param index Target index.
+     * @param targetLength Target length.
+     * @param sourceLength Source length, at least the target length.
+     * @return Number of source indices i with i * targetLength / sourceLength == index.
+     */
+    private static long coveredCount(int index, int targetLength, int sourceLength) {
+        return Math.ceilDiv((long) (index + 1) * sourceLength, targetLength) - Math.ceilDiv((long) index * sourceLength, targetLength);
+    }
+}
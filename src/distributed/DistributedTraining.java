@@ -0,0 +1,99 @@
+package distributed;
+
+import data.DataReader;
+import data.Image;
+import network.Main;
+import network.NeuralNetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs data-parallel training on one machine: a {@link ParameterServer} in this JVM and one
+ * {@link TrainingWorker} process per shard, all talking over the loopback interface.
+ */
+public class DistributedTraining {
+
+    /**
+     * Starts the server and the worker processes, waits for training to finish, then tests and saves the result.
+     *
+     * @param args Initial model path, training CSV path, test CSV path, output model path, then
+     *             optionally worker count (default 4), staleness bound (default 0, synchronous),
+     *             epochs (default 1) and images per step (default 64).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String modelPath = args[0];
+        String trainPath = args[1];
+        String testPath = args[2];
+        String outputPath = args[3];
+        int workers = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        int staleness = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        int epochs = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+        int stepImages = args.length > 7 ? Integer.parseInt(args[7]) : 64;
+
+        NeuralNetwork network = Main.loadNetwork(modelPath);
+        if (network == null) {
+            return;  // Loading already reported the error
+        }
+
+        ParameterServer server = new ParameterServer(network.getParameters(), workers, staleness, 0);
+        server.start();
+        System.out.println("Parameter server on port " + server.getPort() + ", " + workers + " workers, "
+                + (staleness == 0 ? "synchronous" : "staleness bound " + staleness));
+
+        List<Process> processes = new ArrayList<>();
+        for (int id = 0; id < workers; id++) {
+            Process process = startWorker(server.getPort(), id, workers, modelPath, trainPath, epochs, stepImages);
+            int worker = id;
+            process.onExit().thenRun(() -> server.workerExited(worker));  // A worker that dies before connecting is not waited for
+            processes.add(process);
+        }
+
+        long start = System.nanoTime();
+        server.awaitCompletion();
+        server.stop();  // Also turns away a worker that connects after it was given up on
+        for (Process process : processes) {
+            if (process.waitFor() != 0) {
+                System.err.println("Worker process exited with status " + process.exitValue());
+            }
+        }
+
+        System.out.println("Trained in " + (System.nanoTime() - start) / 1_000_000 + " ms: " + server.getReport());
+
+        network.setParameters(server.getParameters());
+        double[] state = server.getState();
+        if (state != null) {
+            network.setState(state);  // Batch norm statistics averaged over the workers' shards
+        } else if (network.getStateCount() > 0) {
+            System.err.println("No worker finished, so the learned state, e.g. batch norm statistics, is not updated");
+        }
+        List<Image> imagesTest = new DataReader().readData(testPath);
+        System.out.println("Success rate: " + network.test(imagesTest));
+        Main.saveNetwork(network, outputPath);
+    }
+
+    /**
+     * Launches a worker in a new JVM with the same class path and JVM options as this one.
+     */
+    private static Process startWorker(int port, int id, int workers, String modelPath, String trainPath,
+                                       int epochs, int stepImages) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TrainingWorker.class.getName());
+        command.add(String.valueOf(port));
+        command.add(String.valueOf(id));
+        command.add(String.valueOf(workers));
+        command.add(modelPath);
+        command.add(trainPath);
+        command.add(String.valueOf(epochs));
+        command.add(String.valueOf(stepImages));
+
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+}
@@ -0,0 +1,75 @@
+package distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+/**
+ * One end of the TCP connection between a {@link TrainingWorker} and the {@link ParameterServer}.
+ * Parameter vectors are sent as raw big-endian doubles, converted in bulk through a reusable buffer.
+ */
+final class ParameterChannel implements AutoCloseable {
+    static final byte PUSH = 1;  // Worker sends a parameter delta and asks for the current parameters
+    static final byte DONE = 2;  // Worker has finished training and sends its learned state
+
+    private static final int CHUNK_DOUBLES = 8192;  // Doubles converted per bulk copy
+
+    private final Socket _socket;
+    private final DataInputStream _in;
+    private final DataOutputStream _out;
+    private final ByteBuffer _chunk = ByteBuffer.allocate(CHUNK_DOUBLES * Double.BYTES);  // Conversion buffer
+    private final DoubleBuffer _chunkDoubles = _chunk.asDoubleBuffer();
+
+    ParameterChannel(Socket socket) throws IOException {
+        _socket = socket;
+        _socket.setTcpNoDelay(true);
+        _in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        _out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+    }
+
+    DataInputStream in() {
+        return _in;
+    }
+
+    DataOutputStream out() {
+        return _out;
+    }
+
+    /**
+     * Writes a parameter vector. The stream is not flushed.
+     *
+     * @param values The values to write.
+     */
+    void writeDoubles(double[] values) throws IOException {
+        for (int start = 0; start < values.length; start += CHUNK_DOUBLES) {
+            int count = Math.min(CHUNK_DOUBLES, values.length - start);
+            _chunkDoubles.clear();
+            _chunkDoubles.put(values, start, count);
+            _out.write(_chunk.array(), 0, count * Double.BYTES);
+        }
+    }
+
+    /**
+     * Reads a parameter vector into an existing array.
+     *
+     * @param values Array receiving the values; its length is the number of values read.
+     */
+    void readDoubles(double[] values) throws IOException {
+        for (int start = 0; start < values.length; start += CHUNK_DOUBLES) {
+            int count = Math.min(CHUNK_DOUBLES, values.length - start);
+            _in.readFully(_chunk.array(), 0, count * Double.BYTES);
+            _chunkDoubles.clear();
+            _chunkDoubles.get(values, start, count);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _socket.close();
+    }
+}
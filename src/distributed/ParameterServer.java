@@ -0,0 +1,388 @@
+package distributed;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holds the global parameters of a data-parallel training run and merges the updates of its workers.
+ *
+ * Every worker trains on its own shard and, after each step, pushes the change its step made to the
+ * parameters. The server adds the average of those changes to the global parameters and sends the
+ * result back. How far workers may drift apart is set by the staleness bound:
+ * <ul>
+ *     <li>0 runs synchronously: changes are buffered until every active worker has pushed the same
+ *     step, then applied together, so every worker starts each step from identical parameters.</li>
+ *     <li>n &gt; 0 applies every change as soon as it arrives, and a worker only waits when it is
+ *     more than n steps ahead of the slowest active worker (stale synchronous parallel).</li>
+ * </ul>
+ * Averaging means each step moves the parameters about as far as one worker's step would, so
+ * layer learning rates usually need to grow with the worker count to keep the same progress per image.
+ * Workers report how long they spent computing and communicating, so the server can report the
+ * communication overhead per step. The server only binds to the loopback address.
+ *
+ * Learned state outside the parameters, such as the moving statistics of batch norm, is gathered by
+ * every worker on its own shard. Workers send it when they are done, and {@link #getState()}
+ * averages it, which estimates the statistics of the whole data set.
+ *
+ * A worker that disconnects, or whose process is reported gone through {@link #workerExited(int)},
+ * counts as finished, so the others stop waiting for it. Workers that have not connected within the
+ * {@link #setAcceptTimeout(long) accept timeout} are given up on the same way.
+ */
+public class ParameterServer {
+    private final double[] _parameters;  // Global parameters
+    private final double[] _pendingSum;  // Sum of buffered changes in synchronous mode
+    private final int _workers;  // Number of workers taking part
+    private final int _staleness;  // Steps a worker may run ahead of the slowest one, 0 for synchronous
+    private final ServerSocket _socket;  // Accepts worker connections
+    private final ExecutorService _handlers = Executors.newVirtualThreadPerTaskExecutor();  // One handler per worker
+    private long _acceptTimeoutMillis = 120_000;  // Time every worker has to connect after start()
+
+    // Guarded by this
+    private final long[] _clock;  // Steps pushed by each worker
+    private final boolean[] _joined;  // Whether each worker has connected
+    private final boolean[] _active;  // Whether each worker is still training
+    private final boolean[] _done;  // Whether each worker has finished, failed or been given up on
+    private int _finished;  // Workers that are done
+    private int _pendingCount;  // Changes buffered for the current synchronous step
+    private long _steps;  // Steps pushed over all workers
+    private long _computeNanos;  // Time workers spent training
+    private long _commNanos;  // Time workers spent waiting for the server
+    private double[] _stateSum;  // Sum of the learned state sent by finished workers, null before the first
+    private int _stateCount;  // Number of workers that sent their learned state
+
+    /**
+     * Constructor to initialize the server and open its socket. Call {@link #start()} to accept workers.
+     *
+     * @param initialParameters Parameters every worker starts from.
+     * @param workers Number of workers taking part.
+     * @param staleness Steps a worker may run ahead of the slowest one, 0 for synchronous training.
+     * @param port Port to listen on, or 0 to pick a free one.
+     * @throws IOException If the socket cannot be opened.
+     */
+    public ParameterServer(double[] initialParameters, int workers, int staleness, int port) throws IOException {
+        _parameters = initialParameters.clone();
+        _pendingSum = new double[initialParameters.length];
+        _workers = workers;
+        _staleness = staleness;
+        _clock = new long[workers];
+        _joined = new boolean[workers];
+        _active = new boolean[workers];
+        _done = new boolean[workers];
+        _socket = new ServerSocket(port, workers, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Sets how long workers have to connect once the server has started. Workers still missing
+     * after that are treated as finished. Must be called before {@link #start()}.
+     *
+     * @param millis Timeout in milliseconds.
+     */
+    public void setAcceptTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("The accept timeout must be positive");
+        }
+        _acceptTimeoutMillis = millis;
+    }
+
+    /**
+     * Starts accepting worker connections on a background thread.
+     */
+    public void start() {
+        long deadline = System.nanoTime() + _acceptTimeoutMillis * 1_000_000;
+        Thread acceptor = new Thread(() -> {
+            try {
+                // Rejected connections do not take a worker's place, so accept until every worker is in
+                while (hasMissingWorkers()) {
+                    long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+                    if (remainingMillis <= 0) {
+                        throw new SocketTimeoutException("Accept timed out");
+                    }
+                    _socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remainingMillis));
+                    Socket socket = _socket.accept();
+                    _handlers.execute(() -> handle(socket));
+                }
+            } catch (SocketTimeoutException e) {
+                abandonMissingWorkers();
+            } catch (IOException e) {
+                if (!_socket.isClosed()) {
+                    System.err.println("Error accepting worker: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }, "parameter-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return _socket.getLocalPort();
+    }
+
+    /**
+     * Tells the server that a worker's process has exited. A worker that never connected is marked
+     * finished, so the others no longer wait for it; one that did connect is finished by its
+     * handler when the connection closes.
+     *
+     * @param worker Index of the worker.
+     */
+    public synchronized void workerExited(int worker) {
+        if (!_joined[worker] && markDone(worker)) {
+            System.err.println("Worker " + worker + " exited before connecting");
+        }
+    }
+
+    /**
+     * Waits until every worker has finished training, failed or been given up on.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+        while (_finished < _workers) {
+            wait();
+        }
+    }
+
+    /**
+     * Gets a copy of the global parameters.
+     *
+     * @return The parameters.
+     */
+    public synchronized double[] getParameters() {
+        return _parameters.clone();
+    }
+
+    /**
+     * Gets the average of the learned state sent by the workers that finished training.
+     *
+     * @return The averaged state, or null if no worker finished.
+     */
+    public synchronized double[] getState() {
+        if (_stateCount == 0) {
+            return null;
+        }
+        double[] state = new double[_stateSum.length];
+        for (int i = 0; i < state.length; i++) {
+            state[i] = _stateSum[i] / _stateCount;
+        }
+        return state;
+    }
+
+    /**
+     * Builds a summary of the time workers spent computing and communicating.
+     *
+     * @return One line with the step count and the average compute and communication time per step.
+     */
+    public synchronized String getReport() {
+        double compute = _steps == 0 ? 0 : _computeNanos / 1e6 / _steps;
+        double comm = _steps == 0 ? 0 : _commNanos / 1e6 / _steps;
+        return String.format(Locale.ROOT, "%d steps, compute %.2f ms/step, communication %.2f ms/step (%.1f%% of step time)",
+                _steps, compute, comm, compute + comm == 0 ? 0 : 100 * comm / (compute + comm));
+    }
+
+    /**
+     * Stops accepting workers and releases the socket.
+     */
+    public void stop() {
+        try {
+            _socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing parameter server: " + e.getMessage());
+        }
+        _handlers.shutdownNow();
+    }
+
+    private void handle(Socket socket) {
+        int worker = -1;
+        try (ParameterChannel channel = new ParameterChannel(socket)) {
+            int index = channel.in().readInt();
+            if (index < 0 || index >= _workers) {
+                throw new IOException("Worker index " + index + " is not between 0 and " + (_workers - 1));
+            }
+            double[] buffer = new double[_parameters.length];  // Receives changes, then holds the reply
+
+            synchronized (this) {
+                if (_done[index]) {
+                    throw new IOException("Worker " + index + " connected after it was given up on");
+                }
+                if (_joined[index]) {
+                    throw new IOException("Worker " + index + " is already connected");
+                }
+                _joined[index] = true;
+                _active[index] = true;
+                System.arraycopy(_parameters, 0, buffer, 0, buffer.length);
+            }
+            worker = index;  // Only an accepted connection may mark its worker done
+            channel.out().writeInt(buffer.length);
+            channel.writeDoubles(buffer);
+            channel.out().flush();
+
+            while (true) {
+                byte type = channel.in().readByte();
+                long computeNanos = channel.in().readLong();
+                long commNanos = channel.in().readLong();
+
+                if (type == ParameterChannel.DONE) {
+                    double[] state = new double[channel.in().readInt()];
+                    channel.readDoubles(state);
+                    record(0, computeNanos, commNanos);
+                    addState(state);
+                    break;
+                }
+
+                channel.readDoubles(buffer);
+                push(worker, buffer, computeNanos, commNanos);  // Leaves the parameters to send back in buffer
+                channel.writeDoubles(buffer);
+                channel.out().flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error serving " + (worker >= 0 ? "worker " + worker : "a connection") + ": " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            finish(worker);
+        }
+    }
+
+    /**
+     * Merges one worker's change and waits until the worker may continue.
+     *
+     * @param worker Index of the worker.
+     * @param buffer The change on entry, the parameters to continue from on return.
+     */
+    private synchronized void push(int worker, double[] buffer, long computeNanos, long commNanos) throws InterruptedException {
+        record(1, computeNanos, commNanos);
+        double share = 1.0 / _workers;
+        long step = ++_clock[worker];
+
+        if (_staleness == 0) {
+            for (int i = 0; i < buffer.length; i++) {
+                _pendingSum[i] += buffer[i];
+            }
+            _pendingCount++;
+            applyPendingIfComplete();
+
+            while (minimumClock() < step) {
+                wait();  // Until every active worker has pushed this step
+            }
+        } else {
+            for (int i = 0; i < buffer.length; i++) {
+                _parameters[i] += buffer[i] * share;
+            }
+            notifyAll();
+
+            while (step - minimumClock() > _staleness) {
+                wait();  // Too far ahead of the slowest worker
+            }
+        }
+
+        System.arraycopy(_parameters, 0, buffer, 0, buffer.length);
+    }
+
+    /**
+     * Applies the buffered synchronous changes once every active worker has pushed its step.
+     */
+    private void applyPendingIfComplete() {
+        int active = 0;
+        for (int w = 0; w < _workers; w++) {
+            active += _active[w] ? 1 : 0;
+        }
+        if (_staleness != 0 || _pendingCount == 0 || _pendingCount < active || minimumClock() == 0) {
+            return;  // Still waiting for a worker, possibly one that has not connected yet
+        }
+
+        double share = 1.0 / _pendingCount;  // Average over the workers that took part in the step
+        for (int i = 0; i < _parameters.length; i++) {
+            _parameters[i] += _pendingSum[i] * share;
+        }
+        Arrays.fill(_pendingSum, 0.0);
+        _pendingCount = 0;
+        notifyAll();
+    }
+
+    /**
+     * Gets the step count of the slowest worker that is still training, ignoring finished workers.
+     */
+    private long minimumClock() {
+        long minimum = Long.MAX_VALUE;
+        for (int w = 0; w < _workers; w++) {
+            if (_active[w] || !_joined[w] && !_done[w]) {
+                minimum = Math.min(minimum, _clock[w]);  // Workers that have not connected yet count as step 0
+            }
+        }
+        return minimum;
+    }
+
+    private synchronized void record(int steps, long computeNanos, long commNanos) {
+        _steps += steps;
+        _computeNanos += computeNanos;
+        _commNanos += commNanos;
+    }
+
+    private synchronized void addState(double[] state) throws IOException {
+        if (_stateSum == null) {
+            _stateSum = new double[state.length];
+        } else if (_stateSum.length != state.length) {
+            throw new IOException("Expected " + _stateSum.length + " state values but got " + state.length);
+        }
+        for (int i = 0; i < state.length; i++) {
+            _stateSum[i] += state[i];
+        }
+        _stateCount++;
+    }
+
+    private synchronized void finish(int worker) {
+        if (worker >= 0) {
+            markDone(worker);  // A worker that failed before sending its index is marked when its process exits
+        }
+    }
+
+    /**
+     * Whether some worker has neither connected nor been given up on.
+     *
+     * @return True if the server should keep accepting connections.
+     */
+    private synchronized boolean hasMissingWorkers() {
+        for (int w = 0; w < _workers; w++) {
+            if (!_joined[w] && !_done[w]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives up on every worker that has not connected when the accept timeout runs out.
+     */
+    private synchronized void abandonMissingWorkers() {
+        for (int w = 0; w < _workers; w++) {
+            if (!_joined[w] && markDone(w)) {
+                System.err.println("Worker " + w + " did not connect within " + _acceptTimeoutMillis + " ms");
+            }
+        }
+    }
+
+    /**
+     * Marks a worker as done, unless it already is, and releases the workers waiting for it.
+     *
+     * @return True if the worker was not done before.
+     */
+    private boolean markDone(int worker) {
+        _active[worker] = false;
+        if (_done[worker]) {
+            return false;
+        }
+        _done[worker] = true;
+        _finished++;
+        applyPendingIfComplete();  // The remaining workers no longer wait for this one
+        notifyAll();
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package distributed;
+
+import data.DataReader;
+import data.Image;
+import network.Main;
+import network.NeuralNetwork;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Trains a network on one shard of the data set as part of a {@link ParameterServer} run.
+ *
+ * Each step trains on the next few images of the shard, then pushes the resulting change in the
+ * parameters to the server and continues from the merged parameters it sends back. Exchanging the
+ * change instead of raw gradients lets every layer keep its own update rule and optimizer state.
+ * The time spent training and the time spent waiting on the server are reported with every push.
+ * Learned state outside the parameters, such as the moving statistics of batch norm, is not a
+ * parameter and does not take part in the steps; every worker gathers its own from its shard and
+ * sends it to the server when it is done.
+ */
+public class TrainingWorker {
+    private final NeuralNetwork _network;  // Local replica of the network
+    private final List<Image> _shard;  // Images this worker trains on
+    private final int _id;  // Index of the worker, from 0
+    private final int _stepImages;  // Images trained on between two pushes
+
+    /**
+     * Constructor to initialize the worker.
+     *
+     * @param network Local replica of the network. Its parameters are replaced by the server's.
+     * @param shard Images this worker trains on.
+     * @param id Index of the worker, from 0.
+     * @param stepImages Images trained on between two pushes.
+     */
+    public TrainingWorker(NeuralNetwork network, List<Image> shard, int id, int stepImages) {
+        _network = network;
+        _shard = new ArrayList<>(shard);
+        _id = id;
+        _stepImages = stepImages;
+    }
+
+    /**
+     * Connects to the server and trains for a number of epochs over the shard.
+     *
+     * @param port Port of the parameter server on the loopback address.
+     * @param epochs Number of passes over the shard.
+     * @throws IOException If the connection to the server fails.
+     */
+    public void run(int port, int epochs) throws IOException {
+        Random random = new Random(_id);
+
+        try (ParameterChannel channel = new ParameterChannel(new Socket(InetAddress.getLoopbackAddress(), port))) {
+            channel.out().writeInt(_id);
+            channel.out().flush();
+
+            double[] parameters = new double[channel.in().readInt()];
+            channel.readDoubles(parameters);
+            _network.setParameters(parameters);
+
+            long commNanos = 0;  // Communication time of the previous step, sent with the next push
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                Collections.shuffle(_shard, random);
+
+                for (int start = 0; start < _shard.size(); start += _stepImages) {
+                    long computeStart = System.nanoTime();
+                    _network.train(_shard.subList(start, Math.min(start + _stepImages, _shard.size())));
+                    double[] trained = _network.getParameters();
+                    for (int i = 0; i < parameters.length; i++) {
+                        trained[i] -= parameters[i];  // Change made by this step
+                    }
+                    long computeNanos = System.nanoTime() - computeStart;
+
+                    long commStart = System.nanoTime();
+                    channel.out().writeByte(ParameterChannel.PUSH);
+                    channel.out().writeLong(computeNanos);
+                    channel.out().writeLong(commNanos);
+                    channel.writeDoubles(trained);
+                    channel.out().flush();
+                    channel.readDoubles(parameters);  // Blocks while the server waits for slower workers
+                    _network.setParameters(parameters);
+                    commNanos = System.nanoTime() - commStart;
+                }
+            }
+
+            double[] state = _network.getState();
+            channel.out().writeByte(ParameterChannel.DONE);
+            channel.out().writeLong(0);
+            channel.out().writeLong(commNanos);
+            channel.out().writeInt(state.length);
+            channel.writeDoubles(state);
+            channel.out().flush();
+        }
+    }
+
+    /**
+     * Selects the shard of a data set that belongs to one worker.
+     *
+     * @param images The whole data set.
+     * @param id Index of the worker, from 0.
+     * @param workers Number of workers.
+     * @return Every image whose index modulo the worker count is the worker's index.
+     */
+    public static List<Image> shard(List<Image> images, int id, int workers) {
+        List<Image> shard = new ArrayList<>();
+        for (int i = id; i < images.size(); i += workers) {
+            shard.add(images.get(i));
+        }
+        return shard;
+    }
+
+    /**
+     * Runs a worker process.
+     *
+     * @param args Server port, worker index, worker count, initial model path, training CSV path,
+     *             epochs and images per step.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        int id = Integer.parseInt(args[1]);
+        int workers = Integer.parseInt(args[2]);
+        NeuralNetwork network = Main.loadNetwork(args[3]);
+        if (network == null) {
+            System.exit(1);  // Loading already reported the error
+        }
+        List<Image> shard = shard(new DataReader().readData(args[4]), id, workers);
+        int epochs = Integer.parseInt(args[5]);
+        int stepImages = Integer.parseInt(args[6]);
+
+        new TrainingWorker(network, shard, id, stepImages).run(port, epochs);
+    }
+}
@@ -0,0 +1,149 @@
+package network;
+
+import data.Image;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates snapshots of a network's weights on a background thread while training goes on.
+ *
+ * The evaluator owns a private copy of the network. A snapshot is a copy of the training network's
+ * flat parameters and learned state, such as the moving statistics of batch norm, taken on the
+ * training thread between two calls to {@code train}, so it is always consistent and costs no more
+ * than two array copies. The background thread loads each snapshot into its copy, tests it and
+ * publishes the result, which the training loop picks up with {@link #poll()} whenever it likes. Snapshots taken in the middle of an epoch may be dropped: if a newer one arrives
+ * before an older one is evaluated, the older one is skipped, so frequent snapshots never queue up
+ * behind a slow evaluation. Snapshots taken at the end of an epoch are always evaluated.
+ */
+public class AsyncEvaluator implements AutoCloseable {
+
+    /**
+     * Result of evaluating one snapshot.
+     *
+     * @param epoch Epoch during which the snapshot was taken.
+     * @param imagesTrained Number of images trained on in the epoch when the snapshot was taken.
+     * @param endOfEpoch Whether the snapshot was taken at the end of the epoch.
+     * @param accuracy Accuracy of the snapshot on the evaluation images.
+     * @param parameters The snapshot's parameters.
+     * @param state The snapshot's learned state outside the parameters.
+     */
+    public record Evaluation(int epoch, int imagesTrained, boolean endOfEpoch, float accuracy, double[] parameters, double[] state) {
+    }
+
+    private final NeuralNetwork _training;  // Network being trained, only read on the training thread
+    private final NeuralNetwork _copy;  // Private copy of the network, only used on the evaluation thread
+    private final List<Image> _images;  // Images every snapshot is tested on
+    private final List<Image> _calibration;  // Held-out images the saved network's temperature is fitted on
+    private final ExecutorService _executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "async-evaluator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LinkedBlockingQueue<Evaluation> _results = new LinkedBlockingQueue<>();  // Results not consumed yet
+    private final AtomicLong _latestSnapshot = new AtomicLong();  // Sequence number of the newest snapshot
+    private final AtomicLong _dropped = new AtomicLong();  // Number of snapshots skipped because a newer one arrived
+
+    /**
+     * Constructor to set up an evaluator for a network.
+     *
+     * @param network The network being trained.
+     * @param images Images every snapshot is tested on.
+     * @param calibration Images the temperature of a saved snapshot is fitted on. They must be held
+     *                    out from both the training images and the test images, or the fitted
+     *                    temperature is biased and the test accuracy no longer unseen.
+     */
+    public AsyncEvaluator(NeuralNetwork network, List<Image> images, List<Image> calibration) {
+        _training = network;
+        _copy = network.copy();
+        _images = images;
+        _calibration = calibration;
+    }
+
+    /**
+     * Takes a snapshot of the training network's weights and queues it for evaluation. Must be
+     * called on the training thread, between two training calls.
+     *
+     * @param epoch Current epoch.
+     * @param imagesTrained Number of images trained on in the epoch so far.
+     * @param endOfEpoch Whether this is the end-of-epoch snapshot, which is never dropped.
+     */
+    public void submit(int epoch, int imagesTrained, boolean endOfEpoch) {
+        double[] snapshot = _training.getParameters();
+        double[] state = _training.getState();
+        long sequence = _latestSnapshot.incrementAndGet();
+
+        _executor.execute(() -> {
+            if (!endOfEpoch && sequence < _latestSnapshot.get()) {
+                _dropped.incrementAndGet();  // A newer snapshot is already queued
+                return;
+            }
+            _copy.setParameters(snapshot);
+            _copy.setState(state);
+            float accuracy = _copy.test(_images);
+            _results.add(new Evaluation(epoch, imagesTrained, endOfEpoch, accuracy, snapshot, state));
+        });
+    }
+
+    /**
+     * Gets the next result that has arrived, without waiting.
+     *
+     * @return The result, or null if none is ready.
+     */
+    public Evaluation poll() {
+        return _results.poll();
+    }
+
+    /**
+     * Calibrates the network with the parameters of an evaluated snapshot on the calibration images
+     * and saves it. Runs on the
+     * evaluation thread after the evaluations already queued, so training is not held up.
+     *
+     * @param evaluation The evaluated snapshot.
+     * @param filepath Path of the file to save the network to.
+     */
+    public void save(Evaluation evaluation, String filepath) {
+        _executor.execute(() -> {
+            _copy.setParameters(evaluation.parameters());
+            _copy.setState(evaluation.state());
+            _copy.calibrate(_calibration);  // Fit the probability temperature; the predicted digits do not change
+            Main.saveNetwork(_copy, filepath);
+        });
+    }
+
+    /**
+     * Waits until every evaluation and save queued so far has finished.
+     */
+    public void awaitIdle() {
+        try {
+            _executor.submit(() -> { }).get();  // The single thread runs tasks in order
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error during evaluation: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+    /**
+     * Finishes every queued evaluation and save and stops the evaluation thread.
+     */
+    @Override
+    public void close() {
+        _executor.shutdown();
+        try {
+            _executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
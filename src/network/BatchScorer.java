@@ -0,0 +1,308 @@
+package network;
+
+import Layers.IntraOpExecutor;
+import data.DataReader;
+import data.Image;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scores a CSV file of images that may be far larger than the heap.
+ *
+ * A reader thread streams the file in chunks of lines and hands every chunk to a pool of workers,
+ * each parsing and predicting on its own replica of the network. The calling thread writes the
+ * results chunk by chunk in input order. The queue of chunks in flight is bounded, so the reader
+ * waits when the workers or the output fall behind, and memory stays the same whatever the file
+ * size. Every output row holds the input row number, the label (-1 for unlabelled input), the
+ * predicted digit, its probability and the probability of every class. A line that cannot be
+ * parsed is reported and written with a predicted digit of -1.
+ */
+public class BatchScorer {
+    private static final int CHUNK_LINES = 256;  // Lines parsed and scored together by one worker
+    private static final long REPORT_INTERVAL_NANOS = 2_000_000_000L;  // Time between two progress lines
+    private static final int MAX_REPORTED_REJECTIONS = 10;  // Unparsable lines reported individually
+
+    /**
+     * Totals of a scoring run.
+     *
+     * @param rows Number of data rows scored, including rejected ones.
+     * @param rejected Number of rows that could not be parsed.
+     * @param accuracy Share of labelled rows predicted correctly, or NaN when no row had a label.
+     * @param seconds Duration of the run.
+     */
+    public record Summary(long rows, long rejected, double accuracy, double seconds) {
+    }
+
+    /**
+     * The scored output of a chunk of lines.
+     */
+    private record Chunk(String text, int rows, int rejected, int labelled, int correct) {
+    }
+
+    private final NeuralNetwork _network;  // Network the replicas are copied from
+    private final int _workers;  // Number of worker threads
+    private final DataReader _parser = new DataReader();  // Parses single lines; holds no state
+    private final ThreadLocal<NeuralNetwork> _replica = ThreadLocal.withInitial(this::newReplica);  // Network of every worker
+    private final AtomicInteger _rejections = new AtomicInteger();  // Number of unparsable lines so far
+
+    /**
+     * Constructor to set up a scorer.
+     *
+     * @param network The network, which must not train while scoring.
+     * @param workers Number of worker threads, each with its own replica of the network.
+     */
+    public BatchScorer(NeuralNetwork network, int workers) {
+        if (network.getPlan() == null) {
+            network.compile();
+        }
+        _network = network;
+        _workers = workers;
+    }
+
+    private synchronized NeuralNetwork newReplica() {
+        return _network.copy();
+    }
+
+    /**
+     * Scores every line of a CSV file. A first line that does not start with a number is taken as a
+     * header and skipped. Progress, throughput and the remaining time go to standard error.
+     *
+     * @param input CSV file with one image per line, with or without a leading label.
+     * @param output Writer receiving the predictions, in input order.
+     * @return The totals of the run.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public Summary score(Path input, Writer output) throws IOException {
+        long start = System.nanoTime();
+        long inputBytes = Math.max(1, Files.size(input));
+        AtomicLong bytesRead = new AtomicLong();
+        BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<>(2 * _workers);  // Bounds the chunks in memory
+        ExecutorService executor = Executors.newFixedThreadPool(_workers, runnable -> {
+            Thread thread = new Thread(runnable, "scorer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread reader = new Thread(() -> readChunks(input, executor, pending, bytesRead), "scorer-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long rows = 0;
+        long rejected = 0;
+        long labelled = 0;
+        long correct = 0;
+        long lastReport = start;
+
+        try {
+            output.write(header());
+            while (true) {
+                Chunk chunk = pending.take().get();
+                if (chunk == null) {
+                    break;  // End of input
+                }
+                output.write(chunk.text());
+                rows += chunk.rows();
+                rejected += chunk.rejected();
+                labelled += chunk.labelled();
+                correct += chunk.correct();
+
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_INTERVAL_NANOS) {
+                    reportProgress(rows, (double) bytesRead.get() / inputBytes, now - start);
+                    lastReport = now;
+                }
+            }
+            output.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scoring", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException("Scoring failed", e.getCause());
+        } finally {
+            reader.interrupt();  // Stops a reader waiting for room after a failure
+            executor.shutdownNow();
+        }
+
+        return new Summary(rows, rejected, labelled == 0 ? Double.NaN : (double) correct / labelled, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Streams the input in chunks of lines to the workers, then queues an empty result marking the
+     * end. A read error takes the place of that marker, so the writer sees it in order.
+     */
+    private void readChunks(Path input, ExecutorService executor, BlockingQueue<Future<Chunk>> pending, AtomicLong bytesRead) {
+        try {
+            try (BufferedReader lines = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                List<String> chunk = new ArrayList<>(CHUNK_LINES);
+                long firstRow = 0;
+                boolean first = true;
+                String line;
+
+                while ((line = lines.readLine()) != null) {
+                    bytesRead.addAndGet(line.length() + 1);
+                    if (first && isHeader(line) || line.isBlank()) {
+                        first = false;
+                        continue;
+                    }
+                    first = false;
+                    chunk.add(line);
+
+                    if (chunk.size() == CHUNK_LINES) {
+                        pending.put(submit(executor, chunk, firstRow));
+                        firstRow += chunk.size();
+                        chunk = new ArrayList<>(CHUNK_LINES);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    pending.put(submit(executor, chunk, firstRow));
+                }
+            } catch (IOException e) {
+                pending.put(CompletableFuture.failedFuture(e));
+                return;
+            }
+            pending.put(CompletableFuture.completedFuture(null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();  // The writer gave up
+        }
+    }
+
+    private Future<Chunk> submit(ExecutorService executor, List<String> lines, long firstRow) {
+        return executor.submit(() -> scoreChunk(lines, firstRow));
+    }
+
+    /**
+     * Parses and predicts a chunk of lines on the worker's replica and formats the output rows.
+     *
+     * @param lines Lines of the chunk.
+     * @param firstRow Row number of the first line.
+     * @return The formatted rows and their counts.
+     */
+    private Chunk scoreChunk(List<String> lines, long firstRow) {
+        NeuralNetwork network = _replica.get();
+        StringBuilder text = new StringBuilder(lines.size() * 128);
+        int rejected = 0;
+        int labelled = 0;
+        int correct = 0;
+
+        for (int n = 0; n < lines.size(); n++) {
+            long row = firstRow + n;
+            Image image;
+            try {
+                image = _parser.parseLine(lines.get(n));
+            } catch (IllegalArgumentException e) {
+                if (_rejections.incrementAndGet() <= MAX_REPORTED_REJECTIONS) {
+                    System.err.println("Rejected row " + row + ": " + e.getMessage());
+                }
+                text.append(row).append(",-1,-1,NaN").append(System.lineSeparator());
+                rejected++;
+                continue;
+            }
+
+            double[] probabilities = network.probabilities(image);
+            int predicted = network.getMaxIndex(probabilities, 0, probabilities.length);
+            if (image.getLabel() >= 0) {
+                labelled++;
+                if (predicted == image.getLabel()) {
+                    correct++;
+                }
+            }
+
+            text.append(row).append(',').append(image.getLabel()).append(',').append(predicted)
+                    .append(',').append(String.format(Locale.ROOT, "%.6f", probabilities[predicted]));
+            for (double probability : probabilities) {
+                text.append(',').append(String.format(Locale.ROOT, "%.6f", probability));
+            }
+            text.append(System.lineSeparator());
+        }
+        return new Chunk(text.toString(), lines.size(), rejected, labelled, correct);
+    }
+
+    private String header() {
+        StringBuilder header = new StringBuilder("row,label,predicted,probability");
+        int classes = _network._layers.get(_network._layers.size() - 1).getOutputElements();
+        for (int c = 0; c < classes; c++) {
+            header.append(",p").append(c);
+        }
+        return header.append(System.lineSeparator()).toString();
+    }
+
+    private static boolean isHeader(String line) {
+        return !line.isEmpty() && !Character.isDigit(line.charAt(0)) && line.charAt(0) != '-' && line.charAt(0) != '.';
+    }
+
+    private static void reportProgress(long rows, double fraction, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long remaining = fraction > 0 ? Math.round(seconds * (1 - fraction) / fraction) : 0;
+        System.err.printf(Locale.ROOT, "Scored %d images, %.0f images/s, %.1f%% of the input, ETA %d:%02d:%02d%n",
+                rows, rows / seconds, 100 * fraction, remaining / 3600, remaining / 60 % 60, remaining % 60);
+    }
+
+    /**
+     * Scores a CSV file with a saved network.
+     *
+     * @param args Model path, input CSV, output CSV (or - for standard output), then optionally the
+     *             number of workers. By default the workers and the threads of every kernel follow
+     *             the {@link ParallelScheduler}'s split for a chunk of lines.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: java network.BatchScorer <model.ser> <input.csv> <output.csv|-> [workers]");
+            return;
+        }
+
+        NeuralNetwork network = Main.loadNetwork(args[0]);
+        if (network == null) {
+            return;  // Loading already reported the error
+        }
+        network.foldBatchNorm();  // Scoring never trains, so batch norm folds into its neighbours
+
+        int workers;
+        try (ParallelScheduler scheduler = new ParallelScheduler(network)) {
+            ParallelScheduler.Split split = scheduler.getSplit(CHUNK_LINES);
+            workers = args.length > 3 ? Integer.parseInt(args[3]) : split.batchThreads();
+            IntraOpExecutor.setParallelism(args.length > 3 ? 1 : split.kernelThreads());
+        }
+
+        BatchScorer scorer = new BatchScorer(network, workers);
+        boolean toStandardOutput = "-".equals(args[2]);
+        Writer output = toStandardOutput
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Path.of(args[2]), StandardCharsets.UTF_8);
+
+        Summary summary;
+        try {
+            summary = scorer.score(Path.of(args[1]), output);
+        } finally {
+            if (toStandardOutput) {
+                output.flush();
+            } else {
+                output.close();
+            }
+        }
+
+        System.err.printf(Locale.ROOT, "Scored %d images (%d rejected) in %.1f s, %.0f images/s with %d workers%n",
+                summary.rows(), summary.rejected(), summary.seconds(), summary.rows() / summary.seconds(), workers);
+        if (!Double.isNaN(summary.accuracy())) {
+            System.err.printf(Locale.ROOT, "Accuracy on labelled rows: %.4f%n", summary.accuracy());
+        }
+    }
+}
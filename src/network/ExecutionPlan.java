@@ -0,0 +1,363 @@
+package network;
+
+import Layers.ConvolutionLayer;
+import Layers.Layer;
+import Layers.MaxPoolLayer;
+import data.Image;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled, flat execution plan for a chain of layers.
+ *
+ * All layer shapes are known once the network is built, so the plan lays every activation out
+ * back to back in a single arena (input first, then each layer's output) and keeps a gradient
+ * arena with the same layout. Forward and backward passes then iterate over a flat array of steps
+ * instead of recursing through the layers, and nothing on the hot path allocates.
+ *
+ * A plan is not thread safe: it owns the buffers that hold the state of the sample in flight.
+ */
+public class ExecutionPlan {
+    private final Step[] _steps;  // Steps in forward order
+    private final int[] _stepInputOffsets;  // Arena offset of each step's input
+    private final int[] _offsets;  // Arena offset of each layer's input; the last entry is the network output
+    private final double[] _activations;  // Activation arena shared by every step
+    private final double[] _gradients;  // Gradient arena, laid out exactly like the activations
+
+    /**
+     * A single unit of work in the plan, bound to its arena offsets at compile time.
+     */
+    interface Step {
+        void forward(double[] activations);
+
+        /**
+         * Runs the backward pass of the step.
+         *
+         * @param propagate Whether the gradient w.r.t the step's input is needed by an earlier step.
+         */
+        void backward(double[] activations, double[] gradients, boolean propagate);
+
+        /**
+         * Whether training updates any parameter of the step.
+         */
+        boolean isTrainable();
+
+        /**
+         * Estimated floating point operations of the step's forward pass.
+         */
+        long getForwardFlops();
+
+        /**
+         * Names the layers the step runs.
+         */
+        String getName();
+    }
+
+    /**
+     * Runs a single layer's flat kernels between two regions of the arena.
+     */
+    static final class LayerStep implements Step {
+        private final Layer _layer;
+        private final int _inOffset;
+        private final int _outOffset;
+
+        LayerStep(Layer layer, int inOffset, int outOffset) {
+            _layer = layer;
+            _inOffset = inOffset;
+            _outOffset = outOffset;
+        }
+
+        @Override
+        public void forward(double[] activations) {
+            _layer.forward(activations, _inOffset, activations, _outOffset);
+        }
+
+        @Override
+        public void backward(double[] activations, double[] gradients, boolean propagate) {
+            _layer.backward(activations, _inOffset, activations, _outOffset,
+                    gradients, _outOffset, propagate ? gradients : null, _inOffset);
+        }
+
+        @Override
+        public boolean isTrainable() {
+            return _layer.isTrainable();
+        }
+
+        @Override
+        public long getForwardFlops() {
+            return _layer.getForwardFlops();
+        }
+
+        @Override
+        public String getName() {
+            return _layer.getClass().getSimpleName();
+        }
+    }
+
+    /**
+     * Runs a convolution and the max pooling layer that follows it as one fused kernel. The
+     * convolution output region of the arena is skipped on the way forward; on the way back the
+     * pool scatters its gradient into that region and the convolution consumes it from there.
+     */
+    static final class ConvolutionPoolStep implements Step {
+        private final ConvolutionLayer _convolution;
+        private final MaxPoolLayer _pool;
+        private final int _inOffset;
+        private final int _convolutionOffset;
+        private final int _outOffset;
+
+        ConvolutionPoolStep(ConvolutionLayer convolution, MaxPoolLayer pool, int inOffset, int convolutionOffset, int outOffset) {
+            _convolution = convolution;
+            _pool = pool;
+            _inOffset = inOffset;
+            _convolutionOffset = convolutionOffset;
+            _outOffset = outOffset;
+        }
+
+        @Override
+        public void forward(double[] activations) {
+            _convolution.forwardPooled(_pool, activations, _inOffset, activations, _outOffset);
+        }
+
+        @Override
+        public void backward(double[] activations, double[] gradients, boolean propagate) {
+            _pool.backward(activations, _convolutionOffset, activations, _outOffset,
+                    gradients, _outOffset, gradients, _convolutionOffset);
+            _convolution.backward(activations, _inOffset, activations, _convolutionOffset,
+                    gradients, _convolutionOffset, propagate ? gradients : null, _inOffset);
+        }
+
+        @Override
+        public boolean isTrainable() {
+            return _convolution.isTrainable();
+        }
+
+        @Override
+        public long getForwardFlops() {
+            return _convolution.getForwardFlops() + _pool.getForwardFlops();
+        }
+
+        @Override
+        public String getName() {
+            return "ConvolutionLayer+MaxPoolLayer";
+        }
+    }
+
+    /**
+     * Compiles a plan for the given, already linked, layers, fusing every convolution that is
+     * directly followed by a max pooling layer.
+     *
+     * @param layers Layers of the network in forward order.
+     */
+    public ExecutionPlan(List<Layer> layers) {
+        this(layers, true);
+    }
+
+    /**
+     * Compiles a plan for the given, already linked, layers.
+     *
+     * @param layers Layers of the network in forward order.
+     * @param fuse Whether convolution and max pooling pairs should run as a single fused step.
+     */
+    public ExecutionPlan(List<Layer> layers, boolean fuse) {
+        _offsets = new int[layers.size() + 1];
+
+        int offset = 0;
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+
+            if (i > 0 && layer.getInputElements() != layers.get(i - 1).getOutputElements()) {
+                throw new IllegalArgumentException("Layer " + i + " expects " + layer.getInputElements()
+                        + " inputs but the previous layer produces " + layers.get(i - 1).getOutputElements());
+            }
+
+            _offsets[i] = offset;
+            offset += layer.getInputElements();
+        }
+        _offsets[layers.size()] = offset;
+        offset += layers.get(layers.size() - 1).getOutputElements();
+
+        List<Step> steps = new ArrayList<>();
+        List<Integer> stepInputOffsets = new ArrayList<>();
+        for (int i = 0; i < layers.size(); i++) {
+            stepInputOffsets.add(_offsets[i]);
+            Layer layer = layers.get(i);
+
+            if (fuse && i + 1 < layers.size() && layer instanceof ConvolutionLayer convolution
+                    && layers.get(i + 1) instanceof MaxPoolLayer pool) {
+                steps.add(new ConvolutionPoolStep(convolution, pool, _offsets[i], _offsets[i + 1], _offsets[i + 2]));
+                i++;  // The pooling layer is part of the fused step
+            } else {
+                steps.add(new LayerStep(layer, _offsets[i], _offsets[i + 1]));
+            }
+        }
+        _steps = steps.toArray(new Step[0]);
+        _stepInputOffsets = stepInputOffsets.stream().mapToInt(Integer::intValue).toArray();
+
+        _activations = new double[offset];
+        _gradients = new double[offset];
+    }
+
+    /**
+     * Copies a single-channel input into the arena, scaling every value on the way in.
+     *
+     * @param data The input matrix.
+     * @param scale Factor applied to every value.
+     */
+    public void loadInput(double[][] data, double scale) {
+        int i = 0;
+        for (double[] row : data) {
+            for (double value : row) {
+                _activations[i++] = value * scale;
+            }
+        }
+    }
+
+    /**
+     * Copies every channel of an image into the arena, scaling every value on the way in.
+     *
+     * @param image The input image.
+     * @param scale Factor applied to every value.
+     */
+    public void loadInput(Image image, double scale) {
+        loadInput(image, scale, _activations);
+    }
+
+    /**
+     * Copies every channel of an image into a separate arena with this plan's layout.
+     *
+     * @param image The input image.
+     * @param scale Factor applied to every value.
+     * @param activations Arena of {@link #getArenaLength()} values receiving the input.
+     */
+    void loadInput(Image image, double scale, double[] activations) {
+        int i = 0;
+        for (int channel = 0; channel < image.getChannelCount(); channel++) {
+            for (double[] row : image.getChannel(channel)) {
+                for (double value : row) {
+                    activations[i++] = value * scale;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the forward pass over every step.
+     */
+    public void forward() {
+        forward(0, _steps.length);
+    }
+
+    /**
+     * Runs the forward pass over a range of steps. The input of the first step must already be in the arena.
+     *
+     * @param fromStep Index of the first step to run.
+     * @param toStep Index after the last step to run.
+     */
+    public void forward(int fromStep, int toStep) {
+        for (int i = fromStep; i < toStep; i++) {
+            _steps[i].forward(_activations);
+        }
+    }
+
+    /**
+     * Runs the forward pass over a range of steps on a separate arena with this plan's layout, so
+     * several samples can be in flight at once. Each layer keeps scratch state, so a step must not
+     * run on two arenas at the same time.
+     *
+     * @param fromStep Index of the first step to run.
+     * @param toStep Index after the last step to run.
+     * @param activations Arena of {@link #getArenaLength()} values holding the input of the first step.
+     */
+    void forward(int fromStep, int toStep, double[] activations) {
+        for (int i = fromStep; i < toStep; i++) {
+            _steps[i].forward(activations);
+        }
+    }
+
+    /**
+     * Runs the backward pass down to the first trainable step. Steps before it hold no trainable
+     * parameters, so the backward pass stops there and the first trainable step does not compute the
+     * gradient with respect to its input. The gradient of the loss with respect to the network
+     * output must already be written at {@link #getOutputOffset()} in {@link #getGradients()}.
+     */
+    public void backward() {
+        int start = getTrainableStart();
+
+        for (int i = _steps.length - 1; i >= start; i--) {
+            _steps[i].backward(_activations, _gradients, i > start);
+        }
+    }
+
+    /**
+     * Finds the first step that training updates. Every step before it is frozen or has no parameters.
+     *
+     * @return Index of the first trainable step, or the number of steps when nothing is trainable.
+     */
+    public int getTrainableStart() {
+        for (int i = 0; i < _steps.length; i++) {
+            if (_steps[i].isTrainable()) {
+                return i;
+            }
+        }
+        return _steps.length;
+    }
+
+    public int getStepCount() {
+        return _steps.length;
+    }
+
+    public long getStepForwardFlops(int step) {
+        return _steps[step].getForwardFlops();
+    }
+
+    public String getStepName(int step) {
+        return _steps[step].getName();
+    }
+
+    public int getArenaLength() {
+        return _activations.length;
+    }
+
+    /**
+     * Gets where a step reads its input in the activation arena.
+     *
+     * @param step Index of the step, or the number of steps for the network output.
+     * @return Arena offset of the step's input.
+     */
+    public int getStepInputOffset(int step) {
+        return step == _steps.length ? getOutputOffset() : _stepInputOffsets[step];
+    }
+
+    public double[] getActivations() {
+        return _activations;
+    }
+
+    public double[] getGradients() {
+        return _gradients;
+    }
+
+    public int getInputLength() {
+        return _offsets[1] - _offsets[0];
+    }
+
+    public int getOutputOffset() {
+        return _offsets[_offsets.length - 1];
+    }
+
+    public int getOutputLength() {
+        return _activations.length - getOutputOffset();
+    }
+
+    /**
+     * Copies the network output out of the arena.
+     *
+     * @return A new array holding the output of the last forward pass.
+     */
+    public double[] getOutput() {
+        double[] out = new double[getOutputLength()];
+        System.arraycopy(_activations, getOutputOffset(), out, 0, out.length);
+        return out;
+    }
+}
@@ -0,0 +1,268 @@
+package network;
+
+import data.DataReader;
+import data.Image;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Inference launcher for short-lived processes, built to make the first prediction fast.
+ *
+ * A fresh JVM pays for loading classes, deserializing the model and compiling the kernels before a
+ * prediction runs at full speed. The launcher loads the model before anything else, folds batch norm
+ * and runs synthetic forward passes before it reads any input, so the first real prediction finds
+ * the kernels compiled. Class loading is cut with an application class data sharing (AppCDS)
+ * archive, which a short training run of this class records:
+ *
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=out/inference.jsa -cp out network.FastStart --archive [model.ser]
+ * java -XX:SharedArchiveFile=out/inference.jsa -cp out network.FastStart model.ser &lt; images.csv
+ * </pre>
+ *
+ * The archive only matches the JDK build and the class path it was recorded with; a JVM that cannot
+ * use it warns and starts without it. {@code --bench} measures every phase up to the first
+ * prediction and appends them to {@code out/startup-benchmark.csv}, so time to first prediction can
+ * be tracked from one change to the next.
+ */
+public class FastStart {
+    private static final int DEFAULT_WARM_UP_ITERATIONS = 200;  // Synthetic forward passes before the first real prediction
+    private static final int ROWS = 28;  // Rows of the network's input
+    private static final int COLUMNS = 28;  // Columns of the network's input
+    private static final int STEADY_PREDICTIONS = 1_000;  // Predictions timed after the first one, for the steady-state time
+    private static final Path BENCHMARK_FILE = Path.of("out", "startup-benchmark.csv");  // Benchmark history, one line per run
+
+    /**
+     * The phases of a start, up to and including the first prediction.
+     *
+     * @param jvmToMainMillis From the JVM's start to the entry of {@code main}.
+     * @param loadMillis Reading and deserializing the model, and folding batch norm.
+     * @param warmUpMillis Synthetic forward passes.
+     * @param firstPredictionMicros The first prediction on an unseen image.
+     */
+    public record Startup(double jvmToMainMillis, double loadMillis, double warmUpMillis, double firstPredictionMicros) {
+
+        /**
+         * Gets the time from the JVM's start to the answer of the first prediction.
+         *
+         * @return Time to first prediction in milliseconds.
+         */
+        public double timeToFirstPredictionMillis() {
+            return jvmToMainMillis + loadMillis + warmUpMillis + firstPredictionMicros / 1000;
+        }
+    }
+
+    private FastStart() {
+    }
+
+    /**
+     * Loads a model for inference: deserializes it, folds batch norm and warms it up.
+     *
+     * @param modelPath Path of the saved network.
+     * @param warmUpIterations Synthetic forward passes; 0 skips the warm-up.
+     * @return The network ready to predict, or null if it could not be loaded.
+     */
+    public static NeuralNetwork load(String modelPath, int warmUpIterations) {
+        NeuralNetwork network = Main.loadNetwork(modelPath);
+        if (network == null) {
+            return null;  // Loading already reported the error
+        }
+        network.foldBatchNorm();  // Inference never trains, so batch norm folds into its neighbours
+        warmUp(network, warmUpIterations);
+        return network;
+    }
+
+    /**
+     * Runs synthetic forward passes through the plan, then a few whole predictions, so that loading
+     * the input and picking the answer are compiled as well.
+     */
+    private static void warmUp(NeuralNetwork network, int iterations) {
+        if (iterations <= 0) {
+            return;
+        }
+        network.warmUp(iterations);
+        List<Image> images = ParallelScheduler.syntheticImages(2, ROWS, COLUMNS, iterations);
+        for (int n = 0; n < Math.max(2, iterations / 10); n++) {
+            network.guess(images.get(n % 2));
+        }
+    }
+
+    /**
+     * Loads the classes of training, saving, loading and predicting, for a JVM recording a class
+     * data sharing archive. It trains a small network of the same shape as {@link Main}'s on
+     * synthetic images, saves it and loads it back, then predicts with it or with a given model.
+     *
+     * @param modelPath Path of a saved network to load as well, so its layer classes are recorded, or null.
+     * @throws IOException If the temporary model file cannot be created.
+     */
+    static void recordArchiveClasses(String modelPath) throws IOException {
+        List<Image> images = new ArrayList<>();
+        for (Image image : ParallelScheduler.syntheticImages(500, ROWS, COLUMNS, 123)) {
+            images.add(new Image(image.getData(), images.size() % 10));
+        }
+
+        NetworkBuilder builder = new NetworkBuilder(ROWS, COLUMNS, 256 * 100);
+        builder.addConvolutionLayer(8, 5, 1, 0.1, 123);
+        builder.addMaxPoolLayer(3, 2);
+        builder.addSoftmaxOutputLayer(10, 0.1, 123);
+        NeuralNetwork trained = builder.buildNetwork(true);
+        trained.train(images);
+        trained.test(images);
+
+        Path saved = Files.createTempFile("fast-start", ".ser");
+        try {
+            Main.saveNetwork(trained, saved.toString());
+            NeuralNetwork network = load(saved.toString(), DEFAULT_WARM_UP_ITERATIONS);
+            if (modelPath != null) {
+                network = load(modelPath, DEFAULT_WARM_UP_ITERATIONS);
+            }
+            if (network == null) {
+                return;  // Loading already reported the error
+            }
+
+            StringBuilder line = new StringBuilder();
+            for (double[] row : images.get(0).getData()) {
+                for (double value : row) {
+                    line.append(line.isEmpty() ? "" : ",").append((int) value);
+                }
+            }
+            Image parsed = new DataReader().parseLine(line.toString());
+            System.out.println("Recorded the classes of a prediction, which was " + network.guess(parsed));
+        } finally {
+            Files.deleteIfExists(saved);
+        }
+    }
+
+    /**
+     * Measures the phases of a start, up to the first prediction, and the steady-state prediction
+     * time for comparison.
+     *
+     * @param modelPath Path of the saved network.
+     * @param warmUpIterations Synthetic forward passes before the first prediction.
+     * @param mainMillis {@link System#currentTimeMillis()} at the entry of {@code main}.
+     * @return The benchmark line that was appended, or null if the model could not be loaded.
+     */
+    static String benchmark(String modelPath, int warmUpIterations, long mainMillis) {
+        List<Image> images = ParallelScheduler.syntheticImages(STEADY_PREDICTIONS + 1, ROWS, COLUMNS, 1 + warmUpIterations);
+        long loadStart = System.nanoTime();  // Making the images is not part of a start
+        NeuralNetwork network = Main.loadNetwork(modelPath);
+        if (network == null) {
+            return null;  // Loading already reported the error
+        }
+        network.foldBatchNorm();
+        long loaded = System.nanoTime();
+        warmUp(network, warmUpIterations);
+        long warmedUp = System.nanoTime();
+
+        network.guess(images.get(0));  // A different image from every warm-up one
+        long firstPrediction = System.nanoTime() - warmedUp;
+
+        // Measured after the first prediction, since loading the management classes takes time too
+        RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        Startup startup = new Startup(mainMillis - runtime.getStartTime(), (loaded - loadStart) / 1e6,
+                (warmedUp - loaded) / 1e6, firstPrediction / 1e3);
+
+        long[] times = new long[STEADY_PREDICTIONS];
+        for (int n = 0; n < STEADY_PREDICTIONS; n++) {
+            long start = System.nanoTime();
+            network.guess(images.get(n + 1));
+            times[n] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        double steadyMicros = times[STEADY_PREDICTIONS / 2] / 1e3;
+
+        String archive = "none";
+        for (String argument : runtime.getInputArguments()) {
+            if (argument.startsWith("-XX:SharedArchiveFile=")) {
+                archive = argument.substring("-XX:SharedArchiveFile=".length());
+            }
+        }
+
+        String line = String.format(Locale.ROOT, "%s,%s,%s,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f", Instant.now(),
+                Path.of(modelPath).getFileName(), archive, warmUpIterations, startup.jvmToMainMillis(), startup.loadMillis(),
+                startup.warmUpMillis(), startup.firstPredictionMicros(), steadyMicros, startup.timeToFirstPredictionMillis());
+        try {
+            Files.createDirectories(BENCHMARK_FILE.getParent());
+            if (!Files.exists(BENCHMARK_FILE)) {
+                Files.writeString(BENCHMARK_FILE, "time,model,archive,warm_up_iterations,jvm_to_main_ms,load_ms,warm_up_ms,"
+                        + "first_prediction_us,steady_prediction_us,time_to_first_prediction_ms" + System.lineSeparator());
+            }
+            Files.writeString(BENCHMARK_FILE, line + System.lineSeparator(), StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Error writing the startup benchmark: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        System.out.printf(Locale.ROOT, "JVM start to main: %.1f ms, model load: %.1f ms, warm-up (%d passes): %.1f ms%n",
+                startup.jvmToMainMillis(), startup.loadMillis(), warmUpIterations, startup.warmUpMillis());
+        System.out.printf(Locale.ROOT, "First prediction: %.1f us, steady state: %.1f us, time to first prediction: %.1f ms (archive: %s)%n",
+                startup.firstPredictionMicros(), steadyMicros, startup.timeToFirstPredictionMillis(), archive);
+        return line;
+    }
+
+    /**
+     * Runs the launcher.
+     *
+     * @param args {@code <model.ser> [warmUpIterations]} predicts every CSV line of standard input and
+     *             prints one digit per line (-1 for a line that cannot be parsed);
+     *             {@code --archive [model.ser]} loads the classes to record in an archive;
+     *             {@code --bench <model.ser> [warmUpIterations]} measures time to first prediction.
+     */
+    public static void main(String[] args) throws IOException {
+        long mainMillis = System.currentTimeMillis();
+        if (args.length == 0) {
+            System.err.println("Usage: java network.FastStart <model.ser> [warmUpIterations] < images.csv");
+            System.err.println("       java -XX:ArchiveClassesAtExit=out/inference.jsa network.FastStart --archive [model.ser]");
+            System.err.println("       java network.FastStart --bench <model.ser> [warmUpIterations]");
+            return;
+        }
+
+        if ("--archive".equals(args[0])) {
+            recordArchiveClasses(args.length > 1 ? args[1] : null);
+            return;
+        }
+        if ("--bench".equals(args[0])) {
+            benchmark(args[1], args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_WARM_UP_ITERATIONS, mainMillis);
+            return;
+        }
+
+        NeuralNetwork network = load(args[0], args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WARM_UP_ITERATIONS);
+        if (network == null) {
+            return;
+        }
+
+        DataReader parser = new DataReader();
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        String line;
+        while ((line = input.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            int digit;
+            try {
+                digit = network.guess(parser.parseLine(line));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Rejected line: " + e.getMessage());
+                digit = -1;
+            }
+            output.write(digit + System.lineSeparator());
+        }
+        output.flush();
+    }
+}
@@ -0,0 +1,106 @@
+package network;
+
+import data.Image;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Caches the output of a network's frozen prefix for a whole data set, so the trainable layers can
+ * be fine-tuned without running the frozen layers again.
+ *
+ * The prefix is every step of the compiled plan before the first trainable one (see
+ * {@link NeuralNetwork#freezeLayers(int)}). Its output is computed once per image when the cache is
+ * built; every epoch afterwards copies the cached features into the plan and only runs the trainable
+ * steps forward and backward. The cache holds one double for every prefix output of every image, so
+ * it costs {@link #getByteSize()} bytes of heap, and it only stays valid while the prefix is frozen.
+ */
+public class FeatureCache {
+    private final NeuralNetwork _network;  // Network whose trainable steps are trained on the cache
+    private final ExecutionPlan _plan;  // Compiled plan of the network
+    private final int _startStep;  // First trainable step; the cache holds the input of this step
+    private final int _featureOffset;  // Arena offset of the cached features
+    private final int _featureLength;  // Number of features per image
+    private final double[] _features;  // Cached features of every image, back to back
+    private final int[] _labels;  // Label of every image
+    private final int[] _order;  // Order in which images are visited, reshuffled every epoch
+
+    /**
+     * Constructor to run every image through the frozen prefix and cache the result.
+     *
+     * @param network The network, compiled if it is not already.
+     * @param images The images to cache.
+     */
+    public FeatureCache(NeuralNetwork network, List<Image> images) {
+        if (network.getPlan() == null) {
+            network.compile();
+        }
+        _network = network;
+        _plan = network.getPlan();
+        _startStep = _plan.getTrainableStart();
+        _featureOffset = _plan.getStepInputOffset(_startStep);
+        _featureLength = _plan.getStepInputOffset(Math.min(_startStep + 1, _plan.getStepCount())) - _featureOffset;
+        _features = new double[images.size() * _featureLength];
+        _labels = new int[images.size()];
+        _order = new int[images.size()];
+
+        double scale = 1.0 / network.scaleFactor;
+        for (int n = 0; n < images.size(); n++) {
+            _plan.loadInput(images.get(n), scale);
+            _plan.forward(0, _startStep);  // Only the frozen prefix
+            System.arraycopy(_plan.getActivations(), _featureOffset, _features, n * _featureLength, _featureLength);
+            _labels[n] = images.get(n).getLabel();
+            _order[n] = n;
+        }
+    }
+
+    /**
+     * Trains the trainable layers for one epoch over the cached features, in a shuffled order.
+     *
+     * @param random Source of randomness for the shuffle.
+     * @throws IllegalStateException If layers were frozen or unfrozen since the cache was built.
+     */
+    public void train(Random random) {
+        if (_plan.getTrainableStart() != _startStep || _network.getPlan() != _plan) {
+            throw new IllegalStateException("The frozen prefix changed since the features were cached");
+        }
+
+        // Fisher-Yates shuffle of the visiting order, so the features themselves never move
+        for (int i = _order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = _order[i];
+            _order[i] = _order[j];
+            _order[j] = swap;
+        }
+
+        double[] activations = _plan.getActivations();
+        _network.setTraining(true);
+        try {
+            for (int n : _order) {
+                System.arraycopy(_features, n * _featureLength, activations, _featureOffset, _featureLength);
+                _plan.forward(_startStep, _plan.getStepCount());
+                _network.writeErrors(activations, _plan.getOutputOffset(), _plan.getOutputLength(),
+                        _labels[n], _plan.getGradients(), _plan.getOutputOffset());  // Calculate the errors
+                _plan.backward();  // Stops at the cached boundary
+            }
+        } catch (Exception e) {
+            System.err.println("Error during training: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            _network.setTraining(false);
+        }
+    }
+
+    public int size() {
+        return _labels.length;
+    }
+
+    /**
+     * Gets the heap used by the cached features.
+     *
+     * @return Size in bytes.
+     */
+    public long getByteSize() {
+        return (long) _features.length * Double.BYTES;
+    }
+}
@@ -0,0 +1,327 @@
+package network;
+
+import data.Image;
+import data.ImageConverter;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Classifies every picture file in a directory tree, e.g. scanned or photographed digits.
+ *
+ * A walker thread lists the files, several decoder threads decode them with ImageIO and convert them
+ * into grayscale grids of the network's input size, and the calling thread predicts them in batches
+ * through a {@link ParallelScheduler}, so decoding overlaps with scoring. The grids are a fixed set
+ * of reusable images: a decoder takes a free one after decoding, and scoring returns it once the
+ * batch is predicted, so memory stays the same whatever the size of the directory. Scoring never
+ * waits for a full batch: when no decoded image is ready, it predicts what it has.
+ *
+ * Decoding a compressed picture usually costs far more than predicting it, so the run measures how
+ * long scoring waited for decoded images; a large share means more decoders would help.
+ */
+public class FolderPredictor {
+    private static final Set<String> EXTENSIONS = Set.of("png", "jpg", "jpeg", "bmp", "gif");  // File types ImageIO reads by default
+    private static final Path END_OF_FILES = Path.of("");  // Tells a decoder that the walker is done
+    private static final long REPORT_INTERVAL_NANOS = 2_000_000_000L;  // Time between two progress lines
+
+    /**
+     * The prediction for one file.
+     *
+     * @param file The picture file.
+     * @param digit The predicted digit, or -1 when the file could not be decoded.
+     */
+    public record Result(Path file, int digit) {
+    }
+
+    /**
+     * Totals of a run.
+     *
+     * @param files Number of picture files found, including undecodable ones.
+     * @param failed Number of files that could not be decoded.
+     * @param seconds Duration of the run.
+     * @param decodeWaitShare Share of the run scoring spent waiting for decoded images.
+     */
+    public record Summary(long files, long failed, double seconds, double decodeWaitShare) {
+    }
+
+    /**
+     * A decoded file, or a failed one without an image, or the end marker of a decoder without a file.
+     */
+    private record Decoded(Path file, Image image) {
+    }
+
+    private final NeuralNetwork _network;  // The network to predict with
+    private final int _decoders;  // Number of decoder threads
+    private final int _batchSize;  // Largest batch predicted at once
+    private final int _rows;  // Rows of the network's input
+    private final int _columns;  // Columns of the network's input
+
+    /**
+     * Constructor to set up a predictor. ImageIO's disk cache is switched off for the whole process,
+     * since decoding from files never needs it and it only adds temporary file traffic.
+     *
+     * @param network The network, which must not train while predicting.
+     * @param rows Rows of the network's input, e.g. 28.
+     * @param columns Columns of the network's input, e.g. 28.
+     * @param decoders Number of decoder threads.
+     * @param batchSize Largest number of images predicted at once.
+     */
+    public FolderPredictor(NeuralNetwork network, int rows, int columns, int decoders, int batchSize) {
+        if (decoders < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Decoders and batch size must be at least 1");
+        }
+        _network = network;
+        _rows = rows;
+        _columns = columns;
+        _decoders = decoders;
+        _batchSize = batchSize;
+        ImageIO.setUseCache(false);
+    }
+
+    /**
+     * Classifies every picture file below a directory. Results arrive in the order files finish
+     * decoding, not in directory order.
+     *
+     * @param directory The directory to walk.
+     * @param results Receives every result, on the calling thread.
+     * @return The totals of the run.
+     * @throws IOException If the directory cannot be walked.
+     */
+    public Summary predict(Path directory, Consumer<Result> results) throws IOException {
+        long start = System.nanoTime();
+        int frames = 2 * _batchSize + _decoders;  // A batch being scored, a batch filling up and one per decoder
+        BlockingQueue<Image> free = new ArrayBlockingQueue<>(frames);
+        for (int i = 0; i < frames; i++) {
+            free.add(new Image(new double[_rows][_columns], -1));
+        }
+        BlockingQueue<Path> paths = new ArrayBlockingQueue<>(4 * frames);
+        BlockingQueue<Decoded> decoded = new ArrayBlockingQueue<>(frames + _decoders);
+        AtomicReference<IOException> walkFailure = new AtomicReference<>();
+        AtomicLong found = new AtomicLong();
+
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> walk(directory, paths, walkFailure, found), "folder-walker"));
+        for (int d = 0; d < _decoders; d++) {
+            threads.add(new Thread(() -> decode(paths, free, decoded), "folder-decoder-" + d));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long files = 0;
+        long failed = 0;
+        long waitNanos = 0;
+        long lastReport = start;
+        List<Decoded> batch = new ArrayList<>(_batchSize);
+        List<Image> images = new ArrayList<>(_batchSize);
+
+        try (ParallelScheduler scheduler = new ParallelScheduler(_network)) {
+            int finishedDecoders = 0;
+            while (finishedDecoders < _decoders) {
+                Decoded item = decoded.poll();
+                if (item == null) {
+                    if (!batch.isEmpty()) {
+                        scoreBatch(scheduler, batch, images, free, results);  // Nothing ready: do not wait for a full batch
+                        continue;
+                    }
+                    long waitStart = System.nanoTime();
+                    item = decoded.take();
+                    waitNanos += System.nanoTime() - waitStart;
+                }
+
+                if (item.file() == null) {
+                    finishedDecoders++;
+                    continue;
+                }
+                files++;
+                if (item.image() == null) {
+                    failed++;
+                    results.accept(new Result(item.file(), -1));
+                } else {
+                    batch.add(item);
+                    if (batch.size() == _batchSize) {
+                        scoreBatch(scheduler, batch, images, free, results);
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_INTERVAL_NANOS) {
+                    double seconds = (now - start) / 1e9;
+                    System.err.printf(Locale.ROOT, "Predicted %d of %d files found so far, %.0f files/s, waiting for decoding %.1f%% of the time%n",
+                            files, found.get(), files / seconds, 100 * waitNanos / (double) (now - start));
+                    lastReport = now;
+                }
+            }
+            if (!batch.isEmpty()) {
+                scoreBatch(scheduler, batch, images, free, results);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while predicting", e);
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();  // Stops threads still waiting after a failure
+            }
+        }
+
+        if (walkFailure.get() != null) {
+            throw walkFailure.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Summary(files, failed, elapsed / 1e9, waitNanos / (double) elapsed);
+    }
+
+    /**
+     * Predicts a batch, reports its results and returns its images to the free set.
+     */
+    private static void scoreBatch(ParallelScheduler scheduler, List<Decoded> batch, List<Image> images,
+                                   BlockingQueue<Image> free, Consumer<Result> results) {
+        images.clear();
+        for (Decoded item : batch) {
+            images.add(item.image());
+        }
+        int[] digits = scheduler.guess(images);
+        for (int i = 0; i < batch.size(); i++) {
+            results.accept(new Result(batch.get(i).file(), digits[i]));
+            free.add(batch.get(i).image());  // Cannot fail: the free set has room for every image
+        }
+        batch.clear();
+    }
+
+    /**
+     * Lists the picture files below a directory, then tells every decoder that there are no more.
+     */
+    private void walk(Path directory, BlockingQueue<Path> paths, AtomicReference<IOException> failure, AtomicLong found) {
+        try {
+            try (Stream<Path> tree = Files.walk(directory)) {
+                Iterator<Path> files = tree.filter(FolderPredictor::isPicture).iterator();
+                while (files.hasNext()) {
+                    paths.put(files.next());
+                    found.incrementAndGet();
+                }
+            } catch (IOException e) {
+                failure.set(e);
+            } catch (UncheckedIOException e) {
+                failure.set(e.getCause());  // Raised by the stream for a directory that cannot be listed
+            }
+            for (int d = 0; d < _decoders; d++) {
+                paths.put(END_OF_FILES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();  // Scoring gave up
+        }
+    }
+
+    /**
+     * Decodes files until the walker is done. The picture is decoded before a free image is taken,
+     * so no image is held while the slow part runs.
+     */
+    private void decode(BlockingQueue<Path> paths, BlockingQueue<Image> free, BlockingQueue<Decoded> decoded) {
+        int[] rowBuffer = null;  // Reused for every picture of this decoder
+        try {
+            while (true) {
+                Path file = paths.take();
+                if (file == END_OF_FILES) {
+                    break;
+                }
+
+                BufferedImage picture;
+                try {
+                    picture = ImageIO.read(file.toFile());
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error decoding " + file + ": " + e.getMessage());
+                    picture = null;
+                }
+                if (picture == null) {
+                    decoded.put(new Decoded(file, null));
+                    continue;
+                }
+
+                Image image = free.take();
+                rowBuffer = ImageConverter.toGrayscale(picture, image.getData(), rowBuffer);
+                decoded.put(new Decoded(file, image));
+            }
+            decoded.put(new Decoded(null, null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();  // Scoring gave up
+        }
+    }
+
+    private static boolean isPicture(Path file) {
+        String name = file.getFileName() == null ? "" : file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT)) && Files.isRegularFile(file);
+    }
+
+    /**
+     * Classifies the pictures of a directory with a saved network and writes one line per file.
+     *
+     * @param args Model path, directory, output CSV (or - for standard output), then optionally the
+     *             number of decoder threads (all cores by default) and the batch size (64 by default).
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: java network.FolderPredictor <model.ser> <directory> <output.csv|-> [decoders] [batchSize]");
+            return;
+        }
+
+        NeuralNetwork network = Main.loadNetwork(args[0]);
+        if (network == null) {
+            return;  // Loading already reported the error
+        }
+        network.foldBatchNorm();  // Predicting never trains, so batch norm folds into its neighbours
+
+        int decoders = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+        FolderPredictor predictor = new FolderPredictor(network, 28, 28, decoders, batchSize);
+
+        boolean toStandardOutput = "-".equals(args[2]);
+        Writer output = toStandardOutput
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Path.of(args[2]), StandardCharsets.UTF_8);
+
+        Summary summary;
+        try {
+            output.write("file,predicted" + System.lineSeparator());
+            summary = predictor.predict(Path.of(args[1]), result -> {
+                try {
+                    output.write(result.file() + "," + result.digit() + System.lineSeparator());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (toStandardOutput) {
+                output.flush();
+            } else {
+                output.close();
+            }
+        }
+
+        System.err.printf(Locale.ROOT, "Predicted %d files (%d undecodable) in %.1f s, %.0f files/s with %d decoders%n",
+                summary.files(), summary.failed(), summary.seconds(), summary.files() / summary.seconds(), decoders);
+        System.err.printf(Locale.ROOT, "Scoring waited for decoding %.1f%% of the time%n", 100 * summary.decodeWaitShare());
+    }
+}
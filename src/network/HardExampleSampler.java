@@ -0,0 +1,249 @@
+package network;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Chooses which training images get a backward pass, to reach the same accuracy with far fewer of
+ * them. Used through {@link NeuralNetwork#train(java.util.List, HardExampleSampler, int, int)}.
+ *
+ * Every image visited in an epoch first gets a forward pass, which scores how hard it is: the squared
+ * norm of the output error, which grows with the loss and is largest for misclassified images. The
+ * backward pass then runs with probability {@code rank^selectivity}, where rank is the share of
+ * recently scored images that were easier, so hard images are almost always trained on and easy
+ * ones rarely. A forward pass costs roughly a third of a training step and the backward pass reuses
+ * its activations, so every skipped backward pass saves the other two thirds. The first epoch
+ * trains on every image, since the scores of a freshly initialized network say little.
+ *
+ * The sampler keeps the last score of every image by its index in the dataset. An image that ranked
+ * among the easiest when it was last scored is skipped without even a forward pass, until it has
+ * gone unscored for {@link #setRescoreInterval(int) a few epochs}, so an image the network starts to
+ * forget is caught again. Every image also keeps a small chance of a backward pass, so the easy part
+ * of the data still shapes the weights. Batch norm layers gather their statistics over the images
+ * that get a backward pass, which leans towards the hard ones.
+ *
+ * The dataset must keep its order across epochs, since indices are the keys; the sampler shuffles
+ * the visiting order itself. It is not thread-safe.
+ */
+public class HardExampleSampler {
+    private static final int RECENT_SCORES = 1024;  // Scores the rank of an image is measured against
+
+    private final double[] _lastScore;  // Score of every image when it was last scored
+    private final float[] _lastRank;  // Rank of every image among recent scores when it was last scored
+    private final int[] _lastScoredEpoch;  // Epoch every image was last scored in, or -1 for never
+    private final int[] _order;  // Visiting order of the current epoch
+    private final double[] _recent = new double[RECENT_SCORES];  // Ring of the most recent scores
+    private final Random _random;  // Shuffles the order and draws the backward passes
+    private int _recentCount;  // Number of scores in the ring, up to its length
+    private int _recentNext;  // Slot of the ring the next score goes into
+    private int _epoch = -1;  // Current epoch, -1 before the first one
+
+    private double _selectivity = 1.0;  // Exponent of the rank in the backward probability; higher trains on fewer images
+    private double _minProbability = 0.02;  // Smallest chance of a backward pass for a scored image
+    private double _skipRank = 0.25;  // Images ranked below this when scored are not scored again for a while
+    private int _rescoreInterval = 3;  // Epochs an easy image may go unscored
+    private int _fullEpochs = 1;  // Epochs at the start in which every image gets a backward pass
+
+    private long _visited;  // Images visited in the current epoch
+    private long _scored;  // Forward passes in the current epoch
+    private long _backward;  // Backward passes in the current epoch
+    private long _totalBackward;  // Backward passes in every epoch so far
+
+    /**
+     * Constructor to set up a sampler for a dataset.
+     *
+     * @param datasetSize Number of images in the dataset.
+     * @param seed Seed for the visiting order and the backward draws.
+     */
+    public HardExampleSampler(int datasetSize, long seed) {
+        _lastScore = new double[datasetSize];
+        _lastRank = new float[datasetSize];
+        _lastScoredEpoch = new int[datasetSize];
+        Arrays.fill(_lastScoredEpoch, -1);
+        _order = new int[datasetSize];
+        for (int i = 0; i < datasetSize; i++) {
+            _order[i] = i;
+        }
+        _random = new Random(seed);
+    }
+
+    /**
+     * Starts a new epoch in a new random visiting order and resets the epoch's counts.
+     */
+    public void startEpoch() {
+        _epoch++;
+        for (int i = _order.length - 1; i > 0; i--) {
+            int j = _random.nextInt(i + 1);
+            int swap = _order[i];
+            _order[i] = _order[j];
+            _order[j] = swap;
+        }
+        _visited = 0;
+        _scored = 0;
+        _backward = 0;
+    }
+
+    /**
+     * Gets the image visited at a position of the current epoch.
+     *
+     * @param position Position in the epoch, from 0 to the dataset size.
+     * @return Index of the image in the dataset.
+     */
+    int indexAt(int position) {
+        if (_epoch < 0) {
+            throw new IllegalStateException("startEpoch() was not called");
+        }
+        return _order[position];
+    }
+
+    /**
+     * Decides whether an image needs a forward pass in this epoch. It does not when it was among the
+     * easiest images when last scored, less than the rescore interval ago.
+     *
+     * @param index Index of the image in the dataset.
+     * @return True if the image should be scored.
+     */
+    boolean needsScoring(int index) {
+        _visited++;
+        int scoredEpoch = _lastScoredEpoch[index];
+        return _epoch < _fullEpochs || scoredEpoch < 0 || _lastRank[index] >= _skipRank
+                || _epoch - scoredEpoch >= _rescoreInterval;
+    }
+
+    /**
+     * Records the score of an image from its forward pass and decides whether it gets a backward pass.
+     *
+     * @param index Index of the image in the dataset.
+     * @param score Squared norm of the output error.
+     * @return True if the image should be trained on.
+     */
+    boolean selectForBackward(int index, double score) {
+        _scored++;
+        int easier = 0;
+        for (int i = 0; i < _recentCount; i++) {
+            if (_recent[i] < score) {
+                easier++;
+            }
+        }
+        double rank = _recentCount == 0 ? 1.0 : (double) easier / _recentCount;
+        _recent[_recentNext] = score;
+        _recentNext = (_recentNext + 1) % RECENT_SCORES;
+        _recentCount = Math.min(_recentCount + 1, RECENT_SCORES);
+
+        _lastScore[index] = score;
+        _lastRank[index] = (float) rank;
+        _lastScoredEpoch[index] = _epoch;
+
+        double probability = Math.max(_minProbability, Math.pow(rank, _selectivity));
+        boolean selected = _epoch < _fullEpochs || _random.nextDouble() < probability;
+        if (selected) {
+            _backward++;
+            _totalBackward++;
+        }
+        return selected;
+    }
+
+    /**
+     * Gets the last score of an image.
+     *
+     * @param index Index of the image in the dataset.
+     * @return Squared norm of its output error when it was last scored, or NaN if it never was.
+     */
+    public double getLastScore(int index) {
+        return _lastScoredEpoch[index] < 0 ? Double.NaN : _lastScore[index];
+    }
+
+    public int getEpoch() {
+        return _epoch;
+    }
+
+    public long getVisited() {
+        return _visited;
+    }
+
+    public long getScored() {
+        return _scored;
+    }
+
+    public long getBackwardPasses() {
+        return _backward;
+    }
+
+    public long getTotalBackwardPasses() {
+        return _totalBackward;
+    }
+
+    /**
+     * Sets how strongly backward passes favour hard images: an image ranked r among recent scores,
+     * from 0 for the easiest to 1 for the hardest, is trained on with probability r^selectivity. On
+     * average 1 / (selectivity + 1) of the scored images get a backward pass.
+     *
+     * @param selectivity Exponent; 0 trains on every scored image.
+     */
+    public void setSelectivity(double selectivity) {
+        if (selectivity < 0) {
+            throw new IllegalArgumentException("Selectivity must not be negative");
+        }
+        _selectivity = selectivity;
+    }
+
+    /**
+     * Sets the smallest chance of a backward pass, so easy images are down-weighted rather than
+     * dropped.
+     *
+     * @param minProbability Probability from 0 to 1.
+     */
+    public void setMinProbability(double minProbability) {
+        if (minProbability < 0 || minProbability > 1) {
+            throw new IllegalArgumentException("The probability must be between 0 and 1");
+        }
+        _minProbability = minProbability;
+    }
+
+    /**
+     * Sets the rank below which a scored image is skipped without a forward pass until it is due to
+     * be scored again.
+     *
+     * @param skipRank Rank from 0 to 1; 0 scores every image every epoch.
+     */
+    public void setSkipRank(double skipRank) {
+        if (skipRank < 0 || skipRank > 1) {
+            throw new IllegalArgumentException("The rank must be between 0 and 1");
+        }
+        _skipRank = skipRank;
+    }
+
+    /**
+     * Sets how many epochs an easy image may go without a forward pass.
+     *
+     * @param rescoreInterval Number of epochs; 1 scores every image every epoch.
+     */
+    public void setRescoreInterval(int rescoreInterval) {
+        if (rescoreInterval < 1) {
+            throw new IllegalArgumentException("The rescore interval must be at least 1");
+        }
+        _rescoreInterval = rescoreInterval;
+    }
+
+    /**
+     * Sets how many epochs at the start train on every image, e.g. while the scores of a freshly
+     * initialized network say little.
+     *
+     * @param fullEpochs Number of epochs.
+     */
+    public void setFullEpochs(int fullEpochs) {
+        _fullEpochs = Math.max(0, fullEpochs);
+    }
+
+    /**
+     * Describes the current epoch: the images visited, the forward and the backward passes.
+     *
+     * @return One line of counts.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "Epoch %d: %d images, %d forward passes, %d backward passes (%.1f%%)",
+                _epoch, _visited, _scored, _backward, _visited == 0 ? 0.0 : 100.0 * _backward / _visited);
+    }
+}
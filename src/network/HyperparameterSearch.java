@@ -0,0 +1,453 @@
+package network;
+
+import data.DataReader;
+import data.Image;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Searches network configurations by training many of them concurrently and culling the losers with
+ * successive halving.
+ *
+ * Every trial trains on the same in-memory images. The images are never modified; each trial visits
+ * them in its own shuffled order. Training is split into rungs: at rung {@code r} a trial has seen
+ * {@code rungImages * eta^r} images in total and is scored on the validation set. Only the best
+ * {@code 1/eta} of the trials at a rung are promoted to the next one. Promotion is asynchronous: as
+ * soon as a trial ranks in the top {@code 1/eta} of the trials scored at its rung so far, a free
+ * worker trains it further. When nothing can be promoted, the worker starts a new configuration, so
+ * no thread waits for a rung to complete. A trial that can no longer reach the top of its rung is
+ * culled and its network released. The best trial of a rung is never culled, so the search always
+ * ends with a network, however small the budget.
+ */
+public class HyperparameterSearch {
+
+    /**
+     * One network configuration, laid out like {@link Main}: a convolution, max pooling and a softmax head.
+     *
+     * @param numFilters Number of convolution filters.
+     * @param filterSize Size of each filter.
+     * @param poolWindow Size of the pooling window; pooling steps by 2.
+     * @param learningRate Learning rate of every layer.
+     */
+    public record Config(int numFilters, int filterSize, int poolWindow, double learningRate) {
+
+        /**
+         * Builds and compiles a network with this configuration.
+         *
+         * @param rows Number of rows in the input images.
+         * @param columns Number of columns in the input images.
+         * @param classes Number of classes.
+         * @param seed Random seed for the weights.
+         * @return The compiled network.
+         */
+        public NeuralNetwork build(int rows, int columns, int classes, long seed) {
+            NetworkBuilder builder = new NetworkBuilder(rows, columns, 256 * 100);
+            builder.addConvolutionLayer(numFilters, filterSize, 1, learningRate, seed);
+            builder.addMaxPoolLayer(poolWindow, 2);
+            builder.addSoftmaxOutputLayer(classes, learningRate, seed);
+            return builder.buildNetwork(true);
+        }
+    }
+
+    /**
+     * Score of a trial at a rung, reported to the listener as soon as it is known.
+     *
+     * @param trial Order in which the trial was started.
+     * @param config The trial's configuration.
+     * @param rung The rung it was scored at.
+     * @param accuracy Its validation accuracy.
+     */
+    public record Score(int trial, Config config, int rung, float accuracy) {
+    }
+
+    /**
+     * State of one configuration during the search. Guarded by the search's lock, except for the
+     * network, which only the worker currently training the trial touches.
+     */
+    private static final class Trial {
+        private final int _id;  // Order in which the trial was started
+        private final Config _config;  // Configuration being trained
+        private NeuralNetwork _network;  // Network being trained, or null once culled
+        private final int[] _order;  // Order in which the trial visits the training images
+        private int _cursor;  // Position in the order of the next image to train on
+        private final Random _random;  // Source of randomness for the trial's shuffles
+        private int _rung = -1;  // Highest rung scored so far
+        private float _accuracy;  // Validation accuracy at the highest rung scored
+        private long _trainedImages;  // Number of images trained on so far
+        private long _trainNanos;  // Time spent training and scoring
+        private boolean _running;  // Whether a worker is currently training the trial
+        private boolean _culled;  // Whether the trial can no longer be promoted
+
+        private Trial(int id, Config config, int images, long seed) {
+            _id = id;
+            _config = config;
+            _random = new Random(seed);
+            _order = new int[images];
+            for (int i = 0; i < images; i++) {
+                _order[i] = i;
+            }
+            shuffle();
+        }
+
+        private void shuffle() {
+            for (int i = _order.length - 1; i > 0; i--) {
+                int j = _random.nextInt(i + 1);
+                int swap = _order[i];
+                _order[i] = _order[j];
+                _order[j] = swap;
+            }
+        }
+    }
+
+    private final List<Image> _train;  // Shared training images, only ever read
+    private final List<Image> _validation;  // Shared validation images, only ever read
+    private final int _threads;  // Number of trials trained at once
+    private final int _eta;  // Fraction of trials promoted at each rung is 1/eta
+    private final int _rungs;  // Number of rungs
+    private final long _rungImages;  // Images trained on before the first rung
+    private final long _seed;  // Random seed for weights and shuffles
+    private volatile Consumer<Score> _listener = score -> { };  // Receives every score, on the worker threads
+
+    private final Object _lock = new Object();  // Guards the scheduling state below
+    private final Deque<Config> _pending = new ArrayDeque<>();  // Configurations not started yet
+    private final List<Trial> _trials = new ArrayList<>();  // Every started trial
+    private final List<List<Trial>> _scored = new ArrayList<>();  // Trials scored at each rung
+    private int[] _capacity;  // Most trials that can ever be scored at each rung
+    private int _running;  // Number of trials being trained
+
+    /**
+     * Constructor to set up a search over shared data.
+     *
+     * @param train Training images, shared by every trial and never modified.
+     * @param validation Images every trial is scored on after each rung.
+     * @param threads Number of trials trained at once, e.g. the number of cores.
+     * @param eta Promotion factor: the best 1/eta of the trials at a rung move on.
+     * @param rungs Number of rungs; the last one trains on {@code rungImages * eta^(rungs-1)} images.
+     * @param rungImages Number of images trained on before a trial is first scored.
+     * @param seed Random seed for weights and shuffles.
+     */
+    public HyperparameterSearch(List<Image> train, List<Image> validation, int threads, int eta, int rungs, long rungImages, long seed) {
+        _train = train;
+        _validation = validation;
+        _threads = threads;
+        _eta = eta;
+        _rungs = rungs;
+        _rungImages = rungImages;
+        _seed = seed;
+    }
+
+    /**
+     * Sets the listener that receives every score as it is recorded, e.g. to print progress. It is
+     * called from the worker threads, possibly from several at once.
+     *
+     * @param listener The listener.
+     */
+    public void setListener(Consumer<Score> listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Builds every combination of the given values.
+     *
+     * @param numFilters Filter counts to try.
+     * @param filterSizes Filter sizes to try.
+     * @param poolWindows Pooling windows to try.
+     * @param learningRates Learning rates to try.
+     * @return The configurations.
+     */
+    public static List<Config> grid(int[] numFilters, int[] filterSizes, int[] poolWindows, double[] learningRates) {
+        List<Config> configs = new ArrayList<>();
+        for (int filters : numFilters) {
+            for (int size : filterSizes) {
+                for (int window : poolWindows) {
+                    for (double learningRate : learningRates) {
+                        configs.add(new Config(filters, size, window, learningRate));
+                    }
+                }
+            }
+        }
+        return configs;
+    }
+
+    /**
+     * Runs the search until every configuration has been culled or has reached the last rung.
+     *
+     * @param configs Configurations to try, started in the given order.
+     * @return The best network found, or null if no trial was scored.
+     */
+    public NeuralNetwork run(List<Config> configs) {
+        synchronized (_lock) {
+            _pending.addAll(configs);
+            _capacity = new int[_rungs];
+            _capacity[0] = configs.size();
+            _scored.add(new ArrayList<>());
+            for (int rung = 1; rung < _rungs; rung++) {
+                _capacity[rung] = _capacity[rung - 1] / _eta;
+                _scored.add(new ArrayList<>());
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < _threads; i++) {
+                workers.add(executor.submit(this::work));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (Exception e) {
+            System.err.println("Error during hyperparameter search: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Trial> ranked = getRanking();
+        return ranked.isEmpty() ? null : ranked.get(0)._network;
+    }
+
+    /**
+     * Worker loop: takes the next runnable trial, trains it up to its next rung and scores it.
+     */
+    private void work() {
+        Trial trial;
+        while ((trial = nextTrial()) != null) {
+            long start = System.nanoTime();
+
+            if (trial._network == null) {
+                trial._network = trial._config.build(_train.get(0).getData().length, _train.get(0).getData()[0].length, 10, _seed);
+            }
+            long target = _rungImages * (long) Math.pow(_eta, trial._rung + 1);
+            train(trial, target - trial._trainedImages);
+            float accuracy = trial._network.test(_validation);
+
+            trial._trainNanos += System.nanoTime() - start;
+            finish(trial, accuracy);
+        }
+    }
+
+    /**
+     * Trains a trial on the next images of its own order, reshuffling whenever the order is used up.
+     *
+     * @param trial The trial to train.
+     * @param count Number of images to train on.
+     */
+    private void train(Trial trial, long count) {
+        List<Image> chunk = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+            if (trial._cursor == trial._order.length) {
+                trial.shuffle();
+                trial._cursor = 0;
+            }
+            chunk.add(_train.get(trial._order[trial._cursor++]));
+
+            if (chunk.size() == 1000 || i == count - 1) {
+                trial._network.train(chunk);
+                chunk.clear();
+            }
+        }
+        trial._trainedImages += count;
+    }
+
+    /**
+     * Picks the next trial to train: the best promotable trial at the highest rung, otherwise a new
+     * configuration. Waits while nothing is runnable but other trials are still being trained, since
+     * their scores may make a trial promotable.
+     *
+     * @return The trial, or null when the search is over.
+     */
+    private Trial nextTrial() {
+        synchronized (_lock) {
+            while (true) {
+                Trial promoted = findPromotion();
+                if (promoted != null) {
+                    promoted._running = true;
+                    _running++;
+                    return promoted;
+                }
+                if (!_pending.isEmpty()) {
+                    Trial trial = new Trial(_trials.size(), _pending.poll(), _train.size(), _seed + _trials.size());
+                    trial._running = true;
+                    _trials.add(trial);
+                    _running++;
+                    return trial;
+                }
+                if (_running == 0) {
+                    return null;  // Nothing left to promote or start
+                }
+                try {
+                    _lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds a trial that ranks in the top 1/eta of the trials scored at its rung and is not running.
+     * Must be called with the lock held.
+     *
+     * @return The trial, or null if there is none.
+     */
+    private Trial findPromotion() {
+        for (int rung = _rungs - 2; rung >= 0; rung--) {
+            List<Trial> scored = _scored.get(rung);
+            int promotable = scored.size() / _eta;
+
+            for (int i = 0; i < promotable; i++) {
+                Trial trial = scored.get(i);
+                if (trial._rung == rung && !trial._running) {
+                    return trial;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a trial's score at its next rung and culls every trial at that rung that can no longer
+     * be promoted, except the best trial of the search so far.
+     *
+     * @param trial The trial that finished training.
+     * @param accuracy Its validation accuracy.
+     */
+    private void finish(Trial trial, float accuracy) {
+        Score score;
+        synchronized (_lock) {
+            trial._rung++;
+            trial._accuracy = accuracy;
+            trial._running = false;
+            _running--;
+
+            List<Trial> scored = _scored.get(trial._rung);
+            scored.add(trial);
+            scored.sort(Comparator.comparingDouble((Trial t) -> t._accuracy).reversed());
+
+            if (trial._rung < _rungs - 1) {
+                // At most capacity/eta trials of this rung are ever promoted, and a trial's rank only drops
+                int slots = Math.max(1, _capacity[trial._rung] / _eta);  // The best of a rung always survives
+                Trial best = getRanking().get(0);
+                for (int i = slots; i < scored.size(); i++) {
+                    Trial loser = scored.get(i);
+                    if (loser._rung == trial._rung && !loser._running && !loser._culled && loser != best) {
+                        loser._culled = true;
+                        loser._network = null;  // Release the network
+                    }
+                }
+            }
+
+            score = new Score(trial._id, trial._config, trial._rung, accuracy);
+            _lock.notifyAll();
+        }
+        _listener.accept(score);
+    }
+
+    /**
+     * Ranks the trials by the rung they reached, then by their accuracy there.
+     *
+     * @return The trials, best first.
+     */
+    private List<Trial> getRanking() {
+        synchronized (_lock) {
+            List<Trial> ranked = new ArrayList<>(_trials);
+            ranked.removeIf(trial -> trial._rung < 0);
+            ranked.sort(Comparator.comparingInt((Trial t) -> t._rung).thenComparingDouble(t -> t._accuracy).reversed());
+            return ranked;
+        }
+    }
+
+    /**
+     * Formats the leaderboard as CSV, best trial first.
+     *
+     * @return The leaderboard.
+     */
+    public String leaderboard() {
+        StringBuilder board = new StringBuilder("rank,trial,filters,filter_size,pool_window,learning_rate,rung,images,accuracy,seconds\n");
+        List<Trial> ranked = getRanking();
+
+        for (int i = 0; i < ranked.size(); i++) {
+            Trial trial = ranked.get(i);
+            board.append(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%s,%d,%d,%.4f,%.1f%n", i + 1, trial._id,
+                    trial._config.numFilters(), trial._config.filterSize(), trial._config.poolWindow(),
+                    trial._config.learningRate(), trial._rung, trial._trainedImages, trial._accuracy, trial._trainNanos / 1e9));
+        }
+        return board.toString();
+    }
+
+    /**
+     * Writes the leaderboard as a CSV file.
+     *
+     * @param filepath Path of the file.
+     */
+    public void writeLeaderboard(String filepath) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(filepath))) {
+            out.print(leaderboard());
+            System.out.println("Leaderboard saved to " + filepath);
+        } catch (IOException e) {
+            System.err.println("Error saving leaderboard: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Searches over filter count, filter size, pooling window and learning rate on MNIST, using
+     * every core, and saves the leaderboard and the best network. Trials are scored on a validation
+     * split held out from the training images; the test images are only used once, for the accuracy
+     * of the winner, so the reported number is not biased by the selection.
+     *
+     * @param args Optional: images trained on before the first rung (default 2000).
+     */
+    public static void main(String[] args) {
+        List<Image> imagesTest;
+        List<Image> imagesTrain;
+
+        try {
+            imagesTest = new DataReader().readData("data/mnist_test.csv");
+            imagesTrain = new DataReader().readData("data/mnist_train.csv");
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error loading data: " + e.getMessage());
+            return;
+        }
+
+        List<Image> shuffled = new ArrayList<>(imagesTrain);
+        Collections.shuffle(shuffled, new Random(123));
+        int validationSize = shuffled.size() / 6;  // 10,000 of MNIST's 60,000 training images
+        List<Image> imagesValidation = shuffled.subList(0, validationSize);
+        imagesTrain = shuffled.subList(validationSize, shuffled.size());
+
+        long rungImages = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        List<Config> configs = grid(new int[]{4, 8, 16}, new int[]{3, 5, 7}, new int[]{2, 3}, new double[]{0.01, 0.1, 1.0});
+
+        HyperparameterSearch search = new HyperparameterSearch(imagesTrain, imagesValidation,
+                Runtime.getRuntime().availableProcessors(), 3, 4, rungImages, 123);
+        search.setListener(score -> System.out.printf(Locale.ROOT, "Trial %d %s rung %d: %.4f%n",
+                score.trial(), score.config(), score.rung(), score.accuracy()));
+        NeuralNetwork best = search.run(configs);
+
+        System.out.print(search.leaderboard());
+        search.writeLeaderboard("out/leaderboard.csv");
+        if (best != null) {
+            System.out.println("Test accuracy of the best network: " + best.test(imagesTest));
+            Main.saveNetwork(best, "out/best_search_network.ser");
+        } else {
+            System.err.println("No trial was scored, so no network was saved");
+        }
+    }
+}
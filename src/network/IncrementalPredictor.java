@@ -0,0 +1,196 @@
+package network;
+
+import Layers.ConvolutionLayer;
+import Layers.FullyConnectedLayer;
+import Layers.Layer;
+import Layers.MaxPoolLayer;
+import data.Image;
+
+import java.util.List;
+
+/**
+ * Keeps the activations of the last prediction around so that an image which changed in only a
+ * small region can be re-predicted without a full forward pass.
+ *
+ * The leading convolution and max pooling layers recompute only the part of their output whose
+ * windows overlap the changed region. The first fully connected layer after them updates its
+ * cached weighted sums with the difference of every input that actually changed, which for a
+ * brush stroke is a handful of rows instead of the whole weight matrix. Only the layers after
+ * that run in full. To bound rounding drift from the accumulated differences, the predictor does
+ * a full recompute every {@link #FULL_REFRESH_INTERVAL} updates.
+ *
+ * A predictor shares the layers, and their scratch state, with its network, so neither may be
+ * used from another thread while it runs.
+ */
+public class IncrementalPredictor {
+    private static final int FULL_REFRESH_INTERVAL = 256;  // Incremental updates between two full recomputes
+
+    private final List<Layer> _layers;  // Layers of the network in forward order
+    private final double _scale;  // Factor applied to every input value
+    private final int _spatialLayers;  // Number of leading convolution and pooling layers
+    private final FullyConnectedLayer _boundary;  // First fully connected layer after them, or null
+    private final double[][] _activations;  // Input of every layer, followed by the network output
+    private final double[] _boundaryInput;  // Boundary layer input as of the last update
+    private final double[] _weightedSum;  // Boundary layer weighted sums as of the last update
+    private int _updatesSinceRefresh;  // Incremental updates since the last full recompute
+    private boolean _initialized;  // Whether a full forward pass has filled the buffers
+
+    /**
+     * Constructor to initialize the predictor for a network.
+     *
+     * @param network The network to predict with.
+     */
+    public IncrementalPredictor(NeuralNetwork network) {
+        _layers = network._layers;
+        _scale = 1.0 / network.scaleFactor;
+
+        int spatial = 0;
+        while (spatial < _layers.size() && (_layers.get(spatial) instanceof ConvolutionLayer || _layers.get(spatial) instanceof MaxPoolLayer)) {
+            spatial++;
+        }
+        _spatialLayers = spatial;
+        _boundary = spatial < _layers.size() && _layers.get(spatial) instanceof FullyConnectedLayer fc ? fc : null;
+
+        _activations = new double[_layers.size() + 1][];
+        for (int i = 0; i < _layers.size(); i++) {
+            _activations[i] = new double[_layers.get(i).getInputElements()];
+        }
+        _activations[_layers.size()] = new double[_layers.get(_layers.size() - 1).getOutputElements()];
+
+        _boundaryInput = _boundary == null ? null : new double[_boundary.getInputElements()];
+        _weightedSum = _boundary == null ? null : new double[_boundary.getOutputElements()];
+    }
+
+    /**
+     * Runs a full forward pass for an image and caches every activation.
+     *
+     * @param image The input image.
+     * @return The network output. The array is reused by later calls.
+     */
+    public double[] reset(Image image) {
+        loadRegion(image, new int[]{0, image.getData().length, 0, image.getData()[0].length});
+
+        for (int i = 0; i < _layers.size(); i++) {
+            if (_layers.get(i) == _boundary) {
+                _boundary.weightedSum(_activations[i], 0, _weightedSum, 0);
+                _boundary.activate(_weightedSum, 0, _activations[i + 1], 0);
+                System.arraycopy(_activations[i], 0, _boundaryInput, 0, _boundaryInput.length);
+            } else {
+                _layers.get(i).forward(_activations[i], 0, _activations[i + 1], 0);
+            }
+        }
+
+        _updatesSinceRefresh = 0;
+        _initialized = true;
+        return getOutput();
+    }
+
+    /**
+     * Re-predicts an image of which only one region changed since the previous call.
+     *
+     * @param image The input image, with the same shape as on every earlier call.
+     * @param region Changed pixel region as {rowStart, rowEnd, columnStart, columnEnd}, ends exclusive.
+     * @return The network output. The array is reused by later calls.
+     */
+    public double[] update(Image image, int[] region) {
+        if (!_initialized || ++_updatesSinceRefresh >= FULL_REFRESH_INTERVAL) {
+            return reset(image);
+        }
+
+        loadRegion(image, region);
+
+        int[] changed = region;
+        int[] shape = {image.getChannelCount(), image.getData().length, image.getData()[0].length};
+
+        for (int i = 0; i < _spatialLayers; i++) {
+            if (changed[0] >= changed[1] || changed[2] >= changed[3]) {
+                return getOutput();  // Nothing downstream depends on the changed pixels
+            }
+
+            Layer layer = _layers.get(i);
+            if (layer instanceof ConvolutionLayer convolution) {
+                changed = convolution.getAffectedOutputRegion(changed);
+                convolution.forwardRegion(_activations[i], 0, _activations[i + 1], 0, changed);
+            } else if (layer instanceof MaxPoolLayer pool) {
+                changed = pool.getAffectedOutputRegion(changed);
+                pool.forwardRegion(_activations[i], 0, _activations[i + 1], 0, changed);
+            }
+            shape = new int[]{layer.getOutputLength(), layer.getOutputRows(), layer.getOutputColumns()};
+        }
+
+        int next = _spatialLayers;
+        if (_boundary != null) {
+            double[] input = _activations[next];
+
+            // Fold in the difference of every boundary input that changed inside the region
+            for (int l = 0; l < shape[0]; l++) {
+                for (int r = changed[0]; r < changed[1]; r++) {
+                    for (int c = changed[2]; c < changed[3]; c++) {
+                        int index = (l * shape[1] + r) * shape[2] + c;
+                        double delta = input[index] - _boundaryInput[index];
+
+                        if (delta != 0.0) {
+                            _boundary.updateWeightedSum(index, delta, _weightedSum, 0);
+                            _boundaryInput[index] = input[index];
+                        }
+                    }
+                }
+            }
+
+            _boundary.activate(_weightedSum, 0, _activations[next + 1], 0);
+            next++;
+        }
+
+        for (int i = next; i < _layers.size(); i++) {
+            _layers.get(i).forward(_activations[i], 0, _activations[i + 1], 0);
+        }
+
+        return getOutput();
+    }
+
+    /**
+     * Gets the output of the last prediction.
+     *
+     * @return The network output. The array is reused by later calls.
+     */
+    public double[] getOutput() {
+        return _activations[_layers.size()];
+    }
+
+    /**
+     * Gets the label predicted by the last call.
+     *
+     * @return Index of the largest output.
+     */
+    public int getPrediction() {
+        double[] out = getOutput();
+        int index = 0;
+
+        for (int i = 1; i < out.length; i++) {
+            if (out[i] > out[index]) {
+                index = i;
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Copies one region of every channel of an image into the input buffer, scaling it on the way in.
+     */
+    private void loadRegion(Image image, int[] region) {
+        double[] input = _activations[0];
+        int rows = image.getData().length;
+        int columns = image.getData()[0].length;
+
+        for (int channel = 0; channel < image.getChannelCount(); channel++) {
+            double[][] data = image.getChannel(channel);
+
+            for (int r = region[0]; r < region[1]; r++) {
+                for (int c = region[2]; c < region[3]; c++) {
+                    input[(channel * rows + r) * columns + c] = data[r][c] * _scale;
+                }
+            }
+        }
+    }
+}
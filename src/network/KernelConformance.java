@@ -0,0 +1,594 @@
+package network;
+
+import Layers.BatchNormLayer;
+import Layers.ConvolutionLayer;
+import Layers.FullyConnectedLayer;
+import Layers.Layer;
+import Layers.MaxPoolLayer;
+import data.Image;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Conformance harness for the optimized layer kernels.
+ *
+ * Over randomized shapes, strides and inputs it checks every optimized forward kernel (dense and
+ * sparse input paths, region updates, pruned and off-heap weights, the fused convolution and
+ * pooling step, the legacy matrix paths) against a straightforward reference implementation written
+ * from the definition of each layer. It checks every backward kernel against central finite
+ * differences: the input gradient with the layer frozen, and the parameter gradient from the update
+ * of plain SGD. Run it before enabling a new fast path:
+ * {@code java network.KernelConformance [trials] [seed]}. It exits with status 1 if any check fails.
+ */
+public class KernelConformance {
+    private static final double TOLERANCE = 1e-9;  // Largest relative difference allowed between a kernel and its reference
+    private static final double GRADIENT_TOLERANCE = 1e-5;  // Largest relative difference allowed against finite differences
+    private static final double STEP = 1e-6;  // Step of the central finite differences
+
+    private final Random _random;  // Source of the random shapes and values
+    private final Map<String, double[]> _results = new LinkedHashMap<>();  // Per check: {runs, failures, largest error}
+
+    /**
+     * Constructor to initialize the harness with a seed, so a failing case can be reproduced.
+     *
+     * @param seed Random seed for shapes and values.
+     */
+    public KernelConformance(long seed) {
+        _random = new Random(seed);
+    }
+
+    /**
+     * Runs every check on a number of random shapes.
+     *
+     * @param trials Number of random shapes per layer type.
+     * @return Number of failed checks.
+     */
+    public int run(int trials) {
+        for (int t = 0; t < trials; t++) {
+            checkConvolution();
+            checkMaxPool();
+            checkFullyConnected();
+            checkBatchNorm();
+            checkPlan();
+        }
+
+        int failures = 0;
+        System.out.printf(Locale.ROOT, "%-50s %6s %8s %10s%n", "Check", "Runs", "Failures", "Max error");
+        for (Map.Entry<String, double[]> result : _results.entrySet()) {
+            double[] r = result.getValue();
+            System.out.printf(Locale.ROOT, "%-50s %6d %8d %10.2e%n", result.getKey(), (long) r[0], (long) r[1], r[2]);
+            failures += (int) r[1];
+        }
+        return failures;
+    }
+
+    // ---------------------------------------------------------------- convolution
+
+    private void checkConvolution() {
+        int inLength = 1 + _random.nextInt(3);
+        int rows = 3 + _random.nextInt(10);
+        int columns = 3 + _random.nextInt(10);
+        int filterSize = 1 + _random.nextInt(Math.min(5, Math.min(rows, columns)));
+        int stepSize = 1 + _random.nextInt(3);
+        int numFilters = 1 + _random.nextInt(4);
+        boolean multiChannel = _random.nextBoolean();
+        long seed = _random.nextLong();
+        String shape = String.format(Locale.ROOT, "%dx%dx%d filter %d step %d filters %d multi %b",
+                inLength, rows, columns, filterSize, stepSize, numFilters, multiChannel);
+
+        ConvolutionLayer dense = new ConvolutionLayer(filterSize, stepSize, inLength, rows, columns, seed, numFilters, 1.0, multiChannel);
+        ConvolutionLayer sparse = new ConvolutionLayer(filterSize, stepSize, inLength, rows, columns, seed, numFilters, 1.0, multiChannel);
+        double[] parameters = parametersOf(dense);
+        double[] x = randomInput(dense.getInputElements(), 0.0);
+        double[] xSparse = randomInput(dense.getInputElements(), 0.8);
+
+        double[] out = new double[dense.getOutputElements()];
+        dense.forward(x, 0, out, 0);
+        compare("Convolution forward (dense)", shape, referenceConvolution(parameters, inLength, rows, columns, filterSize, stepSize, multiChannel, x), out);
+
+        double[] outSparse = new double[sparse.getOutputElements()];
+        sparse.forward(xSparse, 0, outSparse, 0);
+        compare("Convolution forward (sparse)", shape, referenceConvolution(parameters, inLength, rows, columns, filterSize, stepSize, multiChannel, xSparse), outSparse);
+
+        // Legacy matrix path
+        List<double[][]> legacy = dense.convolutionForwardPass(toMatrices(x, inLength, rows, columns));
+        compare("Convolution forward (legacy)", shape, referenceConvolution(parameters, inLength, rows, columns, filterSize, stepSize, multiChannel, x), dense.matrixToVector(legacy));
+
+        // Region update after changing a block of the input
+        int[] region = randomRegion(rows, columns);
+        double[] changed = x.clone();
+        for (int l = 0; l < inLength; l++) {
+            for (int r = region[0]; r < region[1]; r++) {
+                for (int c = region[2]; c < region[3]; c++) {
+                    changed[(l * rows + r) * columns + c] = _random.nextGaussian();
+                }
+            }
+        }
+        dense.forwardRegion(changed, 0, out, 0, dense.getAffectedOutputRegion(region));
+        compare("Convolution forward (region)", shape, referenceConvolution(parameters, inLength, rows, columns, filterSize, stepSize, multiChannel, changed), out);
+
+        checkGradients("Convolution", shape, dense, x, 1.0);
+    }
+
+    /**
+     * Reference convolution straight from the definition: every output value is the sum, over the
+     * (input channel, filter) pairs of its channel, of the filter times the window it covers.
+     */
+    private static double[] referenceConvolution(double[] filters, int inLength, int inRows, int inColumns,
+                                                 int size, int step, boolean multiChannel, double[] x) {
+        int outRows = (inRows - size) / step + 1;
+        int outColumns = (inColumns - size) / step + 1;
+        int numFilters = filters.length / (size * size);
+        int outLength = multiChannel ? numFilters / inLength : numFilters * inLength;
+        double[] out = new double[outLength * outRows * outColumns];
+
+        for (int channel = 0; channel < outLength; channel++) {
+            int pairs = multiChannel ? inLength : 1;
+            for (int p = 0; p < pairs; p++) {
+                int f = multiChannel ? channel * inLength + p : channel % numFilters;
+                int in = multiChannel ? p : channel / numFilters;
+
+                for (int r = 0; r < outRows; r++) {
+                    for (int c = 0; c < outColumns; c++) {
+                        double sum = 0;
+                        for (int i = 0; i < size; i++) {
+                            for (int j = 0; j < size; j++) {
+                                sum += filters[(f * size + i) * size + j] * x[(in * inRows + r * step + i) * inColumns + c * step + j];
+                            }
+                        }
+                        out[(channel * outRows + r) * outColumns + c] += sum;
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    // ---------------------------------------------------------------- max pooling
+
+    private void checkMaxPool() {
+        int inLength = 1 + _random.nextInt(3);
+        int rows = 2 + _random.nextInt(10);
+        int columns = 2 + _random.nextInt(10);
+        int windowSize = 1 + _random.nextInt(Math.min(3, Math.min(rows, columns)));
+        int stepSize = 1 + _random.nextInt(3);
+        String shape = String.format(Locale.ROOT, "%dx%dx%d window %d step %d", inLength, rows, columns, windowSize, stepSize);
+
+        MaxPoolLayer pool = new MaxPoolLayer(stepSize, windowSize, inLength, rows, columns);
+        double[] x = randomInput(pool.getInputElements(), 0.0);
+        double[] expected = referenceMaxPool(pool, inLength, rows, columns, windowSize, stepSize, x);
+
+        double[] out = new double[pool.getOutputElements()];
+        pool.forward(x, 0, out, 0);
+        compare("MaxPool forward", shape, expected, out);
+
+        List<double[][]> legacy = pool.maxPoolForwardPass(toMatrices(x, inLength, rows, columns));
+        compare("MaxPool forward (legacy)", shape, expected, pool.matrixToVector(legacy));
+
+        int[] region = randomRegion(rows, columns);
+        double[] changed = x.clone();
+        for (int l = 0; l < inLength; l++) {
+            for (int r = region[0]; r < region[1]; r++) {
+                for (int c = region[2]; c < region[3]; c++) {
+                    changed[(l * rows + r) * columns + c] = _random.nextGaussian();
+                }
+            }
+        }
+        pool.forwardRegion(changed, 0, out, 0, pool.getAffectedOutputRegion(region));
+        compare("MaxPool forward (region)", shape, referenceMaxPool(pool, inLength, rows, columns, windowSize, stepSize, changed), out);
+
+        checkGradients("MaxPool", shape, pool, x, 1.0);
+    }
+
+    /**
+     * Reference max pooling: output cell (r, c) is the largest value of the window at (r * step, c * step).
+     */
+    private static double[] referenceMaxPool(MaxPoolLayer pool, int inLength, int rows, int columns, int window, int step, double[] x) {
+        int outRows = pool.getOutputRows();
+        int outColumns = pool.getOutputColumns();
+        double[] out = new double[pool.getOutputElements()];
+
+        for (int l = 0; l < inLength; l++) {
+            for (int r = 0; r < outRows; r++) {
+                for (int c = 0; c < outColumns; c++) {
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int i = 0; i < window; i++) {
+                        for (int j = 0; j < window; j++) {
+                            max = Math.max(max, x[(l * rows + r * step + i) * columns + c * step + j]);
+                        }
+                    }
+                    out[(l * outRows + r) * outColumns + c] = max;
+                }
+            }
+        }
+        return out;
+    }
+
+    // ---------------------------------------------------------------- fully connected
+
+    private void checkFullyConnected() {
+        int inLength = 1 + _random.nextInt(60);
+        int outLength = 1 + _random.nextInt(20);
+        boolean linear = _random.nextBoolean();
+        long seed = _random.nextLong();
+        String shape = String.format(Locale.ROOT, "%d -> %d linear %b", inLength, outLength, linear);
+
+        FullyConnectedLayer dense = new FullyConnectedLayer(inLength, outLength, seed, 1.0, linear);
+        FullyConnectedLayer sparse = new FullyConnectedLayer(inLength, outLength, seed, 1.0, linear);
+        double[] weights = parametersOf(dense);
+        double[] x = randomInput(inLength, 0.0);
+        double[] xSparse = randomInput(inLength, 0.8);
+        xSparse[_random.nextInt(inLength)] = 1.0 + _random.nextDouble();  // An all-zero input would sit on every activation's kink
+
+        double[] out = new double[outLength];
+        dense.forward(x, 0, out, 0);
+        compare("FullyConnected forward (dense)", shape, referenceFullyConnected(weights, inLength, outLength, linear, x), out);
+
+        sparse.forward(xSparse, 0, out, 0);
+        compare("FullyConnected forward (sparse)", shape, referenceFullyConnected(weights, inLength, outLength, linear, xSparse), out);
+
+        compare("FullyConnected forward (legacy)", shape, referenceFullyConnected(weights, inLength, outLength, linear, x), dense.getOutput(x.clone()));
+
+        // Off-heap weights read in place from a segment
+        try (Arena arena = Arena.ofConfined()) {
+            FullyConnectedLayer offHeap = new FullyConnectedLayer(inLength, outLength, seed, 1.0, linear);
+            MemorySegment segment = arena.allocate(weights.length * Layer.PARAMETER_LAYOUT.byteSize(), Layer.PARAMETER_LAYOUT.byteAlignment());
+            MemorySegment.copy(weights, 0, segment, Layer.PARAMETER_LAYOUT, 0, weights.length);
+            offHeap.attachParameters(segment, 0);
+            offHeap.forward(x, 0, out, 0);
+            compare("FullyConnected forward (off-heap)", shape, referenceFullyConnected(weights, inLength, outLength, linear, x), out);
+            offHeap.setFrozen(true);  // Off-heap weights are read-only
+            checkInputGradient("FullyConnected (off-heap)", shape, offHeap, x);
+        }
+
+        // Pruned weights in CSR form, compared against the dense weights with the pruned ones zeroed
+        FullyConnectedLayer pruned = new FullyConnectedLayer(inLength, outLength, seed, 1.0, linear);
+        pruned.prune(_random.nextDouble());
+        double[] kept = parametersOf(pruned);
+        double[] prunedWeights = new double[weights.length];
+        for (int i = 0, k = 0; i < weights.length && k < kept.length; i++) {
+            if (weights[i] == kept[k]) {
+                prunedWeights[i] = kept[k++];  // The kept values are the dense ones, in the same order
+            }
+        }
+        pruned.forward(x, 0, out, 0);
+        compare("FullyConnected forward (pruned)", shape, referenceFullyConnected(prunedWeights, inLength, outLength, linear, x), out);
+
+        checkGradients("FullyConnected", shape, dense, x, 1.0);
+        checkGradients("FullyConnected (sparse input)", shape, sparse, xSparse, 1.0);
+        checkGradients("FullyConnected (pruned)", shape, pruned, x, 1.0);
+    }
+
+    /**
+     * Reference fully connected layer: z_j = sum_i w[i][j] x_i, then ReLU unless the layer is linear.
+     */
+    private static double[] referenceFullyConnected(double[] weights, int inLength, int outLength, boolean linear, double[] x) {
+        double[] out = new double[outLength];
+        for (int j = 0; j < outLength; j++) {
+            double z = 0;
+            for (int i = 0; i < inLength; i++) {
+                z += weights[i * outLength + j] * x[i];
+            }
+            out[j] = linear || z > 0 ? z : 0;
+        }
+        return out;
+    }
+
+    // ---------------------------------------------------------------- batch norm
+
+    private void checkBatchNorm() {
+        int inLength = 1 + _random.nextInt(3);
+        int rows = 3 + _random.nextInt(6);
+        int columns = 3 + _random.nextInt(6);
+        int filterSize = 1 + _random.nextInt(3);
+        long seed = _random.nextLong();
+        String shape = String.format(Locale.ROOT, "%dx%dx%d filter %d", inLength, rows, columns, filterSize);
+
+        ConvolutionLayer convolution = new ConvolutionLayer(filterSize, 1, inLength, rows, columns, seed, 1 + _random.nextInt(3), 1.0, true);
+        BatchNormLayer batchNorm = new BatchNormLayer(convolution.getOutputLength(), convolution.getOutputRows(),
+                convolution.getOutputColumns(), 0.1, 4, 0.9);
+        convolution.set_nextLayer(batchNorm);
+        batchNorm.set_previousLayer(convolution);
+
+        // Two full batches so the moving statistics differ from the identity
+        double[] features = new double[convolution.getOutputElements()];
+        double[] normalized = new double[features.length];
+        batchNorm.setTraining(true);
+        for (int n = 0; n < 8; n++) {
+            convolution.forward(randomInput(convolution.getInputElements(), 0.0), 0, features, 0);
+            for (int i = 0; i < features.length; i++) {
+                features[i] = 3 * features[i] + 1;  // Statistics away from zero mean and unit variance
+            }
+            batchNorm.forward(features, 0, normalized, 0);
+            batchNorm.backward(features, 0, normalized, 0, randomInput(features.length, 0.0), 0, null, 0);
+        }
+
+        double[] x = randomInput(convolution.getInputElements(), 0.0);
+        convolution.forward(x, 0, features, 0);
+        checkBatchNormTraining(shape, batchNorm, features, 0.1);
+        batchNorm.setTraining(false);
+        checkGradients("BatchNorm", shape, batchNorm, features, 0.1);
+
+        // Folding into the convolution must not change the function
+        batchNorm.forward(features, 0, normalized, 0);
+        batchNorm.fold();
+        double[] folded = new double[features.length];
+        convolution.forward(x, 0, folded, 0);
+        compare("BatchNorm fold", shape, normalized, folded);
+    }
+
+    /**
+     * Checks the gradients of a batch norm layer in training, where the batch statistics depend on
+     * the current sample. Forward passes leave the statistics of earlier samples alone, so the
+     * numerical gradients see the same batch as the one backward pass.
+     */
+    private void checkBatchNormTraining(String shape, BatchNormLayer batchNorm, double[] x, double learningRate) {
+        double[] g = randomInput(batchNorm.getOutputElements(), 0.0);
+        double[] numericalInput = new double[x.length];
+        double[] perturbedInput = x.clone();
+        for (int i = 0; i < x.length; i++) {
+            perturbedInput[i] = x[i] + STEP;
+            double plus = loss(batchNorm, perturbedInput, g);
+            perturbedInput[i] = x[i] - STEP;
+            double minus = loss(batchNorm, perturbedInput, g);
+            perturbedInput[i] = x[i];
+            numericalInput[i] = (plus - minus) / (2 * STEP);
+        }
+
+        double[] before = parametersOf(batchNorm);
+        double[] numericalParameters = new double[before.length];
+        double[] perturbed = before.clone();
+        for (int i = 0; i < before.length; i++) {
+            perturbed[i] = before[i] + STEP;
+            batchNorm.copyParametersFrom(perturbed, 0);
+            double plus = loss(batchNorm, x, g);
+            perturbed[i] = before[i] - STEP;
+            batchNorm.copyParametersFrom(perturbed, 0);
+            double minus = loss(batchNorm, x, g);
+            perturbed[i] = before[i];
+            numericalParameters[i] = (plus - minus) / (2 * STEP);
+        }
+        batchNorm.copyParametersFrom(before, 0);
+
+        double[] out = new double[batchNorm.getOutputElements()];
+        double[] analyticInput = new double[x.length];
+        batchNorm.forward(x, 0, out, 0);
+        batchNorm.backward(x, 0, out, 0, g, 0, analyticInput, 0);
+        compare("BatchNorm training input gradient", shape, numericalInput, analyticInput, GRADIENT_TOLERANCE);
+
+        double[] after = parametersOf(batchNorm);
+        double[] analyticParameters = new double[before.length];
+        for (int i = 0; i < before.length; i++) {
+            analyticParameters[i] = (before[i] - after[i]) / learningRate;
+        }
+        compare("BatchNorm training parameter gradient", shape, numericalParameters, analyticParameters, GRADIENT_TOLERANCE);
+    }
+
+    // ---------------------------------------------------------------- compiled plans
+
+    /**
+     * Compares the fused plan, the unfused plan and the legacy recursive path on a random network,
+     * for one prediction and one training step.
+     */
+    private void checkPlan() {
+        int channels = 1 + _random.nextInt(2);
+        int rows = 6 + _random.nextInt(10);
+        int columns = 6 + _random.nextInt(10);
+        int filterSize = 2 + _random.nextInt(3);
+        int convolutionStep = 1 + _random.nextInt(2);
+        int convolutionSize = Math.min(rows - filterSize, columns - filterSize) / convolutionStep + 1;
+        int window = 1 + _random.nextInt(Math.min(3, convolutionSize));  // The pooling window must fit the convolution output
+        int poolStep = 1 + _random.nextInt(3);
+        int numFilters = 1 + _random.nextInt(3);
+        boolean multiChannel = _random.nextBoolean();
+        boolean hidden = _random.nextBoolean();
+        int classes = 2 + _random.nextInt(9);
+        long seed = _random.nextLong();
+        String shape = String.format(Locale.ROOT, "%dx%dx%d conv %d/%d filters %d multi %b pool %d/%d hidden %b classes %d",
+                channels, rows, columns, filterSize, convolutionStep, numFilters, multiChannel, window, poolStep, hidden, classes);
+
+        List<NeuralNetwork> networks = new ArrayList<>();
+        for (int n = 0; n < 3; n++) {
+            NetworkBuilder builder = new NetworkBuilder(channels, rows, columns, 1.0);
+            builder.addConvolutionLayer(numFilters, filterSize, convolutionStep, 0.01, seed, multiChannel);
+            builder.addMaxPoolLayer(window, poolStep);
+            if (hidden) {
+                builder.addFullyConnectedLayer(8, 0.01, seed);
+            }
+            builder.addSoftmaxOutputLayer(classes, 0.01, seed);
+            networks.add(builder.buildNetwork(false));
+        }
+        NeuralNetwork fused = networks.get(0);
+        NeuralNetwork legacy = networks.get(1);
+        NeuralNetwork unfused = networks.get(2);
+        fused.compile();
+        ExecutionPlan unfusedPlan = new ExecutionPlan(unfused._layers, false);
+
+        double[][][] data = new double[channels][rows][columns];
+        for (double[][] plane : data) {
+            for (double[] row : plane) {
+                for (int c = 0; c < columns; c++) {
+                    row[c] = _random.nextDouble() < 0.5 ? 0.0 : _random.nextDouble();
+                }
+            }
+        }
+        Image image = new Image(data, _random.nextInt(classes));
+
+        double[] expected = legacy.probabilities(image);
+        compare("Plan forward (fused vs legacy)", shape, expected, fused.probabilities(image));
+
+        unfusedPlan.loadInput(image, 1.0);
+        unfusedPlan.forward();
+        double[] unfusedProbabilities = unfusedPlan.getOutput();
+        unfused.writeErrors(unfusedProbabilities, 0, unfusedProbabilities.length, image.getLabel(),
+                unfusedPlan.getGradients(), unfusedPlan.getOutputOffset());
+        SoftmaxCrossEntropy.writeProbabilities(unfusedProbabilities, 0, unfusedProbabilities.length, 1.0, unfusedProbabilities, 0);
+        compare("Plan forward (unfused vs legacy)", shape, expected, unfusedProbabilities);
+
+        unfusedPlan.backward();
+        fused.train(List.of(image));
+        legacy.train(List.of(image));
+        compare("Plan training step (fused vs legacy)", shape, legacy.getParameters(), fused.getParameters());
+        compare("Plan training step (unfused vs legacy)", shape, legacy.getParameters(), unfused.getParameters());
+    }
+
+    // ---------------------------------------------------------------- gradient checks
+
+    /**
+     * Checks a layer's backward kernel against finite differences of {@code L = sum_k g_k y_k} for a
+     * random output gradient g: the input gradient with the layer frozen, then the parameter gradient
+     * read off one unfrozen step of plain SGD with the layer's learning rate.
+     */
+    private void checkGradients(String name, String shape, Layer layer, double[] x, double learningRate) {
+        checkInputGradient(name, shape, layer, x);
+        if (layer.getParameterCount() == 0) {
+            return;
+        }
+
+        double[] g = randomInput(layer.getOutputElements(), 0.0);
+        double[] before = parametersOf(layer);
+        double[] numerical = new double[before.length];
+        double[] perturbed = before.clone();
+
+        for (int i = 0; i < before.length; i++) {
+            perturbed[i] = before[i] + STEP;
+            layer.copyParametersFrom(perturbed, 0);
+            double plus = loss(layer, x, g);
+            perturbed[i] = before[i] - STEP;
+            layer.copyParametersFrom(perturbed, 0);
+            double minus = loss(layer, x, g);
+            perturbed[i] = before[i];
+            numerical[i] = (plus - minus) / (2 * STEP);
+        }
+        layer.copyParametersFrom(before, 0);
+
+        double[] out = new double[layer.getOutputElements()];
+        layer.forward(x, 0, out, 0);
+        layer.setFrozen(false);
+        layer.backward(x, 0, out, 0, g, 0, null, 0);
+
+        double[] after = parametersOf(layer);
+        double[] analytic = new double[before.length];
+        for (int i = 0; i < before.length; i++) {
+            analytic[i] = (before[i] - after[i]) / learningRate;
+        }
+        compare(name + " parameter gradient", shape, numerical, analytic, GRADIENT_TOLERANCE);
+    }
+
+    private void checkInputGradient(String name, String shape, Layer layer, double[] x) {
+        double[] g = randomInput(layer.getOutputElements(), 0.0);
+        double[] numerical = new double[x.length];
+        double[] perturbed = x.clone();
+
+        for (int i = 0; i < x.length; i++) {
+            perturbed[i] = x[i] + STEP;
+            double plus = loss(layer, perturbed, g);
+            perturbed[i] = x[i] - STEP;
+            double minus = loss(layer, perturbed, g);
+            perturbed[i] = x[i];
+            numerical[i] = (plus - minus) / (2 * STEP);
+        }
+
+        double[] out = new double[layer.getOutputElements()];
+        double[] analytic = new double[x.length];
+        layer.setFrozen(true);  // Only the input gradient, without an update
+        layer.forward(x, 0, out, 0);
+        layer.backward(x, 0, out, 0, g, 0, analytic, 0);
+        compare(name + " input gradient", shape, numerical, analytic, GRADIENT_TOLERANCE);
+    }
+
+    private static double loss(Layer layer, double[] x, double[] g) {
+        double[] out = new double[layer.getOutputElements()];
+        layer.forward(x, 0, out, 0);
+        double sum = 0;
+        for (int k = 0; k < out.length; k++) {
+            sum += g[k] * out[k];
+        }
+        return sum;
+    }
+
+    // ---------------------------------------------------------------- helpers
+
+    private void compare(String name, String shape, double[] expected, double[] actual) {
+        compare(name, shape, expected, actual, TOLERANCE);
+    }
+
+    /**
+     * Records the largest relative difference between two vectors and reports a failure with the
+     * shape that caused it.
+     */
+    private void compare(String name, String shape, double[] expected, double[] actual, double tolerance) {
+        double error = expected.length == actual.length ? 0 : Double.POSITIVE_INFINITY;
+        for (int i = 0; i < Math.min(expected.length, actual.length); i++) {
+            double difference = Math.abs(expected[i] - actual[i]) / Math.max(1.0, Math.max(Math.abs(expected[i]), Math.abs(actual[i])));
+            error = Double.isNaN(difference) ? Double.POSITIVE_INFINITY : Math.max(error, difference);
+        }
+
+        double[] result = _results.computeIfAbsent(name, key -> new double[3]);
+        result[0]++;
+        result[2] = Math.max(result[2], error);
+        if (error > tolerance) {
+            result[1]++;
+            System.err.printf(Locale.ROOT, "FAIL %s [%s]: error %.2e%n", name, shape, error);
+        }
+    }
+
+    /**
+     * Generates a random input with roughly the given fraction of exact zeros.
+     */
+    private double[] randomInput(int length, double zeros) {
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = _random.nextDouble() < zeros ? 0.0 : _random.nextGaussian();
+        }
+        return values;
+    }
+
+    private int[] randomRegion(int rows, int columns) {
+        int rowStart = _random.nextInt(rows);
+        int columnStart = _random.nextInt(columns);
+        return new int[]{rowStart, rowStart + 1 + _random.nextInt(rows - rowStart),
+                columnStart, columnStart + 1 + _random.nextInt(columns - columnStart)};
+    }
+
+    private static List<double[][]> toMatrices(double[] x, int length, int rows, int columns) {
+        List<double[][]> matrices = new ArrayList<>();
+        for (int l = 0; l < length; l++) {
+            double[][] matrix = new double[rows][columns];
+            for (int r = 0; r < rows; r++) {
+                System.arraycopy(x, (l * rows + r) * columns, matrix[r], 0, columns);
+            }
+            matrices.add(matrix);
+        }
+        return matrices;
+    }
+
+    private static double[] parametersOf(Layer layer) {
+        double[] parameters = new double[layer.getParameterCount()];
+        layer.copyParametersTo(parameters, 0);
+        return parameters;
+    }
+
+    /**
+     * Runs the harness. Usage: {@code java network.KernelConformance [trials] [seed]}.
+     *
+     * @param args Optional number of random shapes per layer type (default 50) and seed (default 123).
+     */
+    public static void main(String[] args) {
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 123;
+
+        int failures = new KernelConformance(seed).run(trials);
+        System.out.println(failures == 0 ? "All kernels conform." : failures + " checks failed.");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
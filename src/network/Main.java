@@ -3,11 +3,14 @@ package network;
 import data.DataReader;
 import data.Image;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import static java.util.Collections.shuffle;
 
@@ -30,17 +33,26 @@ public class Main {
             return;  // Exit the program if data loading fails
         }
 
-        // Output the size of the training and test datasets
+        // Hold out part of the training data to calibrate the saved network on, so the test set stays unseen
+        List<Image> shuffled = new ArrayList<>(imagesTrain);
+        shuffle(shuffled, new Random(SEED));
+        int calibrationSize = shuffled.size() / 12;  // 5,000 of MNIST's 60,000 training images
+        List<Image> imagesCalibration = new ArrayList<>(shuffled.subList(0, calibrationSize));
+        imagesTrain = new ArrayList<>(shuffled.subList(calibrationSize, shuffled.size()));
+
+        // Output the size of the training, calibration and test datasets
         System.out.println("Images Train Size: " + imagesTrain.size());
+        System.out.println("Images Calibration Size: " + imagesCalibration.size());
         System.out.println("Images Test Size: " + imagesTest.size());
 
         // Build the neural network
         NetworkBuilder builder = new NetworkBuilder(28, 28, 256 * 100 );
         builder.addConvolutionLayer(8,5, 1, 0.1, SEED);
         builder.addMaxPoolLayer(3, 2);
-        builder.addFullyConnectedLayer(10, 0.1, SEED);
+        builder.addSoftmaxOutputLayer(10, 0.1, SEED);  // Logits trained with a fused softmax cross-entropy loss
+        builder.setCostReport(1, imagesTrain.size() + imagesCalibration.size() + imagesTest.size());  // Print FLOPs and memory before training
 
-        NeuralNetwork network = builder.buildNetwork();
+        NeuralNetwork network = builder.buildNetwork(true);  // Compile into a flat plan with preallocated buffers
 
 
         // Test the network's performance before training
@@ -52,28 +64,75 @@ public class Main {
         int epochs = 3; // Maximum number of epochs to run
         int patience = 5; // Number of epochs to wait for an improvement before stopping
         int epochsWithoutImprovement = 0; // Counter for epochs without improvement
+        int evaluationInterval = 10000; // Images between two snapshots evaluated in the background
+        boolean hardExampleSampling = List.of(args).contains("--hard-examples"); // Skip most backward passes on images the network already gets right
+        HardExampleSampler sampler = hardExampleSampling ? new HardExampleSampler(imagesTrain.size(), SEED) : null;
+
+        // Training loop with early stopping; snapshots are evaluated on a background thread while training continues
+        try (AsyncEvaluator evaluator = new AsyncEvaluator(network, imagesTest, imagesCalibration)) {
+            int lastImprovedEpoch = -1; // Epoch of the last snapshot that improved the success rate
+
+            for (int i = 0; i < epochs && epochsWithoutImprovement < patience; i++) {
+                if (sampler != null) {
+                    sampler.startEpoch();  // The sampler keys images by index, so it shuffles its own visiting order
+                } else {
+                    shuffle(imagesTrain);  // Shuffle the training data before each epoch
+                }
+
+                for (int start = 0; start < imagesTrain.size(); start += evaluationInterval) {
+                    int end = Math.min(start + evaluationInterval, imagesTrain.size());
+                    if (sampler != null) {
+                        network.train(imagesTrain, sampler, start, end);  // Train on the hard images of the next chunk
+                    } else {
+                        network.train(imagesTrain.subList(start, end));  // Train the network on the next chunk
+                    }
+                    evaluator.submit(i, end, end == imagesTrain.size());
+                }
+                if (sampler != null) {
+                    System.out.println(sampler);  // Forward and backward passes of the epoch
+                }
+                if (i == epochs - 1) {
+                    evaluator.awaitIdle();  // No more training to overlap with, so wait for the last results
+                }
 
-        // Training loop with early stopping
-        for (int i = 0; i < epochs; i++) {
-            shuffle(imagesTrain);  // Shuffle the training data before each epoch
-            network.train(imagesTrain);  // Train the network on the shuffled data
-            float currentRate = network.test(imagesTest);  // Test the network after training
-            System.out.println("Success Rate after round " + i + ": " + currentRate);
-
-            // Check if the current model is the best so far
-            if (currentRate > bestRate) {
-                bestRate = currentRate;
-                epochsWithoutImprovement = 0;  // Reset the counter
-                saveNetwork(network, "out/trained_networkV5.ser");  // Save the best network
-                System.out.println("New best success rate: " + bestRate + ". Model saved.");
-            } else {
-                epochsWithoutImprovement++;
-                if (epochsWithoutImprovement >= patience) {
-                    System.out.println("Early stopping triggered. Training stopped.");
-                    break;  // Exit the training loop
+                // Consume the results that have arrived; an epoch's result usually arrives during the next one
+                AsyncEvaluator.Evaluation result;
+                while ((result = evaluator.poll()) != null) {
+                    float previousBest = bestRate;
+                    bestRate = report(result, bestRate, evaluator);
+                    if (bestRate > previousBest) {
+                        lastImprovedEpoch = result.epoch();
+                    }
+                    if (result.endOfEpoch()) {
+                        epochsWithoutImprovement = lastImprovedEpoch == result.epoch() ? 0 : epochsWithoutImprovement + 1;
+                    }
                 }
             }
+
+            if (epochsWithoutImprovement >= patience) {
+                System.out.println("Early stopping triggered. Training stopped.");
+            }
+        }  // Closing waits for the last save
+    }
+
+    /**
+     * Prints an evaluation result and saves the snapshot if it is the best so far.
+     *
+     * @param result The evaluation result.
+     * @param bestRate Best success rate so far.
+     * @param evaluator The evaluator that produced the result.
+     * @return The new best success rate.
+     */
+    private static float report(AsyncEvaluator.Evaluation result, float bestRate, AsyncEvaluator evaluator) {
+        System.out.println("Success Rate in round " + result.epoch() + " after " + result.imagesTrained() + " images: " + result.accuracy());
+
+        // Check if the current model is the best so far
+        if (result.accuracy() > bestRate) {
+            evaluator.save(result, "out/trained_networkV5.ser");  // Save the best network
+            System.out.println("New best success rate: " + result.accuracy() + ". Saving model.");
+            return result.accuracy();
         }
+        return bestRate;
     }
 
     // Method to save the trained network to a file
@@ -91,7 +150,7 @@ public class Main {
     // Method to load the trained network from a file
     public static NeuralNetwork loadNetwork(String filepath) {
         try (FileInputStream fileIn = new FileInputStream(filepath);
-             ObjectInputStream in = new ObjectInputStream(fileIn)) {
+             ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(fileIn, 1 << 16))) {  // Buffered, so small reads do not each hit the file
             return (NeuralNetwork) in.readObject();
         } catch (Exception e) {
             System.err.println("Error loading neural network: " + e.getMessage());
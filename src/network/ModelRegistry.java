@@ -0,0 +1,246 @@
+package network;
+
+import data.Image;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the network currently used for inference and swaps in new versions without downtime.
+ *
+ * A registry created with {@link #watch(Path, int)} watches a model directory. When a {@code .ser}
+ * file appears or changes, it waits for the write to settle, then loads and warms up the new
+ * network on a background thread, and prepares a {@link ParallelScheduler} for it with as many
+ * replicas as the current one has. Only after that does it swap the new network in behind an
+ * atomic reference. Callers always get whatever network is current when they start, so in-flight
+ * predictions finish on the old network and no prediction ever waits for a load. A network that
+ * fails to load is reported and the current one stays in place.
+ *
+ * A network is only ever used by one thread at a time: {@link #guess(Image)} runs under the
+ * network's own monitor, and other callers of {@link #current()} must do the same.
+ */
+public class ModelRegistry implements AutoCloseable {
+    private static final long SETTLE_MILLIS = 250;  // Quiet period after the last change before a file is loaded
+
+    /**
+     * A loaded network together with the version it was loaded from.
+     *
+     * @param network The network.
+     * @param scheduler Scheduler for batches on the network, with its replicas already copied.
+     * @param version File name and modification time of the model file, or a caller supplied name.
+     * @param loadedAtMillis When the network became current.
+     */
+    public record Model(NeuralNetwork network, ParallelScheduler scheduler, String version, long loadedAtMillis) {
+    }
+
+    private final AtomicReference<Model> _current;  // Network used by every new prediction
+    private final int _warmUpIterations;  // Synthetic forward passes run before a network goes live
+    private final AtomicLong _swaps = new AtomicLong();  // Number of networks swapped in after the first
+    private volatile long _lastSwapMillis = -1;  // Time from noticing a change to the swap, for the last swap
+    private final Map<Path, ScheduledFuture<?>> _pendingLoads = new ConcurrentHashMap<>();  // Debounced loads per file
+    private ScheduledExecutorService _loader;  // Background thread loading and warming up new networks
+    private WatchService _watcher;  // Watches the model directory
+    private Thread _watchThread;  // Thread turning directory events into loads
+
+    private ModelRegistry(Model initial, int warmUpIterations) {
+        _current = new AtomicReference<>(initial);
+        _warmUpIterations = warmUpIterations;
+    }
+
+    /**
+     * Creates a registry that always serves the same network.
+     *
+     * @param network The network to serve.
+     * @param version Name reported as the model version.
+     * @return The registry.
+     */
+    public static ModelRegistry fixed(NeuralNetwork network, String version) {
+        return new ModelRegistry(new Model(network, new ParallelScheduler(network), version, System.currentTimeMillis()), 0);
+    }
+
+    /**
+     * Creates a registry serving the newest model in a directory and watching it for new versions.
+     * The initial model is loaded and warmed up before this method returns.
+     *
+     * @param directory Directory holding {@code .ser} model files.
+     * @param warmUpIterations Synthetic forward passes run on every network before it goes live.
+     * @return The registry.
+     * @throws IOException If the directory cannot be read or watched, or holds no loadable model.
+     */
+    public static ModelRegistry watch(Path directory, int warmUpIterations) throws IOException {
+        Path newest = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.ser")) {
+            for (Path file : files) {
+                if (newest == null || Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(newest)) > 0) {
+                    newest = file;
+                }
+            }
+        }
+        if (newest == null) {
+            throw new IOException("No .ser model found in " + directory);
+        }
+
+        Model initial = load(newest, warmUpIterations, 1);
+        if (initial == null) {
+            throw new IOException("Could not load model " + newest);
+        }
+
+        ModelRegistry registry = new ModelRegistry(initial, warmUpIterations);
+        registry.startWatching(directory);
+        return registry;
+    }
+
+    /**
+     * Gets the current model. Use its network under the network's monitor.
+     *
+     * @return The current model.
+     */
+    public Model current() {
+        return _current.get();
+    }
+
+    /**
+     * Makes a prediction with whichever network is current when the call starts.
+     *
+     * @param image The input image to be classified.
+     * @return The predicted label for the image.
+     */
+    public int guess(Image image) {
+        NeuralNetwork network = _current.get().network();
+        synchronized (network) {
+            return network.guess(image);
+        }
+    }
+
+    public String getCurrentVersion() {
+        return _current.get().version();
+    }
+
+    /**
+     * Gets how long the last swap took, from noticing the changed file to the new network going live.
+     *
+     * @return Swap latency in milliseconds, or -1 before the first swap.
+     */
+    public long getLastSwapMillis() {
+        return _lastSwapMillis;
+    }
+
+    public long getSwapCount() {
+        return _swaps.get();
+    }
+
+    /**
+     * Schedules a model file to be loaded, warmed up and swapped in on the background thread.
+     * Repeated requests for the same file within the settle period collapse into one load.
+     *
+     * @param file The model file.
+     */
+    public void reload(Path file) {
+        if (_loader == null) {
+            throw new IllegalStateException("A fixed registry cannot reload models");
+        }
+
+        long requestedAt = System.nanoTime();
+        ScheduledFuture<?> previous = _pendingLoads.put(file, _loader.schedule(() -> {
+            _pendingLoads.remove(file);
+            Model model = load(file, _warmUpIterations, _current.get().scheduler().getReplicaCount());
+            if (model != null) {
+                _current.set(model);
+                _lastSwapMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestedAt);
+                _swaps.incrementAndGet();
+                System.out.println("Swapped in model " + model.version() + " after " + _lastSwapMillis + " ms");
+            }
+        }, SETTLE_MILLIS, TimeUnit.MILLISECONDS));
+
+        if (previous != null) {
+            previous.cancel(false);  // A newer change to the same file supersedes the pending load
+        }
+    }
+
+    private void startWatching(Path directory) throws IOException {
+        _loader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        _watcher = FileSystems.getDefault().newWatchService();
+        directory.register(_watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        _watchThread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = _watcher.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path name && name.toString().endsWith(".ser")) {
+                            reload(directory.resolve(name));
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Registry closed
+            }
+        }, "model-watcher");
+        _watchThread.setDaemon(true);
+        _watchThread.start();
+    }
+
+    /**
+     * Loads and warms up a model file and prepares its scheduler.
+     *
+     * @param file The model file.
+     * @param warmUpIterations Synthetic forward passes to run before returning.
+     * @param replicas Number of batch threads to copy replicas for.
+     * @return The loaded model, or null if it could not be loaded.
+     */
+    private static Model load(Path file, int warmUpIterations, int replicas) {
+        try {
+            String version = file.getFileName() + "@" + Files.getLastModifiedTime(file).toMillis();
+            NeuralNetwork network = Main.loadNetwork(file.toString());
+            if (network == null) {
+                return null;  // Loading already reported the error
+            }
+
+            network.foldBatchNorm();  // Served networks never train, so batch norm folds into its neighbours
+            network.warmUp(warmUpIterations);
+            ParallelScheduler scheduler = new ParallelScheduler(network);
+            scheduler.prepareReplicas(replicas);  // Copying the network is too slow for the first batch to do it
+            return new Model(network, scheduler, version, System.currentTimeMillis());
+        } catch (Exception e) {
+            System.err.println("Error loading model " + file + ": " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (_watcher != null) {
+                _watcher.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing model watcher: " + e.getMessage());
+        }
+        if (_loader != null) {
+            _loader.shutdownNow();
+        }
+    }
+}
@@ -1,20 +1,28 @@
 package network;
 
+import Layers.BatchNormLayer;
 import Layers.ConvolutionLayer;
 import Layers.FullyConnectedLayer;
 import Layers.Layer;
 import Layers.MaxPoolLayer;
+import optimizers.Optimizer;
 
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class NetworkBuilder implements Serializable {
     private static final long serialVersionUID = 1L;
     private NeuralNetwork network;  // The neural network being built
+    private int _inputChannels;  // Number of channels in the input data
     private int _inputRows;  // Number of rows in the input data
     private int _inputColumns;  // Number of columns in the input data
     private double _scaleFactor;  // Scale factor for normalizing input data
+    private boolean _softmaxOutput;  // Whether the last layer is a softmax cross-entropy head
+    private Optimizer _optimizer;  // Update rule given to every layer, or null for plain SGD
+    private int _reportBatchSize;  // Samples in flight for the cost report printed on build, or 0 for no report
+    private int _reportImages;  // Images held in memory for the cost report's peak heap prediction
     List<Layer> _layers;  // List to hold the layers of the network
 
     /**
@@ -25,6 +33,19 @@ public class NetworkBuilder implements Serializable {
      * @param _scaleFactor Scale factor for normalizing the input data.
      */
     public NetworkBuilder(int _inputRows, int _inputColumns, double _scaleFactor) {
+        this(1, _inputRows, _inputColumns, _scaleFactor);
+    }
+
+    /**
+     * Constructor to initialize the NetworkBuilder for multi-channel input (e.g. 3-channel color images).
+     *
+     * @param _inputChannels Number of channels in the input data.
+     * @param _inputRows Number of rows in the input data.
+     * @param _inputColumns Number of columns in the input data.
+     * @param _scaleFactor Scale factor for normalizing the input data.
+     */
+    public NetworkBuilder(int _inputChannels, int _inputRows, int _inputColumns, double _scaleFactor) {
+        this._inputChannels = _inputChannels;
         this._inputRows = _inputRows;
         this._inputColumns = _inputColumns;
         this._scaleFactor = _scaleFactor;
@@ -41,14 +62,29 @@ public class NetworkBuilder implements Serializable {
      * @param SEED Random seed for initializing weights.
      */
     public void addConvolutionLayer(int numFilters, int filterSize, int stepSize, double learningRate, long SEED) {
+        addConvolutionLayer(numFilters, filterSize, stepSize, learningRate, SEED, false);
+    }
+
+    /**
+     * Adds a Convolutional Layer to the network, choosing how input channels are combined.
+     *
+     * @param numFilters Number of filters (output channels in multi-channel mode) in the convolutional layer.
+     * @param filterSize Size of each filter (assumed to be square).
+     * @param stepSize Step size for the convolution operation.
+     * @param learningRate Learning rate for the layer.
+     * @param SEED Random seed for initializing weights.
+     * @param multiChannel Whether each output channel sums over all input channels instead of every
+     *                     filter being applied to every input channel separately.
+     */
+    public void addConvolutionLayer(int numFilters, int filterSize, int stepSize, double learningRate, long SEED, boolean multiChannel) {
         try {
             if (_layers.isEmpty()) {
                 // First layer, no previous layer exists
-                _layers.add(new ConvolutionLayer(filterSize, stepSize, 1, _inputRows, _inputColumns, SEED, numFilters, learningRate));
+                _layers.add(new ConvolutionLayer(filterSize, stepSize, _inputChannels, _inputRows, _inputColumns, SEED, numFilters, learningRate, multiChannel));
             } else {
                 // Add convolutional layer after existing layers
                 Layer previous = _layers.get(_layers.size() - 1);
-                _layers.add(new ConvolutionLayer(filterSize, stepSize, previous.getOutputLength(), previous.getOutputRows(), previous.getOutputColumns(), SEED, numFilters, learningRate));
+                _layers.add(new ConvolutionLayer(filterSize, stepSize, previous.getOutputLength(), previous.getOutputRows(), previous.getOutputColumns(), SEED, numFilters, learningRate, multiChannel));
             }
         } catch (Exception e) {
             System.err.println("Error adding Convolutional Layer: " + e.getMessage());
@@ -66,7 +102,7 @@ public class NetworkBuilder implements Serializable {
         try {
             if (_layers.isEmpty()) {
                 // First layer, no previous layer exists
-                _layers.add(new MaxPoolLayer(stepSize, windowSize, 1, _inputRows, _inputColumns));
+                _layers.add(new MaxPoolLayer(stepSize, windowSize, _inputChannels, _inputRows, _inputColumns));
             } else {
                 // Add max pooling layer after existing layers
                 Layer previous = _layers.get(_layers.size() - 1);
@@ -89,7 +125,7 @@ public class NetworkBuilder implements Serializable {
         try {
             if (_layers.isEmpty()) {
                 // First layer, fully connected directly to input
-                _layers.add(new FullyConnectedLayer(_inputColumns * _inputRows, outLength, SEED, learningRate));
+                _layers.add(new FullyConnectedLayer(_inputChannels * _inputColumns * _inputRows, outLength, SEED, learningRate));
             } else {
                 // Add fully connected layer after existing layers
                 Layer previous = _layers.get(_layers.size() - 1);
@@ -101,13 +137,135 @@ public class NetworkBuilder implements Serializable {
         }
     }
 
+    /**
+     * Adds a Batch Normalization Layer that normalizes each channel of the previous layer's output,
+     * gathering statistics over batches of 32 training samples.
+     *
+     * @param learningRate Learning rate for the layer's scale and shift.
+     */
+    public void addBatchNormLayer(double learningRate) {
+        addBatchNormLayer(learningRate, 32, 0.9);
+    }
+
+    /**
+     * Adds a Batch Normalization Layer that normalizes each channel of the previous layer's output,
+     * or each neuron after a fully connected layer. Before serving, {@link NeuralNetwork#foldBatchNorm()}
+     * merges it into the neighbouring layer. The layer before it trains at its usual learning rate,
+     * but its outputs have unit scale, so the layer after it may need a smaller rate than without it.
+     *
+     * @param learningRate Learning rate for the layer's scale and shift.
+     * @param batchSize Number of training samples whose statistics are gathered per batch.
+     * @param momentum Weight of the old moving statistics when a batch is folded in.
+     */
+    public void addBatchNormLayer(double learningRate, int batchSize, double momentum) {
+        try {
+            if (_layers.isEmpty()) {
+                // First layer, normalizes the input channels
+                _layers.add(new BatchNormLayer(_inputChannels, _inputRows, _inputColumns, learningRate, batchSize, momentum));
+            } else {
+                Layer previous = _layers.get(_layers.size() - 1);
+                if (previous.getOutputLength() == 0) {
+                    // A fully connected layer has no channels, so each neuron is normalized on its own
+                    _layers.add(new BatchNormLayer(previous.getOutputElements(), 1, 1, learningRate, batchSize, momentum));
+                } else {
+                    _layers.add(new BatchNormLayer(previous.getOutputLength(), previous.getOutputRows(), previous.getOutputColumns(), learningRate, batchSize, momentum));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Error adding Batch Normalization Layer: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds the output layer as a softmax head: a linear Fully Connected Layer whose outputs are
+     * logits, trained with a fused softmax cross-entropy loss. This should be the last layer added.
+     *
+     * @param numClasses Number of classes, i.e. output neurons.
+     * @param learningRate Learning rate for the layer.
+     * @param SEED Random seed for initializing weights.
+     */
+    public void addSoftmaxOutputLayer(int numClasses, double learningRate, long SEED) {
+        try {
+            int inLength = _layers.isEmpty() ? _inputChannels * _inputColumns * _inputRows : _layers.get(_layers.size() - 1).getOutputElements();
+            _layers.add(new FullyConnectedLayer(inLength, numClasses, SEED, learningRate, true));
+            _softmaxOutput = true;
+        } catch (Exception e) {
+            System.err.println("Error adding Softmax Output Layer: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sets the optimizer used by every layer, e.g. {@code new AdamOptimizer()}. Each layer keeps its
+     * own learning rate and its own copy of the optimizer state. Without this, layers use plain SGD.
+     *
+     * @param optimizer The configured optimizer.
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        this._optimizer = optimizer;
+    }
+
+    /**
+     * Estimates the cost of the layers added so far: per-layer FLOPs, parameter, optimizer and
+     * activation memory, and the predicted peak heap.
+     *
+     * @param batchSize Number of samples in flight at once.
+     * @return The cost model.
+     */
+    public NetworkCost estimateCost(int batchSize) {
+        return new NetworkCost(_layers, _inputChannels, _inputRows, _inputColumns, _optimizer, batchSize);
+    }
+
+    /**
+     * Makes {@link #buildNetwork()} print the cost report, with a warning if the predicted peak heap
+     * does not fit into the heap of this JVM. The prediction is an estimate, so the network is built
+     * either way; to reject a configuration, call {@link NetworkCost#requireFits} on
+     * {@link #estimateCost(int)} before loading the data.
+     *
+     * @param batchSize Number of samples in flight at once.
+     * @param images Number of images held in memory, e.g. the training and test sets together.
+     */
+    public void setCostReport(int batchSize, int images) {
+        this._reportBatchSize = batchSize;
+        this._reportImages = images;
+    }
+
     /**
      * Builds and returns the final NeuralNetwork object.
      *
      * @return The constructed NeuralNetwork object.
      */
     public NeuralNetwork buildNetwork() {
-            network = new NeuralNetwork(_layers, _scaleFactor);
+            if (_reportBatchSize > 0) {
+                NetworkCost cost = estimateCost(_reportBatchSize);
+                System.out.print(cost.report(_reportImages));
+                long maxHeap = Runtime.getRuntime().maxMemory();
+                if (!cost.fits(_reportImages, maxHeap)) {
+                    System.err.println(String.format(Locale.ROOT, "Warning: predicted peak heap of %s exceeds the available %s",
+                            NetworkCost.formatBytes(cost.getPeakHeapBytes(_reportImages)), NetworkCost.formatBytes(maxHeap)));
+                }
+            }
+            if (_optimizer != null) {
+                for (Layer layer : _layers) {
+                    layer.setOptimizer(_optimizer);  // Binds fresh state to each layer
+                }
+            }
+            network = new NeuralNetwork(_layers, _scaleFactor, _softmaxOutput);
             return network;
     }
+
+    /**
+     * Builds the final NeuralNetwork object, optionally compiling it into a flat execution plan.
+     *
+     * @param compile Whether the network should run through a compiled plan with preallocated buffers.
+     * @return The constructed NeuralNetwork object.
+     */
+    public NeuralNetwork buildNetwork(boolean compile) {
+        NeuralNetwork built = buildNetwork();
+        if (compile) {
+            built.compile();
+        }
+        return built;
+    }
 }
@@ -0,0 +1,192 @@
+package network;
+
+import Layers.FullyConnectedLayer;
+import Layers.Layer;
+import optimizers.Optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Static cost model of a network topology, computed from the layer shapes without running anything.
+ *
+ * For every layer it estimates the floating point operations of a forward and a backward pass, the
+ * memory of its parameters and optimizer state, and the memory of its output activation. From these
+ * it predicts the peak heap of a training run: parameters and optimizer state once, the activation
+ * and gradient arenas of a compiled plan for every sample in flight, and the loaded images. The
+ * figures are estimates of the data the network itself holds; JVM overhead comes on top.
+ */
+public class NetworkCost {
+    private static final long ARRAY_HEADER_BYTES = 16;  // Object header and length of an array on a 64-bit JVM
+
+    /**
+     * Cost of a single layer.
+     *
+     * @param name Simple class name of the layer.
+     * @param forwardFlops Operations of one forward pass.
+     * @param backwardFlops Operations of one backward pass.
+     * @param parameterBytes Memory of the parameters.
+     * @param optimizerBytes Memory of the optimizer state.
+     * @param activationBytes Memory of the output activation of one sample.
+     */
+    public record LayerCost(String name, long forwardFlops, long backwardFlops, long parameterBytes,
+                            long optimizerBytes, long activationBytes) {
+    }
+
+    private final List<LayerCost> _layers = new ArrayList<>();  // Cost of every layer, in forward order
+    private final long _inputBytes;  // Memory of one sample's input activation
+    private final long _imageBytes;  // Memory of one loaded image
+    private final int _batchSize;  // Number of samples in flight at once
+
+    /**
+     * Computes the cost of a list of layers.
+     *
+     * @param layers Layers of the network in forward order.
+     * @param inputChannels Number of channels in the input data.
+     * @param inputRows Number of rows in the input data.
+     * @param inputColumns Number of columns in the input data.
+     * @param optimizer Optimizer given to every layer, or null for plain SGD.
+     * @param batchSize Number of samples in flight at once, e.g. the micro-batch size of a server or
+     *                  the number of training threads with their own plan.
+     */
+    public NetworkCost(List<Layer> layers, int inputChannels, int inputRows, int inputColumns, Optimizer optimizer, int batchSize) {
+        for (Layer layer : layers) {
+            long parameterBytes = layer instanceof FullyConnectedLayer fullyConnected
+                    ? fullyConnected.getWeightByteSize()
+                    : (long) layer.getParameterCount() * Double.BYTES;
+            long optimizerBytes = optimizer == null ? 0 : optimizer.getStateByteSize(layer.getParameterCount());
+
+            _layers.add(new LayerCost(layer.getClass().getSimpleName(), layer.getForwardFlops(), layer.getBackwardFlops(),
+                    parameterBytes, optimizerBytes, (long) layer.getOutputElements() * Double.BYTES));
+        }
+        _inputBytes = (long) inputChannels * inputRows * inputColumns * Double.BYTES;
+        _imageBytes = inputChannels * (ARRAY_HEADER_BYTES + inputRows * (ARRAY_HEADER_BYTES + (long) inputColumns * Double.BYTES));
+        _batchSize = batchSize;
+    }
+
+    public List<LayerCost> getLayers() {
+        return _layers;
+    }
+
+    public long getForwardFlops() {
+        return _layers.stream().mapToLong(LayerCost::forwardFlops).sum();
+    }
+
+    public long getBackwardFlops() {
+        return _layers.stream().mapToLong(LayerCost::backwardFlops).sum();
+    }
+
+    public long getParameterBytes() {
+        return _layers.stream().mapToLong(LayerCost::parameterBytes).sum();
+    }
+
+    public long getOptimizerBytes() {
+        return _layers.stream().mapToLong(LayerCost::optimizerBytes).sum();
+    }
+
+    /**
+     * Gets the memory of every activation of one sample, including the input. A compiled plan keeps
+     * all of them at once, and a gradient arena of the same size.
+     *
+     * @return Size in bytes.
+     */
+    public long getActivationBytesPerSample() {
+        return _inputBytes + _layers.stream().mapToLong(LayerCost::activationBytes).sum();
+    }
+
+    public long getActivationBytesPerBatch() {
+        return getActivationBytesPerSample() * _batchSize;
+    }
+
+    /**
+     * Predicts the peak heap of training on a data set: parameters and optimizer state, the
+     * activation and gradient arenas of every sample in flight, and the loaded images.
+     *
+     * @param images Number of images held in memory, e.g. the training and test sets together.
+     * @return Size in bytes.
+     */
+    public long getPeakHeapBytes(int images) {
+        return getParameterBytes() + getOptimizerBytes() + 2 * getActivationBytesPerBatch() + images * _imageBytes;
+    }
+
+    /**
+     * Whether the predicted peak heap fits into the available heap.
+     *
+     * @param images Number of images held in memory.
+     * @param maxHeapBytes Heap available, e.g. {@code Runtime.getRuntime().maxMemory()}.
+     * @return True if the prediction does not exceed the available heap.
+     */
+    public boolean fits(int images, long maxHeapBytes) {
+        return getPeakHeapBytes(images) <= maxHeapBytes;
+    }
+
+    /**
+     * Rejects a configuration whose predicted peak heap does not fit. Callers that want to fail
+     * fast should call this before loading the data, since the prediction counts the images.
+     *
+     * @param images Number of images held in memory.
+     * @param maxHeapBytes Heap available, e.g. {@code Runtime.getRuntime().maxMemory()}.
+     * @throws IllegalStateException If the prediction exceeds the available heap.
+     */
+    public void requireFits(int images, long maxHeapBytes) {
+        if (!fits(images, maxHeapBytes)) {
+            long peak = getPeakHeapBytes(images);
+            throw new IllegalStateException(String.format(Locale.ROOT,
+                    "Predicted peak heap of %s exceeds the available %s", formatBytes(peak), formatBytes(maxHeapBytes)));
+        }
+    }
+
+    /**
+     * Formats the per-layer costs and totals as a table.
+     *
+     * @param images Number of images held in memory, used for the peak heap prediction.
+     * @return The report.
+     */
+    public String report(int images) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-3s %-20s %12s %12s %10s %10s %10s%n",
+                "#", "Layer", "Fwd FLOPs", "Bwd FLOPs", "Params", "Optimizer", "Act/sample"));
+
+        for (int i = 0; i < _layers.size(); i++) {
+            LayerCost layer = _layers.get(i);
+            report.append(String.format(Locale.ROOT, "%-3d %-20s %12d %12d %10s %10s %10s%n", i, layer.name(),
+                    layer.forwardFlops(), layer.backwardFlops(), formatBytes(layer.parameterBytes()),
+                    formatBytes(layer.optimizerBytes()), formatBytes(layer.activationBytes())));
+        }
+
+        report.append(String.format(Locale.ROOT, "%-24s %12d %12d %10s %10s %10s%n", "Total",
+                getForwardFlops(), getBackwardFlops(), formatBytes(getParameterBytes()),
+                formatBytes(getOptimizerBytes()), formatBytes(getActivationBytesPerSample())));
+        report.append(String.format(Locale.ROOT, "Activations per batch of %d: %s, plus as much for gradients%n",
+                _batchSize, formatBytes(getActivationBytesPerBatch())));
+        report.append(String.format(Locale.ROOT, "Predicted peak heap with %d images loaded: %s%n",
+                images, formatBytes(getPeakHeapBytes(images))));
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report(0);
+    }
+
+    /**
+     * Formats a size with a binary unit.
+     *
+     * @param bytes Size in bytes.
+     * @return E.g. "1.5 MB".
+     */
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String units = "KMGT";
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format(Locale.ROOT, "%.1f %cB", value, units.charAt(unit));
+    }
+}
@@ -1,14 +1,22 @@
 package network;
 
+import Layers.BatchNormLayer;
 import Layers.Layer;
 import data.Image;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serial;
 import java.io.Serializable;
+import java.lang.foreign.MemorySegment;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
-import static data.MatrixUtility.add;
 import static data.MatrixUtility.multiply;
 
 public class NeuralNetwork implements Serializable {
@@ -16,6 +24,11 @@ public class NeuralNetwork implements Serializable {
     private static final long serialVersionUID = 1L;
     List<Layer> _layers;  // List of layers in the neural network
     double scaleFactor;    // Scale factor used for normalizing input data
+    boolean _compiled;     // Whether forward and backward passes run through a compiled plan
+    boolean _unfused;      // Whether the plan runs convolution and max pooling as separate steps; false in older saved networks, which were always fused
+    boolean _softmaxOutput;  // Whether the output layer produces logits trained with softmax cross-entropy
+    private double _logTemperature;  // Log of the calibrated softmax temperature, 0 (temperature 1) until calibrated
+    private transient ExecutionPlan _plan;  // Compiled plan, rebuilt lazily after deserialization
 
     /**
      * Constructor to initialize the NeuralNetwork with a list of layers and a scale factor.
@@ -29,11 +42,27 @@ public class NeuralNetwork implements Serializable {
         linkLayers();  // Link the layers together to form the network
     }
 
+    /**
+     * Constructor to initialize the NeuralNetwork, choosing how the output layer is trained.
+     *
+     * @param _layers List of layers that make up the neural network.
+     * @param scaleFactor Scale factor for normalizing input data.
+     * @param softmaxOutput Whether the last layer outputs logits trained with a fused softmax cross-entropy
+     *                      loss instead of activations trained with a squared error.
+     */
+    public NeuralNetwork(List<Layer> _layers, double scaleFactor, boolean softmaxOutput) {
+        this(_layers, scaleFactor);
+        this._softmaxOutput = softmaxOutput;
+    }
+
     /**
      * Links the layers of the network together, setting the next and previous layers.
      */
     private void linkLayers() {
         try {
+            _layers.get(0).set_previousLayer(null);  // Clears stale links after layers were removed
+            _layers.get(_layers.size() - 1).set_nextLayer(null);
+
             if (_layers.size() <= 1) {
                 return;  // No linking needed if there's only one layer
             }
@@ -57,6 +86,235 @@ public class NeuralNetwork implements Serializable {
         }
     }
 
+    /**
+     * Gets the number of trainable parameters over all layers.
+     *
+     * @return Number of parameters.
+     */
+    public int getParameterCount() {
+        int count = 0;
+        for (Layer layer : _layers) {
+            count += layer.getParameterCount();
+        }
+        return count;
+    }
+
+    /**
+     * Copies every parameter of the network into one flat array, layer by layer.
+     *
+     * @return Array of {@link #getParameterCount()} parameters.
+     */
+    public double[] getParameters() {
+        double[] parameters = new double[getParameterCount()];
+        int offset = 0;
+        for (Layer layer : _layers) {
+            layer.copyParametersTo(parameters, offset);
+            offset += layer.getParameterCount();
+        }
+        return parameters;
+    }
+
+    /**
+     * Replaces every parameter of the network from a flat array in the order of {@link #getParameters()}.
+     *
+     * @param parameters Array of {@link #getParameterCount()} parameters.
+     */
+    public void setParameters(double[] parameters) {
+        int offset = 0;
+        for (Layer layer : _layers) {
+            layer.copyParametersFrom(parameters, offset);
+            offset += layer.getParameterCount();
+        }
+    }
+
+    /**
+     * Gets the number of learned state values outside the parameters over all layers, such as the
+     * moving statistics of batch norm.
+     *
+     * @return Number of state values.
+     */
+    public int getStateCount() {
+        int count = 0;
+        for (Layer layer : _layers) {
+            count += layer.getStateCount();
+        }
+        return count;
+    }
+
+    /**
+     * Copies the learned state of every layer into one flat array, layer by layer. Together with
+     * {@link #getParameters()} it describes everything the network has learned.
+     *
+     * @return Array of {@link #getStateCount()} state values.
+     */
+    public double[] getState() {
+        double[] state = new double[getStateCount()];
+        int offset = 0;
+        for (Layer layer : _layers) {
+            layer.copyStateTo(state, offset);
+            offset += layer.getStateCount();
+        }
+        return state;
+    }
+
+    /**
+     * Replaces the learned state of every layer from a flat array in the order of {@link #getState()}.
+     *
+     * @param state Array of {@link #getStateCount()} state values.
+     */
+    public void setState(double[] state) {
+        int offset = 0;
+        for (Layer layer : _layers) {
+            layer.copyStateFrom(state, offset);
+            offset += layer.getStateCount();
+        }
+    }
+
+    /**
+     * Makes every layer take its parameters from a segment laid out like {@link #getParameters()}.
+     *
+     * @param parameters Segment holding the parameters as little-endian doubles.
+     */
+    void attachParameters(MemorySegment parameters) {
+        long index = 0;
+        for (Layer layer : _layers) {
+            layer.attachParameters(parameters, index);
+            index += layer.getParameterCount();
+        }
+    }
+
+    /**
+     * Freezes the first layers of the network and unfreezes the rest, e.g. to fine-tune only the
+     * fully connected head. Backpropagation stops at the frozen boundary. Frozen batch norm layers
+     * are folded into their neighbours, so the network may have fewer layers afterwards.
+     *
+     * @param count Number of leading layers to freeze.
+     */
+    public void freezeLayers(int count) {
+        for (int i = 0; i < _layers.size(); i++) {
+            _layers.get(i).setFrozen(i < count);
+        }
+        foldBatchNorm(true);  // Frozen statistics never change again, so they cost nothing from here on
+    }
+
+    /**
+     * Folds every batch norm layer into a neighbouring convolution or fully connected layer and
+     * removes it, so the network computes the same outputs with as many operations as one built
+     * without batch norm. Call this before exporting or serving a trained network; the folded layers
+     * cannot be trained any further.
+     *
+     * @return Number of layers that were folded away.
+     */
+    public int foldBatchNorm() {
+        return foldBatchNorm(false);
+    }
+
+    /**
+     * Folds batch norm layers away, relinking the remaining layers and recompiling the plan.
+     *
+     * @param frozenOnly Whether only frozen batch norm layers are folded.
+     * @return Number of layers that were folded away.
+     */
+    private int foldBatchNorm(boolean frozenOnly) {
+        int folded = 0;
+        for (int i = 0; i < _layers.size(); i++) {
+            if (_layers.get(i) instanceof BatchNormLayer batchNorm && (!frozenOnly || batchNorm.isFrozen())) {
+                batchNorm.fold();
+                _layers.remove(i--);
+                folded++;
+            }
+        }
+
+        if (folded > 0) {
+            linkLayers();
+            if (_compiled) {
+                compile(!_unfused);  // The old plan still holds the removed layers
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * Compiles the layers into a flat execution plan. Afterwards guess, test and train iterate over
+     * the plan's steps and reuse its preallocated buffers instead of recursing through the layers.
+     */
+    public void compile() {
+        compile(true);
+    }
+
+    /**
+     * Compiles the layers into a flat execution plan.
+     *
+     * @param fuse Whether convolution and max pooling pairs should run as a single fused step.
+     */
+    void compile(boolean fuse) {
+        _plan = new ExecutionPlan(_layers, fuse);
+        _compiled = true;
+        _unfused = !fuse;
+    }
+
+    /**
+     * Gets the compiled plan, rebuilding it with the same fusion choice if the network was compiled
+     * before being serialized or copied.
+     *
+     * @return The compiled plan, or null when the network is not compiled.
+     */
+    ExecutionPlan getPlan() {
+        if (_plan == null && _compiled) {
+            _plan = new ExecutionPlan(_layers, !_unfused);
+        }
+        return _plan;
+    }
+
+    /**
+     * Compiles the network if needed and runs synthetic forward passes through the plan, so that the
+     * JIT has compiled the hot kernels before the first real prediction. Both mostly-zero and dense
+     * inputs are used so that the sparse and the dense kernels are warmed up. Weights are not changed.
+     *
+     * @param iterations Number of synthetic forward passes.
+     */
+    public void warmUp(int iterations) {
+        ExecutionPlan plan = getPlan();
+        if (plan == null) {
+            compile();
+            plan = getPlan();
+        }
+
+        Random random = new Random(iterations);
+        double[] activations = plan.getActivations();
+
+        for (int n = 0; n < iterations; n++) {
+            double density = n % 2 == 0 ? 0.2 : 1.0;
+            for (int i = 0; i < plan.getInputLength(); i++) {
+                activations[i] = random.nextDouble() < density ? random.nextDouble() : 0.0;
+            }
+            plan.forward();
+        }
+    }
+
+    /**
+     * Writes the error between the network's output and the correct answer into an existing array.
+     * For a softmax head this is the gradient of the cross-entropy loss w.r.t the logits, for any
+     * other output layer the gradient of the squared error.
+     *
+     * @param networkOutput Array holding the outputs from the network.
+     * @param outputOffset Index of the first output.
+     * @param length Number of outputs.
+     * @param correctAnswer The correct label for the input data.
+     * @param errors Array receiving the error values.
+     * @param errorOffset Index of the first error value.
+     */
+    void writeErrors(double[] networkOutput, int outputOffset, int length, int correctAnswer, double[] errors, int errorOffset) {
+        if (_softmaxOutput) {
+            SoftmaxCrossEntropy.writeGradient(networkOutput, outputOffset, length, correctAnswer, errors, errorOffset);
+            return;
+        }
+
+        for (int i = 0; i < length; i++) {
+            errors[errorOffset + i] = networkOutput[outputOffset + i] - (i == correctAnswer ? 1 : 0);
+        }
+    }
+
     /**
      * Calculates the error between the network's output and the correct answer.
      *
@@ -65,12 +323,9 @@ public class NeuralNetwork implements Serializable {
      * @return Array of error values.
      */
     public double[] getErrors(double[] networkOutput, int correctAnswer) {
-        int numClasses = networkOutput.length;
-
-        double[] expected = new double[numClasses];
-        expected[correctAnswer] = 1;  // Set the correct class to 1
-
-        return add(networkOutput, multiply(expected, -1));  // Calculate the error
+        double[] errors = new double[networkOutput.length];
+        writeErrors(networkOutput, 0, networkOutput.length, correctAnswer, errors, 0);  // Calculate the error in place
+        return errors;
     }
 
     /**
@@ -80,12 +335,24 @@ public class NeuralNetwork implements Serializable {
      * @return The index of the maximum value.
      */
     private int getMaxIndex(double[] in) {
+        return getMaxIndex(in, 0, in.length);
+    }
+
+    /**
+     * Finds the index of the maximum value within a region of an array.
+     *
+     * @param in Array of values to search through.
+     * @param offset Index of the first value in the region.
+     * @param length Number of values in the region.
+     * @return The index of the maximum value, relative to the start of the region.
+     */
+    int getMaxIndex(double[] in, int offset, int length) {
         double max = Double.NEGATIVE_INFINITY;  // Initialize with the smallest possible value
         int index = 0;
 
-            for (int i = 0; i < in.length; i++) {
-                if (in[i] > max) {
-                    max = in[i];
+            for (int i = 0; i < length; i++) {
+                if (in[offset + i] > max) {
+                    max = in[offset + i];
                     index = i;
                 }
             }
@@ -93,6 +360,20 @@ public class NeuralNetwork implements Serializable {
         return index;
     }
 
+    /**
+     * Scales every channel of an image into the list form consumed by the layers.
+     *
+     * @param image The input image.
+     * @return List of normalized matrices, one for each channel.
+     */
+    private List<double[][]> normalizedChannels(Image image) {
+        List<double[][]> inList = new ArrayList<>();
+        for (int channel = 0; channel < image.getChannelCount(); channel++) {
+            inList.add(multiply(image.getChannel(channel), (1.0 / scaleFactor)));
+        }
+        return inList;
+    }
+
     /**
      * Makes a prediction (guess) based on the input image.
      *
@@ -100,9 +381,15 @@ public class NeuralNetwork implements Serializable {
      * @return The predicted label for the image.
      */
     public int guess(Image image) {
+        ExecutionPlan plan = getPlan();
+        if (plan != null) {
+            plan.loadInput(image, 1.0 / scaleFactor);  // Normalize straight into the arena
+            plan.forward();
+            return getMaxIndex(plan.getActivations(), plan.getOutputOffset(), plan.getOutputLength());
+        }
+
         int guess = -1;
-            List<double[][]> inList = new ArrayList<>();
-            inList.add(multiply(image.getData(), (1.0 / scaleFactor)));  // Normalize the input data
+            List<double[][]> inList = normalizedChannels(image);  // Normalize the input data
 
             double[] out = _layers.get(0).getOutput(inList);  // Get the output from the network
             guess = getMaxIndex(out);  // Find the index of the maximum output value
@@ -110,6 +397,151 @@ public class NeuralNetwork implements Serializable {
         return guess;
     }
 
+    /**
+     * Calculates the calibrated probability of every class for an image. For a softmax head these
+     * are the softmax of the temperature-scaled logits, for any other output layer the outputs are
+     * treated as logits.
+     *
+     * @param image The input image to be classified.
+     * @return Probability of each class, summing to 1.
+     */
+    public double[] probabilities(Image image) {
+        double temperature = getTemperature();
+        ExecutionPlan plan = getPlan();
+
+        if (plan != null) {
+            double[] probabilities = new double[plan.getOutputLength()];
+            plan.loadInput(image, 1.0 / scaleFactor);
+            plan.forward();
+            SoftmaxCrossEntropy.writeProbabilities(plan.getActivations(), plan.getOutputOffset(), probabilities.length,
+                    temperature, probabilities, 0);
+            return probabilities;
+        }
+
+        double[] out = _layers.get(0).getOutput(normalizedChannels(image));
+        SoftmaxCrossEntropy.writeProbabilities(out, 0, out.length, temperature, out, 0);  // The output is a fresh array
+        return out;
+    }
+
+    /**
+     * Predicts the most likely classes for an image.
+     *
+     * @param image The input image to be classified.
+     * @param k Number of classes to return.
+     * @return Up to k predictions, most probable first.
+     */
+    public Prediction[] predict(Image image, int k) {
+        double[] probabilities = probabilities(image);
+        int count = Math.min(k, probabilities.length);
+        int[] top = new int[count];
+        int filled = 0;
+
+        // Insertion into a sorted list of length k, which beats a full sort for the usual small k
+        for (int i = 0; i < probabilities.length; i++) {
+            if (filled == count && probabilities[i] <= probabilities[top[count - 1]]) {
+                continue;
+            }
+
+            int position = filled < count ? filled++ : count - 1;
+            while (position > 0 && probabilities[top[position - 1]] < probabilities[i]) {
+                top[position] = top[position - 1];
+                position--;
+            }
+            top[position] = i;
+        }
+
+        Prediction[] predictions = new Prediction[count];
+        for (int n = 0; n < count; n++) {
+            predictions[n] = new Prediction(top[n], probabilities[top[n]]);
+        }
+        return predictions;
+    }
+
+    /**
+     * Fits the softmax temperature that minimizes the cross-entropy on a set of labelled images
+     * (temperature scaling). The temperature rescales every probability reported by
+     * {@link #predict(Image, int)} without changing which class is most likely.
+     *
+     * @param images Labelled images that were not used for training.
+     * @return The fitted temperature.
+     */
+    public double calibrate(List<Image> images) {
+        int classes = _layers.get(_layers.size() - 1).getOutputElements();
+        double[][] logits = new double[images.size()][];
+        int[] labels = new int[images.size()];
+
+        // Run every image once; the search below only rescales the stored logits
+        for (int n = 0; n < images.size(); n++) {
+            Image image = images.get(n);
+            ExecutionPlan plan = getPlan();
+
+            if (plan != null) {
+                plan.loadInput(image, 1.0 / scaleFactor);
+                plan.forward();
+                logits[n] = Arrays.copyOfRange(plan.getActivations(), plan.getOutputOffset(), plan.getOutputOffset() + classes);
+            } else {
+                logits[n] = _layers.get(0).getOutput(normalizedChannels(image));
+            }
+            labels[n] = image.getLabel();
+        }
+
+        // Golden-section search over log temperature; the loss is convex in 1/temperature
+        double low = Math.log(0.05);
+        double high = Math.log(20);
+        double ratio = (Math.sqrt(5) - 1) / 2;
+        double[] scratch = new double[classes];
+
+        for (int iteration = 0; iteration < 60; iteration++) {
+            double a = high - ratio * (high - low);
+            double b = low + ratio * (high - low);
+
+            if (meanLoss(logits, labels, Math.exp(a), scratch) < meanLoss(logits, labels, Math.exp(b), scratch)) {
+                high = b;
+            } else {
+                low = a;
+            }
+        }
+
+        _logTemperature = (low + high) / 2;
+        return getTemperature();
+    }
+
+    /**
+     * Gets the softmax temperature used for probabilities.
+     *
+     * @return The calibrated temperature, or 1 when the network was never calibrated.
+     */
+    public double getTemperature() {
+        return Math.exp(_logTemperature);
+    }
+
+    /**
+     * Calculates the mean cross-entropy of stored logits at a given temperature.
+     */
+    private static double meanLoss(double[][] logits, int[] labels, double temperature, double[] scratch) {
+        double loss = 0;
+        for (int n = 0; n < logits.length; n++) {
+            double logSum = SoftmaxCrossEntropy.writeProbabilities(logits[n], 0, scratch.length, temperature, scratch, 0);
+            loss += logSum - logits[n][labels[n]] / temperature;
+        }
+        return loss / logits.length;
+    }
+
+    /**
+     * Makes predictions for a list of images, one forward pass per image with {@link #guess(Image)}.
+     * The images are not computed as one batch; {@link ParallelScheduler} spreads a list over the cores.
+     *
+     * @param images The input images to be classified.
+     * @return The predicted label for each image, in input order.
+     */
+    public int[] guess(List<Image> images) {
+        int[] guesses = new int[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            guesses[i] = guess(images.get(i));
+        }
+        return guesses;
+    }
+
     /**
      * Tests the network on a set of images and calculates the accuracy.
      *
@@ -135,10 +567,16 @@ public class NeuralNetwork implements Serializable {
      * @param images List of images to train the network on.
      */
     public void train(List<Image> images) {
+        ExecutionPlan plan = getPlan();
+        if (plan != null) {
+            trainCompiled(plan, images);
+            return;
+        }
+
+        setTraining(true);
         try {
             for (Image img : images) {
-                List<double[][]> inList = new ArrayList<>();
-                inList.add(multiply(img.getData(), (1.0 / scaleFactor)));  // Normalize the input data
+                List<double[][]> inList = normalizedChannels(img);  // Normalize the input data
 
                 double[] out = _layers.get(0).getOutput(inList);  // Forward pass through the network
                 double[] dldO = getErrors(out, img.getLabel());  // Calculate the errors
@@ -148,6 +586,121 @@ public class NeuralNetwork implements Serializable {
         } catch (Exception e) {
             System.err.println("Error during training: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            setTraining(false);
+        }
+    }
+
+    /**
+     * Trains the network on part of an epoch chosen by a hard example sampler. Every visited image
+     * the sampler wants scored gets a forward pass; only the images it selects by their output error
+     * also get a backward pass. Call {@link HardExampleSampler#startEpoch()} before every epoch.
+     *
+     * @param dataset The whole training set, in the same order in every epoch.
+     * @param sampler The sampler keeping the scores of the dataset.
+     * @param from First position of the epoch to visit.
+     * @param to Position after the last one to visit.
+     */
+    public void train(List<Image> dataset, HardExampleSampler sampler, int from, int to) {
+        ExecutionPlan plan = getPlan();
+
+        setTraining(true);
+        try {
+            for (int position = from; position < to; position++) {
+                int index = sampler.indexAt(position);
+                if (!sampler.needsScoring(index)) {
+                    continue;  // Easy when last scored, and not due to be scored again
+                }
+                Image img = dataset.get(index);
+
+                if (plan != null) {
+                    plan.loadInput(img, 1.0 / scaleFactor);  // Normalize the input data
+                    plan.forward();  // Forward pass, which also scores the image
+                    double[] errors = plan.getGradients();
+                    writeErrors(plan.getActivations(), plan.getOutputOffset(), plan.getOutputLength(),
+                            img.getLabel(), errors, plan.getOutputOffset());
+                    if (sampler.selectForBackward(index, squaredNorm(errors, plan.getOutputOffset(), plan.getOutputLength()))) {
+                        plan.backward();
+                    }
+                } else {
+                    double[] out = _layers.get(0).getOutput(normalizedChannels(img));
+                    double[] dldO = getErrors(out, img.getLabel());
+                    if (sampler.selectForBackward(index, squaredNorm(dldO, 0, dldO.length))) {
+                        _layers.get(_layers.size() - 1).backPropagation(dldO);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Error during training: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            setTraining(false);
+        }
+    }
+
+    /**
+     * Switches every layer between training and inference behaviour.
+     *
+     * @param training Whether the following passes are part of training.
+     */
+    void setTraining(boolean training) {
+        for (Layer layer : _layers) {
+            layer.setTraining(training);
+        }
+    }
+
+    private static double squaredNorm(double[] values, int offset, int length) {
+        double sum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sum += values[i] * values[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Trains the network through its compiled plan, without allocating per image.
+     *
+     * @param plan The compiled plan.
+     * @param images List of images to train the network on.
+     */
+    private void trainCompiled(ExecutionPlan plan, List<Image> images) {
+        setTraining(true);
+        try {
+            for (Image img : images) {
+                plan.loadInput(img, 1.0 / scaleFactor);  // Normalize the input data
+                plan.forward();  // Forward pass through the plan
+                writeErrors(plan.getActivations(), plan.getOutputOffset(), plan.getOutputLength(),
+                        img.getLabel(), plan.getGradients(), plan.getOutputOffset());  // Calculate the errors
+                plan.backward();  // Backpropagation
+            }
+        } catch (Exception e) {
+            System.err.println("Error during training: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            setTraining(false);
+        }
+    }
+
+    /**
+     * Makes a deep copy of the network by serializing it, e.g. for a thread that predicts or
+     * evaluates on its own replica. The copy always keeps its parameters on-heap, even when this
+     * network reads them from {@link OffHeapParameters}.
+     *
+     * @return The copy.
+     */
+    NeuralNetwork copy() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(this);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                NeuralNetwork copy = (NeuralNetwork) in.readObject();
+                copy.setParameters(getParameters());  // Off-heap weights are not serialized
+                return copy;
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Could not copy the network", e);
         }
     }
 }
@@ -0,0 +1,123 @@
+package network;
+
+import Layers.Layer;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Keeps a network's parameters outside the Java heap in a {@link MemorySegment}.
+ *
+ * The parameters are either copied into off-heap memory with {@link #copyOf(NeuralNetwork)}, or
+ * memory-mapped read-only from a parameter file written by {@link #write(NeuralNetwork, Path)} with
+ * {@link #map(NeuralNetwork, Path)}. Fully connected layers then read their weights from the segment
+ * in place and drop their on-heap matrices; the small convolution filters are copied on-heap. Since
+ * a read-only mapping is backed by the operating system's page cache, several inference JVMs mapping
+ * the same file share one copy of the weights.
+ *
+ * Off-heap weights are read-only, so a network must not be trained while it is attached. Saving an
+ * attached network with {@link Main#saveNetwork} writes a small model file without the fully
+ * connected weights; map the parameter file onto it again after loading. Closing copies the
+ * parameters back on-heap so the network stays usable, then releases the memory.
+ */
+public final class OffHeapParameters implements AutoCloseable {
+    private static final long MAGIC = 0x4E4E504152414D53L;  // "NNPARAMS", identifies a parameter file
+    private static final long HEADER_BYTES = 16;  // Magic number and parameter count
+    private static final ValueLayout.OfLong HEADER_LAYOUT = ValueLayout.JAVA_LONG.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final NeuralNetwork _network;  // Network reading its parameters from the segment
+    private final Arena _arena;  // Owns the off-heap memory or the mapping
+    private final MemorySegment _parameters;  // The parameters, without the file header
+
+    private OffHeapParameters(NeuralNetwork network, Arena arena, MemorySegment parameters) {
+        _network = network;
+        _arena = arena;
+        _parameters = parameters;
+        network.attachParameters(parameters);
+    }
+
+    /**
+     * Writes a network's parameters to a file that can be memory-mapped with {@link #map(NeuralNetwork, Path)}.
+     *
+     * @param network The network.
+     * @param file The parameter file, created or replaced.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(NeuralNetwork network, Path file) throws IOException {
+        double[] values = network.getParameters();
+
+        try (Arena arena = Arena.ofConfined();
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + values.length * Layer.PARAMETER_LAYOUT.byteSize(), arena);
+            segment.set(HEADER_LAYOUT, 0, MAGIC);
+            segment.set(HEADER_LAYOUT, 8, values.length);
+            MemorySegment.copy(values, 0, segment, Layer.PARAMETER_LAYOUT, HEADER_BYTES, values.length);
+            segment.force();
+        }
+    }
+
+    /**
+     * Memory-maps a parameter file read-only and makes the network read its parameters from it.
+     *
+     * @param network A network with the same architecture as the one the file was written from.
+     * @param file The parameter file.
+     * @return The mapped parameters; close them to unmap the file.
+     * @throws IOException If the file cannot be mapped or does not match the network.
+     */
+    public static OffHeapParameters map(NeuralNetwork network, Path file) throws IOException {
+        Arena arena = Arena.ofShared();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+
+            long count = segment.byteSize() < HEADER_BYTES ? -1 : segment.get(HEADER_LAYOUT, 8);
+            if (segment.byteSize() < HEADER_BYTES || segment.get(HEADER_LAYOUT, 0) != MAGIC) {
+                throw new IOException(file + " is not a parameter file");
+            }
+            if (count != network.getParameterCount() || segment.byteSize() != HEADER_BYTES + count * Layer.PARAMETER_LAYOUT.byteSize()) {
+                throw new IOException(file + " holds " + count + " parameters but the network has " + network.getParameterCount());
+            }
+
+            return new OffHeapParameters(network, arena, segment.asSlice(HEADER_BYTES));
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a network's parameters into off-heap memory and makes the network read them from there.
+     *
+     * @param network The network.
+     * @return The off-heap parameters; close them to free the memory.
+     */
+    public static OffHeapParameters copyOf(NeuralNetwork network) {
+        double[] values = network.getParameters();
+        Arena arena = Arena.ofShared();
+        MemorySegment segment = arena.allocate(values.length * Layer.PARAMETER_LAYOUT.byteSize(), Layer.PARAMETER_LAYOUT.byteAlignment());
+        MemorySegment.copy(values, 0, segment, Layer.PARAMETER_LAYOUT, 0, values.length);
+        return new OffHeapParameters(network, arena, segment);
+    }
+
+    /**
+     * Gets the size of the off-heap parameters.
+     *
+     * @return Size in bytes.
+     */
+    public long byteSize() {
+        return _parameters.byteSize();
+    }
+
+    @Override
+    public void close() {
+        _network.setParameters(_network.getParameters());  // Copy back on-heap before the memory goes away
+        _arena.close();
+    }
+}
@@ -0,0 +1,452 @@
+package network;
+
+import Layers.IntraOpExecutor;
+import data.Image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decides how the cores are shared between the images of a batch and the work inside each layer
+ * kernel, and runs batches that way.
+ *
+ * With b batch threads and k kernel threads, the batch is cut into b slices that run at the same
+ * time on their own replicas of the network, and every kernel of every slice may split across k
+ * threads of the {@link IntraOpExecutor}; b * k never exceeds the cores. Batch threads need no
+ * synchronization but cannot help a batch smaller than the cores, while kernel threads help a single
+ * image but pay a hand-off for every layer. The scheduler starts from a prediction of the cost model
+ * ({@link NetworkCost}), and {@link #autoTune} measures the candidate splits on this machine instead.
+ * Tuned splits are cached in a properties file under a key made of the layer shapes, the core count
+ * and the architecture, so a restart, or a new model of the same architecture, skips the tuning.
+ *
+ * The replicas are copied from the network when first needed, or ahead of time with
+ * {@link #prepare(int)}, so the network must not train while the scheduler is in use. The kernel split only applies to the scheduler's own threads while they
+ * run a batch, so other users of the {@link IntraOpExecutor} keep their parallelism.
+ */
+public class ParallelScheduler implements AutoCloseable {
+    public static final Path DEFAULT_CACHE = Path.of("out", "parallel-splits.properties");  // Tuned splits of every model and machine
+    private static final int TUNING_ROUNDS = 3;  // Timed batches per candidate split; the median counts
+
+    /**
+     * A way to share the cores.
+     *
+     * @param batchThreads Number of images predicted at the same time.
+     * @param kernelThreads Number of threads a single kernel may use.
+     */
+    public record Split(int batchThreads, int kernelThreads) {
+        @Override
+        public String toString() {
+            return batchThreads + " batch x " + kernelThreads + " kernel threads";
+        }
+    }
+
+    /**
+     * Result of tuning one batch size.
+     *
+     * @param batchSize Number of images in the batch.
+     * @param best The fastest split.
+     * @param microsPerImage Median time per image of every measured split, in measuring order; empty
+     *                       when the split came from the cache.
+     */
+    public record Tuning(int batchSize, Split best, Map<Split, Double> microsPerImage) {
+    }
+
+    private final NeuralNetwork _network;  // Network predicting the first slice of every batch
+    private final NetworkCost _cost;  // Layer costs the predictions and the cache key are based on
+    private final int _cores;  // Cores available to this JVM
+    private final Path _cacheFile;  // File holding tuned splits, or null for no cache
+    private final String _key;  // Cache key prefix identifying the model and the machine
+    private final Map<Integer, Split> _tuned = new ConcurrentHashMap<>();  // Measured best split of every batch size tuned so far
+    private final List<NeuralNetwork> _replicas = new ArrayList<>();  // Network of every batch thread, the first being the network itself
+    private ExecutorService _executor;  // Runs every slice but the first, created on first use
+
+    /**
+     * Constructor to schedule a loaded network, with its costs computed from its layers and the
+     * default cache.
+     *
+     * @param network The network, compiled if it is not already.
+     */
+    public ParallelScheduler(NeuralNetwork network) {
+        this(network, new NetworkCost(network._layers, 1, 1, network._layers.get(0).getInputElements(), null, 1), DEFAULT_CACHE);
+    }
+
+    /**
+     * Constructor to schedule a network with the costs estimated by its builder.
+     *
+     * @param network The network, compiled if it is not already.
+     * @param cost Costs of the network's layers, e.g. from {@link NetworkBuilder#estimateCost(int)}.
+     * @param cacheFile File tuned splits are read from and written to, or null for no cache.
+     */
+    public ParallelScheduler(NeuralNetwork network, NetworkCost cost, Path cacheFile) {
+        if (network.getPlan() == null) {
+            network.compile();
+        }
+        _network = network;
+        _cost = cost;
+        _cores = Runtime.getRuntime().availableProcessors();
+        _cacheFile = cacheFile;
+        _key = fingerprint();
+        _replicas.add(network);
+        loadCache();
+    }
+
+    /**
+     * Gets the split used for batches of a given size: the tuned one if that size was tuned, here
+     * or in an earlier run, otherwise the cost model's prediction.
+     *
+     * @param batchSize Number of images in the batch.
+     * @return The split.
+     */
+    public Split getSplit(int batchSize) {
+        Split tuned = _tuned.get(batchSize);
+        return tuned != null ? tuned : predict(batchSize);
+    }
+
+    /**
+     * Predicts the fastest split from the layers' forward FLOPs. A kernel splits into at most as many
+     * chunks as the {@link IntraOpExecutor} would use, and a split kernel pays about one chunk of
+     * hand-off; batch threads cost nothing, so on a tie the split with more batch threads wins.
+     *
+     * @param batchSize Number of images in the batch.
+     * @return The split with the lowest predicted batch time.
+     */
+    public Split predict(int batchSize) {
+        long minTaskFlops = IntraOpExecutor.getMinTaskFlops();
+        Split best = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+
+        for (int b = Math.max(1, Math.min(batchSize, _cores)); b >= 1; b--) {
+            for (int k = 1; b * k <= _cores; k++) {
+                double perImage = 0;
+                for (NetworkCost.LayerCost layer : _cost.getLayers()) {
+                    long chunks = Math.max(1, Math.min(k, layer.forwardFlops() / minTaskFlops));
+                    perImage += (double) layer.forwardFlops() / chunks + (chunks > 1 ? minTaskFlops : 0);
+                }
+
+                double cost = Math.ceil((double) batchSize / b) * perImage;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = new Split(b, k);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Measures every candidate split on sample batches and keeps the fastest for this batch size,
+     * unless it is already cached. Each candidate runs one untimed batch, to warm up its replicas
+     * and kernels, then {@value #TUNING_ROUNDS} timed ones.
+     *
+     * @param sample Images to build the batches from, reused if there are fewer than the batch size.
+     * @param batchSize Number of images in the batch.
+     * @return The fastest split and the measurements it was chosen from.
+     */
+    public synchronized Tuning autoTune(List<Image> sample, int batchSize) {
+        Split cached = _tuned.get(batchSize);
+        if (cached != null) {
+            return new Tuning(batchSize, cached, Map.of());
+        }
+
+        List<Image> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(sample.get(i % sample.size()));
+        }
+        int[] guesses = new int[batchSize];
+
+        Map<Split, Double> microsPerImage = new LinkedHashMap<>();
+        Split best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (Split candidate : candidates(batchSize)) {
+            run(batch, candidate, guesses);
+
+            long[] nanos = new long[TUNING_ROUNDS];
+            for (int round = 0; round < TUNING_ROUNDS; round++) {
+                long start = System.nanoTime();
+                run(batch, candidate, guesses);
+                nanos[round] = System.nanoTime() - start;
+            }
+            Arrays.sort(nanos);
+
+            long median = nanos[TUNING_ROUNDS / 2];
+            microsPerImage.put(candidate, median / 1000.0 / batchSize);
+            if (median < bestNanos) {
+                bestNanos = median;
+                best = candidate;
+            }
+        }
+
+        _tuned.put(batchSize, best);
+        saveCache(batchSize, best);
+        return new Tuning(batchSize, best, microsPerImage);
+    }
+
+    /**
+     * Lists the splits worth measuring: powers of two and the largest possible count on both sides,
+     * plus the cost model's prediction.
+     *
+     * @param batchSize Number of images in the batch.
+     * @return Candidate splits, each using at most every core.
+     */
+    private Set<Split> candidates(int batchSize) {
+        Set<Split> candidates = new LinkedHashSet<>();
+        candidates.add(predict(batchSize));
+
+        for (int b : powersOfTwoUpTo(Math.max(1, Math.min(batchSize, _cores)))) {
+            for (int k : powersOfTwoUpTo(_cores / b)) {
+                candidates.add(new Split(b, k));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Lists the powers of two below a limit, followed by the limit itself.
+     *
+     * @param max The limit, at least 1.
+     * @return E.g. 1, 2, 4, 6 for 6.
+     */
+    private static List<Integer> powersOfTwoUpTo(int max) {
+        List<Integer> values = new ArrayList<>();
+        for (int value = 1; value < max; value *= 2) {
+            values.add(value);
+        }
+        values.add(max);
+        return values;
+    }
+
+    /**
+     * Copies the replicas that batches of a given size need, so the first such batch does not pay
+     * for copying the network.
+     *
+     * @param batchSize Number of images in the batch.
+     */
+    public synchronized void prepare(int batchSize) {
+        prepareReplicas(Math.min(getSplit(batchSize).batchThreads(), batchSize));
+    }
+
+    /**
+     * Copies replicas until there is one for each of a number of batch threads.
+     *
+     * @param count Number of batch threads, counting the calling thread, which uses the network itself.
+     */
+    public synchronized void prepareReplicas(int count) {
+        while (_replicas.size() < count) {
+            NeuralNetwork replica = _network.copy();
+            replica.getPlan();  // Built here rather than by the first batch
+            _replicas.add(replica);
+        }
+        if (count > 1 && _executor == null) {
+            // Its threads only start with the first batch that needs them
+            _executor = Executors.newFixedThreadPool(Math.max(1, _cores - 1), runnable -> {
+                Thread thread = new Thread(runnable, "batch-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Gets the number of batch threads that have a replica ready, counting the network itself.
+     *
+     * @return Number of replicas.
+     */
+    public synchronized int getReplicaCount() {
+        return _replicas.size();
+    }
+
+    /**
+     * Predicts a batch of images with the split chosen for its size.
+     *
+     * @param images The images to classify.
+     * @return The predicted label of each image, in input order.
+     */
+    public synchronized int[] guess(List<Image> images) {
+        int[] guesses = new int[images.size()];
+        if (!images.isEmpty()) {
+            run(images, getSplit(images.size()), guesses);
+        }
+        return guesses;
+    }
+
+    /**
+     * Runs a batch with a given split: every batch thread predicts a contiguous slice on its own
+     * replica, the calling thread taking the first one.
+     *
+     * @param images The images to classify.
+     * @param split The split to use.
+     * @param guesses Array receiving the predicted labels.
+     */
+    private void run(List<Image> images, Split split, int[] guesses) {
+        int kernelThreads = split.kernelThreads();
+        int threads = Math.min(split.batchThreads(), images.size());
+        prepareReplicas(threads);
+
+        List<Future<?>> slices = new ArrayList<>(threads - 1);
+        for (int t = 1; t < threads; t++) {
+            NeuralNetwork replica = _replicas.get(t);
+            int from = images.size() * t / threads;
+            int to = images.size() * (t + 1) / threads;
+            slices.add(_executor.submit(() -> IntraOpExecutor.runWithParallelism(kernelThreads,
+                    () -> predictSlice(replica, images, from, to, guesses))));
+        }
+
+        RuntimeException failure = null;
+        try {
+            IntraOpExecutor.runWithParallelism(kernelThreads, () -> predictSlice(_network, images, 0, images.size() / threads, guesses));
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (Future<?> slice : slices) {
+            try {
+                slice.get();  // Every slice finishes before the guesses are used, even after a failure
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new IllegalStateException("Batch prediction failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new IllegalStateException("Interrupted while waiting for a batch", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void predictSlice(NeuralNetwork network, List<Image> images, int from, int to, int[] guesses) {
+        for (int i = from; i < to; i++) {
+            guesses[i] = network.guess(images.get(i));
+        }
+    }
+
+    /**
+     * Builds random images of a given size for tuning without real data, mixing mostly-zero and
+     * dense ones so that both the sparse and the dense kernels are measured.
+     *
+     * @param count Number of images.
+     * @param rows Number of rows of every image.
+     * @param columns Number of columns of every image.
+     * @param seed Random seed.
+     * @return The images, with pixel values from 0 to 255 and an unknown (-1) label.
+     */
+    public static List<Image> syntheticImages(int count, int rows, int columns, long seed) {
+        Random random = new Random(seed);
+        List<Image> images = new ArrayList<>(count);
+
+        for (int n = 0; n < count; n++) {
+            double density = n % 2 == 0 ? 0.2 : 1.0;
+            double[][] data = new double[rows][columns];
+            for (double[] row : data) {
+                for (int c = 0; c < columns; c++) {
+                    row[c] = random.nextDouble() < density ? 255 * random.nextDouble() : 0.0;
+                }
+            }
+            images.add(new Image(data, -1));
+        }
+        return images;
+    }
+
+    /**
+     * Builds the cache key prefix from the layer shapes, the core count and the architecture, which
+     * together decide the best split. The weights do not matter.
+     *
+     * @return The key prefix.
+     */
+    private String fingerprint() {
+        int model = 1;
+        for (NetworkCost.LayerCost layer : _cost.getLayers()) {
+            model = 31 * model + Objects.hash(layer.name(), layer.forwardFlops(), layer.parameterBytes(), layer.activationBytes());
+        }
+        return String.format(Locale.ROOT, "%08x.%dcores.%s", model, _cores, System.getProperty("os.arch"));
+    }
+
+    /**
+     * Reads the tuned splits of this model and machine from the cache file, if there is one.
+     */
+    private void loadCache() {
+        if (_cacheFile == null || !Files.exists(_cacheFile)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(_cacheFile)) {
+            Properties properties = new Properties();
+            properties.load(in);
+
+            String prefix = _key + ".batch";
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(prefix)) {
+                    String[] threads = properties.getProperty(name).split("x");
+                    _tuned.put(Integer.parseInt(name.substring(prefix.length())),
+                            new Split(Integer.parseInt(threads[0].trim()), Integer.parseInt(threads[1].trim())));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading the parallel split cache: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds a tuned split to the cache file, keeping the entries of other models and machines.
+     *
+     * @param batchSize The tuned batch size.
+     * @param split The fastest split.
+     */
+    private void saveCache(int batchSize, Split split) {
+        if (_cacheFile == null) {
+            return;
+        }
+        synchronized (ParallelScheduler.class) {
+            try {
+                Properties properties = new Properties();
+                if (Files.exists(_cacheFile)) {
+                    try (InputStream in = Files.newInputStream(_cacheFile)) {
+                        properties.load(in);
+                    }
+                }
+                properties.setProperty(_key + ".batch" + batchSize, split.batchThreads() + "x" + split.kernelThreads());
+
+                if (_cacheFile.getParent() != null) {
+                    Files.createDirectories(_cacheFile.getParent());
+                }
+                try (OutputStream out = Files.newOutputStream(_cacheFile)) {
+                    properties.store(out, "Fastest batch x kernel threads per model, machine and batch size");
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing the parallel split cache: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the batch threads. The network itself stays usable.
+     */
+    @Override
+    public synchronized void close() {
+        if (_executor != null) {
+            _executor.shutdown();
+        }
+    }
+}
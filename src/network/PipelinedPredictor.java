@@ -0,0 +1,306 @@
+package network;
+
+import data.Image;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pipelined inference for streaming workloads: the steps of a network's compiled plan are split
+ * into stages, each running on its own thread, so several images are in flight at once and the
+ * throughput is set by the slowest stage instead of by the sum of all of them.
+ *
+ * Every image in flight travels in a frame, a private activation arena with the plan's layout.
+ * Stages hand frames to each other through bounded single-producer single-consumer ring buffers, and
+ * the last stage returns them to a free ring, so nothing allocates per image apart from its result.
+ * Each layer runs on exactly one stage thread, which keeps the layers' scratch buffers private. The
+ * network must not be used for anything else while the predictor is open.
+ *
+ * Every stage measures how long it is busy, blocked on a full downstream ring and idle waiting for
+ * input. A stage that is busy nearly all the time while the others idle is the bottleneck; see
+ * {@link #report()}.
+ */
+public class PipelinedPredictor implements AutoCloseable {
+    private static final int SPIN_LIMIT = 200;  // Empty polls before a waiting thread starts to back off
+    private static final long PARK_NANOS = 20_000;  // Longest pause of a waiting thread
+
+    /**
+     * One image in flight, together with the arena holding its activations.
+     */
+    private static final class Frame {
+        private final double[] _activations;  // Arena with the plan's layout
+        private Image _image;  // Image being classified
+        private CompletableFuture<Integer> _result;  // Completed with the predicted label
+
+        private Frame(int arenaLength) {
+            _activations = new double[arenaLength];
+        }
+    }
+
+    /**
+     * A contiguous range of plan steps running on its own thread.
+     */
+    private final class Stage implements Runnable {
+        private final int _index;  // Position of the stage in the pipeline
+        private final int _fromStep;  // First step of the stage
+        private final int _toStep;  // Step after the last one of the stage
+        private final SpscRingBuffer<Frame> _input;  // Frames waiting for this stage
+        private final SpscRingBuffer<Frame> _output;  // Frames handed to the next stage, or free frames after the last one
+        private final Thread _thread;  // Thread running the stage
+        private volatile boolean _finished;  // Whether the stage has stopped
+        private volatile long _items;  // Number of frames processed
+        private volatile long _busyNanos;  // Time spent running steps
+        private volatile long _blockedNanos;  // Time spent waiting for room downstream
+        private volatile long _startNanos;  // When the stage started
+
+        private Stage(int index, int fromStep, int toStep, SpscRingBuffer<Frame> input, SpscRingBuffer<Frame> output) {
+            _index = index;
+            _fromStep = fromStep;
+            _toStep = toStep;
+            _input = input;
+            _output = output;
+            _thread = new Thread(this, "pipeline-stage-" + index);
+            _thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            _startNanos = System.nanoTime();
+            Stage upstream = _index == 0 ? null : _stages[_index - 1];
+            boolean last = _index == _stages.length - 1;
+            int spins = 0;
+
+            while (true) {
+                Frame frame = _input.poll();
+                if (frame == null) {
+                    if (_closed && (upstream == null || upstream._finished) && _input.isEmpty()) {
+                        break;  // Nothing more can arrive
+                    }
+                    spins = backOff(spins);
+                    continue;
+                }
+                spins = 0;
+
+                long start = System.nanoTime();
+                if (!frame._result.isDone()) {  // A frame that failed in an earlier stage only passes through
+                    try {
+                        if (_index == 0) {
+                            _plan.loadInput(frame._image, _scale, frame._activations);
+                        }
+                        _plan.forward(_fromStep, _toStep, frame._activations);
+                        if (last) {
+                            frame._result.complete(_network.getMaxIndex(frame._activations, _plan.getOutputOffset(), _plan.getOutputLength()));
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("Error in pipeline stage " + _index + ": " + e.getMessage());
+                        e.printStackTrace();
+                        frame._result.completeExceptionally(e);
+                    }
+                }
+                if (last) {
+                    frame._image = null;  // The frame goes back to the free ring
+                    frame._result = null;
+                }
+                long done = System.nanoTime();
+                _busyNanos += done - start;
+                _items++;
+
+                int waits = 0;
+                while (!_output.offer(frame)) {
+                    waits = backOff(waits);
+                }
+                _blockedNanos += System.nanoTime() - done;
+            }
+            _finished = true;
+        }
+
+        private String describe() {
+            StringBuilder steps = new StringBuilder();
+            for (int i = _fromStep; i < _toStep; i++) {
+                steps.append(i > _fromStep ? ", " : "").append(_plan.getStepName(i));
+            }
+            double elapsed = Math.max(1, System.nanoTime() - _startNanos);
+            double busy = _busyNanos / elapsed;
+            double blocked = _blockedNanos / elapsed;
+            return String.format(Locale.ROOT, "Stage %d [%s]: %d images, busy %.1f%%, blocked %.1f%%, idle %.1f%%",
+                    _index, steps, _items, 100 * busy, 100 * blocked, 100 * Math.max(0, 1 - busy - blocked));
+        }
+    }
+
+    private final NeuralNetwork _network;  // Network whose plan the stages run
+    private final ExecutionPlan _plan;  // Compiled plan of the network
+    private final double _scale;  // Factor normalizing the input values
+    private final Stage[] _stages;  // Stages in pipeline order
+    private final SpscRingBuffer<Frame> _free;  // Frames ready for a new image, returned by the last stage
+    private final SpscRingBuffer<Frame> _head;  // Frames waiting for the first stage
+    private volatile boolean _closed;  // Whether no more images will be submitted
+
+    /**
+     * Constructor to split a network into stages of roughly equal forward cost.
+     *
+     * @param network The network, compiled if it is not already.
+     * @param stages Number of stages, at most the number of plan steps.
+     */
+    public PipelinedPredictor(NeuralNetwork network, int stages) {
+        this(network, balancedStarts(compiledPlan(network), stages));
+    }
+
+    /**
+     * Constructor to split a network into stages at given plan steps.
+     *
+     * @param network The network, compiled if it is not already.
+     * @param stageStarts First plan step of every stage, ascending and starting at 0.
+     */
+    public PipelinedPredictor(NeuralNetwork network, int[] stageStarts) {
+        _network = network;
+        _plan = compiledPlan(network);
+        _scale = 1.0 / network.scaleFactor;
+
+        int frames = stageStarts.length + 2;  // One per stage, one being submitted and one being returned
+        _free = new SpscRingBuffer<>(frames);
+        for (int i = 0; i < frames; i++) {
+            _free.offer(new Frame(_plan.getArenaLength()));
+        }
+
+        _stages = new Stage[stageStarts.length];
+        _head = new SpscRingBuffer<>(frames);
+        SpscRingBuffer<Frame> input = _head;
+        for (int s = 0; s < stageStarts.length; s++) {
+            int toStep = s + 1 < stageStarts.length ? stageStarts[s + 1] : _plan.getStepCount();
+            SpscRingBuffer<Frame> output = s + 1 < stageStarts.length ? new SpscRingBuffer<>(frames) : _free;
+            _stages[s] = new Stage(s, stageStarts[s], toStep, input, output);
+            input = output;
+        }
+        for (Stage stage : _stages) {
+            stage._thread.start();
+        }
+    }
+
+    private static ExecutionPlan compiledPlan(NeuralNetwork network) {
+        if (network.getPlan() == null) {
+            network.compile();
+        }
+        return network.getPlan();
+    }
+
+    /**
+     * Splits the plan steps into contiguous stages, minimizing the forward cost of the most
+     * expensive stage.
+     *
+     * @param plan The compiled plan.
+     * @param stages Number of stages.
+     * @return First step of every stage.
+     */
+    static int[] balancedStarts(ExecutionPlan plan, int stages) {
+        int steps = plan.getStepCount();
+        stages = Math.max(1, Math.min(stages, steps));
+        long[] prefix = new long[steps + 1];
+        for (int i = 0; i < steps; i++) {
+            prefix[i + 1] = prefix[i] + plan.getStepForwardFlops(i);
+        }
+
+        // cost[s][i]: smallest possible maximum stage cost when the first i steps form s stages
+        long[][] cost = new long[stages + 1][steps + 1];
+        int[][] split = new int[stages + 1][steps + 1];
+        for (long[] row : cost) {
+            Arrays.fill(row, Long.MAX_VALUE);
+        }
+        cost[0][0] = 0;
+        for (int s = 1; s <= stages; s++) {
+            for (int i = s; i <= steps; i++) {
+                for (int j = s - 1; j < i; j++) {
+                    if (cost[s - 1][j] == Long.MAX_VALUE) {
+                        continue;
+                    }
+                    long candidate = Math.max(cost[s - 1][j], prefix[i] - prefix[j]);
+                    if (candidate < cost[s][i]) {
+                        cost[s][i] = candidate;
+                        split[s][i] = j;
+                    }
+                }
+            }
+        }
+
+        int[] starts = new int[stages];
+        for (int s = stages, i = steps; s > 0; s--) {
+            starts[s - 1] = split[s][i];
+            i = split[s][i];
+        }
+        return starts;
+    }
+
+    /**
+     * Queues an image for classification, waiting while every frame is in flight.
+     *
+     * @param image The image to classify.
+     * @return Future completed with the predicted label.
+     */
+    public synchronized CompletableFuture<Integer> submit(Image image) {
+        if (_closed) {
+            throw new IllegalStateException("The pipeline is closed");
+        }
+        Frame frame;
+        int spins = 0;
+        while ((frame = _free.poll()) == null) {
+            spins = backOff(spins);  // Every frame is in flight; the last stage returns one soon
+        }
+
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        frame._image = image;
+        frame._result = result;
+        while (!_head.offer(frame)) {
+            spins = backOff(spins);  // Cannot happen: the head ring holds every frame
+        }
+        return result;
+    }
+
+    /**
+     * Describes every stage: its steps, the images it processed and the share of time it spent
+     * busy, blocked on the next stage and idle waiting for input.
+     *
+     * @return One line per stage.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Stage stage : _stages) {
+            report.append(stage.describe()).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Finishes every submitted image and stops the stage threads.
+     */
+    @Override
+    public synchronized void close() {
+        _closed = true;
+        for (Stage stage : _stages) {
+            try {
+                stage._thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits a little: spins first, then yields, then parks briefly, so an idle stage costs little CPU
+     * while a busy pipeline hands frames over without a context switch.
+     *
+     * @param spins Number of consecutive waits so far.
+     * @return The new number of consecutive waits.
+     */
+    private static int backOff(int spins) {
+        if (spins < SPIN_LIMIT) {
+            Thread.onSpinWait();
+        } else if (spins < 2 * SPIN_LIMIT) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return spins + 1;
+    }
+}
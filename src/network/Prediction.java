@@ -0,0 +1,10 @@
+package network;
+
+/**
+ * One class predicted for an image, together with the probability the network assigns to it.
+ *
+ * @param label The predicted class.
+ * @param probability Calibrated probability of the class, between 0 and 1.
+ */
+public record Prediction(int label, double probability) {
+}
@@ -0,0 +1,132 @@
+package network;
+
+import Layers.FullyConnectedLayer;
+import Layers.Layer;
+import data.DataReader;
+import data.Image;
+
+import java.io.File;
+import java.util.List;
+
+import static java.util.Collections.shuffle;
+
+/**
+ * Magnitude pruning for the fully connected layers of a network.
+ *
+ * Pruning zeroes the weights with the smallest magnitudes and stores each pruned layer in compressed
+ * sparse row form, so a saved model shrinks and the layer's matrix-vector product only visits the
+ * kept weights. With fine-tuning, the sparsity is raised gradually over several steps and the network
+ * trains on the kept weights after each step to recover accuracy.
+ */
+public class Pruner {
+
+    /**
+     * Prunes every fully connected layer to a target sparsity in one step.
+     *
+     * @param network The network to prune in place.
+     * @param sparsity Target fraction of zero weights in each layer, between 0 and 1.
+     */
+    public static void prune(NeuralNetwork network, double sparsity) {
+        for (Layer layer : network._layers) {
+            if (layer instanceof FullyConnectedLayer fullyConnected) {
+                fullyConnected.prune(sparsity);
+            }
+        }
+    }
+
+    /**
+     * Prunes every fully connected layer to a target sparsity over several steps, training the kept
+     * weights on the given images after each one. The sparsity follows a cubic schedule, removing many
+     * weights early while the network can still recover and few near the end.
+     *
+     * @param network The network to prune in place.
+     * @param sparsity Target fraction of zero weights in each layer, between 0 and 1.
+     * @param images Images to fine-tune on after every step.
+     * @param steps Number of pruning steps, each followed by one pass over the images.
+     */
+    public static void prune(NeuralNetwork network, double sparsity, List<Image> images, int steps) {
+        for (int step = 1; step <= steps; step++) {
+            double progress = (double) step / steps;
+            double stepSparsity = sparsity * (1 - Math.pow(1 - progress, 3));
+
+            prune(network, stepSparsity);
+            shuffle(images);
+            network.train(images);  // Pruned weights stay at zero while the rest adapt
+        }
+    }
+
+    /**
+     * Describes the sparsity and weight memory of every fully connected layer.
+     *
+     * @param network The network to describe.
+     * @return One line per fully connected layer.
+     */
+    public static String report(NeuralNetwork network) {
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < network._layers.size(); i++) {
+            if (network._layers.get(i) instanceof FullyConnectedLayer fullyConnected) {
+                report.append(String.format("Layer %d: %d x %d, sparsity %.1f%%, %d weights kept, %.1f KB%n", i,
+                        fullyConnected.getInputElements(), fullyConnected.getOutputElements(),
+                        fullyConnected.getSparsity() * 100, fullyConnected.getParameterCount(),
+                        fullyConnected.getWeightByteSize() / 1024.0));
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Measures the average time of a prediction.
+     *
+     * @param network The network to measure.
+     * @param images Images to predict, each once per round.
+     * @return Mean nanoseconds per prediction.
+     */
+    private static double nanosPerPrediction(NeuralNetwork network, List<Image> images) {
+        network.guess(images);  // Warm up the kernels first
+        long start = System.nanoTime();
+        network.guess(images);
+        return (double) (System.nanoTime() - start) / images.size();
+    }
+
+    /**
+     * Prunes a saved network. Usage: {@code java network.Pruner <model.ser> <output.ser> <sparsity>
+     * [train.csv test.csv [steps]]}. Without data the network is pruned in one step; with data it is
+     * pruned gradually, fine-tuned on the training set and tested before and after.
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: java network.Pruner <model.ser> <output.ser> <sparsity> [train.csv test.csv [steps]]");
+            return;
+        }
+
+        NeuralNetwork network = Main.loadNetwork(args[0]);
+        if (network == null) {
+            return;  // Loading already reported the error
+        }
+        double sparsity = Double.parseDouble(args[2]);
+
+        List<Image> imagesTest = null;
+        if (args.length >= 5) {
+            List<Image> imagesTrain = new DataReader().readData(args[3]);
+            imagesTest = new DataReader().readData(args[4]);
+            int steps = args.length >= 6 ? Integer.parseInt(args[5]) : 5;
+
+            System.out.println("Success rate before pruning: " + network.test(imagesTest));
+            System.out.printf("Prediction time before pruning: %.1f us%n", nanosPerPrediction(network, imagesTest) / 1000);
+            prune(network, sparsity, imagesTrain, steps);
+        } else {
+            prune(network, sparsity);
+        }
+
+        System.out.print(report(network));
+        if (imagesTest != null) {
+            System.out.println("Success rate after pruning: " + network.test(imagesTest));
+            System.out.printf("Prediction time after pruning: %.1f us%n", nanosPerPrediction(network, imagesTest) / 1000);
+        }
+
+        Main.saveNetwork(network, args[1]);
+        System.out.printf("Model size: %.1f KB -> %.1f KB%n", new File(args[0]).length() / 1024.0, new File(args[1]).length() / 1024.0);
+    }
+}
@@ -0,0 +1,68 @@
+package network;
+
+/**
+ * Softmax over the network's output logits fused with the cross-entropy loss.
+ *
+ * The gradient of cross-entropy w.r.t the logits of a softmax is simply the predicted probability
+ * minus the one-hot target, so the probabilities are written straight into the gradient buffer and
+ * only the target class is corrected afterwards. Neither the probabilities nor the target vector are
+ * ever materialized separately. The largest logit is subtracted before exponentiation so large
+ * logits cannot overflow.
+ */
+final class SoftmaxCrossEntropy {
+
+    private SoftmaxCrossEntropy() {
+    }
+
+    /**
+     * Writes the gradient of the cross-entropy loss w.r.t the logits into an existing array.
+     *
+     * @param logits Array holding the logits.
+     * @param logitOffset Index of the first logit.
+     * @param length Number of classes.
+     * @param label The correct class.
+     * @param gradient Array receiving the gradient. May be the logits array at the same offset.
+     * @param gradientOffset Index of the first gradient value.
+     * @return The cross-entropy loss for the sample.
+     */
+    static double writeGradient(double[] logits, int logitOffset, int length, int label, double[] gradient, int gradientOffset) {
+        double labelLogit = logits[logitOffset + label];
+        double logSum = writeProbabilities(logits, logitOffset, length, 1.0, gradient, gradientOffset);
+
+        gradient[gradientOffset + label] -= 1.0;  // Subtract the one-hot target in place
+        return logSum - labelLogit;
+    }
+
+    /**
+     * Writes the softmax probabilities of temperature-scaled logits into an existing array.
+     *
+     * @param logits Array holding the logits.
+     * @param logitOffset Index of the first logit.
+     * @param length Number of classes.
+     * @param temperature Temperature dividing every logit; 1 leaves them unchanged.
+     * @param probabilities Array receiving the probabilities. May be the logits array at the same offset.
+     * @param probabilityOffset Index of the first probability.
+     * @return The log of the softmax normalizer of the scaled logits, i.e. the loss of a class is this minus its scaled logit.
+     */
+    static double writeProbabilities(double[] logits, int logitOffset, int length, double temperature,
+                                     double[] probabilities, int probabilityOffset) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            max = Math.max(max, logits[logitOffset + i]);
+        }
+
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            double e = Math.exp((logits[logitOffset + i] - max) / temperature);
+            probabilities[probabilityOffset + i] = e;
+            sum += e;
+        }
+
+        double inverse = 1.0 / sum;
+        for (int i = 0; i < length; i++) {
+            probabilities[probabilityOffset + i] *= inverse;
+        }
+
+        return max / temperature + Math.log(sum);
+    }
+}
@@ -0,0 +1,77 @@
+package network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue for exactly one producer thread and one consumer thread.
+ *
+ * Items live in a power-of-two ring. The producer only writes the tail and the consumer only writes
+ * the head, each with a release store that publishes the item (or the freed slot) to the other side,
+ * so neither side ever takes a lock or retries a compare-and-set. Each side also caches the other
+ * side's last seen index and only rereads it when the ring looks full or empty.
+ *
+ * @param <T> Type of the items.
+ */
+final class SpscRingBuffer<T> {
+    private final Object[] _items;  // Ring of slots; a slot is null once consumed
+    private final int _mask;  // Capacity minus one, for cheap index wrapping
+    private final AtomicLong _head = new AtomicLong();  // Index of the next item to take, written by the consumer
+    private final AtomicLong _tail = new AtomicLong();  // Index of the next free slot, written by the producer
+    private long _cachedHead;  // Producer's last seen head
+    private long _cachedTail;  // Consumer's last seen tail
+
+    /**
+     * Constructor to initialize an empty ring.
+     *
+     * @param capacity Smallest number of items the ring must hold; rounded up to a power of two.
+     */
+    SpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        _items = new Object[size];
+        _mask = size - 1;
+    }
+
+    /**
+     * Adds an item. Only the producer thread may call this.
+     *
+     * @param item The item, not null.
+     * @return False if the ring is full.
+     */
+    boolean offer(T item) {
+        long tail = _tail.get();
+        if (tail - _cachedHead == _items.length) {
+            _cachedHead = _head.get();
+            if (tail - _cachedHead == _items.length) {
+                return false;
+            }
+        }
+        _items[(int) tail & _mask] = item;
+        _tail.lazySet(tail + 1);  // Publishes the item
+        return true;
+    }
+
+    /**
+     * Takes the oldest item. Only the consumer thread may call this.
+     *
+     * @return The item, or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long head = _head.get();
+        if (head == _cachedTail) {
+            _cachedTail = _tail.get();
+            if (head == _cachedTail) {
+                return null;
+            }
+        }
+        int index = (int) head & _mask;
+        T item = (T) _items[index];
+        _items[index] = null;
+        _head.lazySet(head + 1);  // Frees the slot
+        return item;
+    }
+
+    boolean isEmpty() {
+        return _head.get() == _tail.get();
+    }
+}
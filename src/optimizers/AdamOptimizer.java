@@ -0,0 +1,68 @@
+package optimizers;
+
+import java.io.Serial;
+
+/**
+ * Adam: every parameter gets its own step size from running averages of its gradient and squared
+ * gradient, with the bias of the zero-initialized averages corrected once per step.
+ */
+public class AdamOptimizer extends Optimizer {
+    @Serial
+    private static final long serialVersionUID = 1L;
+    private final double _beta1;  // Decay rate of the gradient average
+    private final double _beta2;  // Decay rate of the squared gradient average
+    private final double _epsilon;  // Keeps the step finite for parameters that never had a gradient
+    private double _stepSize;  // Bias-corrected learning rate of the current step
+
+    /**
+     * Constructor to initialize the optimizer with the usual hyperparameters (0.9, 0.999, 1e-8).
+     */
+    public AdamOptimizer() {
+        this(0.9, 0.999, 1e-8);
+    }
+
+    /**
+     * Constructor to initialize the optimizer.
+     *
+     * @param beta1 Decay rate of the gradient average.
+     * @param beta2 Decay rate of the squared gradient average.
+     * @param epsilon Small constant added to the denominator.
+     */
+    public AdamOptimizer(double beta1, double beta2, double epsilon) {
+        _beta1 = beta1;
+        _beta2 = beta2;
+        _epsilon = epsilon;
+    }
+
+    @Override
+    protected Optimizer copy() {
+        return new AdamOptimizer(_beta1, _beta2, _epsilon);
+    }
+
+    @Override
+    protected int getStateSlots() {
+        return 2;
+    }
+
+    @Override
+    public void beginStep() {
+        super.beginStep();
+        _stepSize = _learningRate * Math.sqrt(1 - Math.pow(_beta2, _step)) / (1 - Math.pow(_beta1, _step));
+    }
+
+    @Override
+    public void update(double[] weights, int weightOffset, double[] gradient, int gradientOffset,
+                       double gradientScale, int length, int parameterIndex) {
+        double[] mean = _state[0];
+        double[] variance = _state[1];
+
+        for (int k = 0; k < length; k++) {
+            double g = gradient[gradientOffset + k] * gradientScale;
+            double m = _beta1 * mean[parameterIndex + k] + (1 - _beta1) * g;
+            double v = _beta2 * variance[parameterIndex + k] + (1 - _beta2) * g * g;
+            mean[parameterIndex + k] = m;
+            variance[parameterIndex + k] = v;
+            weights[weightOffset + k] -= _stepSize * m / (Math.sqrt(v) + _epsilon);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package optimizers;
+
+import java.io.Serial;
+
+/**
+ * Gradient descent with momentum: parameters move along a velocity that accumulates past gradients,
+ * which damps oscillation and speeds up progress along consistent directions.
+ */
+public class MomentumOptimizer extends Optimizer {
+    @Serial
+    private static final long serialVersionUID = 1L;
+    private final double _momentum;  // Fraction of the velocity kept from one step to the next
+
+    /**
+     * Constructor to initialize the optimizer.
+     *
+     * @param momentum Fraction of the velocity kept from one step to the next, typically 0.9.
+     */
+    public MomentumOptimizer(double momentum) {
+        _momentum = momentum;
+    }
+
+    @Override
+    protected Optimizer copy() {
+        return new MomentumOptimizer(_momentum);
+    }
+
+    @Override
+    protected int getStateSlots() {
+        return 1;
+    }
+
+    @Override
+    public void update(double[] weights, int weightOffset, double[] gradient, int gradientOffset,
+                       double gradientScale, int length, int parameterIndex) {
+        double[] velocity = _state[0];
+
+        for (int k = 0; k < length; k++) {
+            double v = _momentum * velocity[parameterIndex + k] + gradient[gradientOffset + k] * gradientScale;
+            velocity[parameterIndex + k] = v;
+            weights[weightOffset + k] -= _learningRate * v;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package optimizers;
+
+import java.io.Serial;
+
+/**
+ * Gradient descent with Nesterov momentum: like {@link MomentumOptimizer}, but the step looks ahead
+ * along the updated velocity, which corrects overshooting earlier.
+ */
+public class NesterovOptimizer extends Optimizer {
+    @Serial
+    private static final long serialVersionUID = 1L;
+    private final double _momentum;  // Fraction of the velocity kept from one step to the next
+
+    /**
+     * Constructor to initialize the optimizer.
+     *
+     * @param momentum Fraction of the velocity kept from one step to the next, typically 0.9.
+     */
+    public NesterovOptimizer(double momentum) {
+        _momentum = momentum;
+    }
+
+    @Override
+    protected Optimizer copy() {
+        return new NesterovOptimizer(_momentum);
+    }
+
+    @Override
+    protected int getStateSlots() {
+        return 1;
+    }
+
+    @Override
+    public void update(double[] weights, int weightOffset, double[] gradient, int gradientOffset,
+                       double gradientScale, int length, int parameterIndex) {
+        double[] velocity = _state[0];
+
+        for (int k = 0; k < length; k++) {
+            double g = gradient[gradientOffset + k] * gradientScale;
+            double v = _momentum * velocity[parameterIndex + k] + g;
+            velocity[parameterIndex + k] = v;
+            weights[weightOffset + k] -= _learningRate * (g + _momentum * v);  // Look ahead along the new velocity
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package optimizers;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * Base class for the update rules applied to a layer's parameters.
+ *
+ * An optimizer is configured once with its hyperparameters and then bound to every layer with
+ * {@link #bind(int, double)}, which returns a separate instance owning that layer's state. The state
+ * lives in flat arrays that mirror the layer's flattened parameters (one array per state slot, e.g.
+ * the velocity for momentum or both moments for Adam), so an update is a plain loop over contiguous
+ * elements that the JIT can vectorize. A bound optimizer is serialized with its layer, so checkpoints
+ * resume training with the state they were saved with.
+ */
+public abstract class Optimizer implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    protected double _learningRate;  // Learning rate of the bound layer
+    protected double[][] _state;  // State slots, each mirroring the layer's flattened parameters; null until bound
+    protected long _step;  // Number of steps taken so far
+
+    /**
+     * Creates an instance for one layer, with the same hyperparameters and freshly zeroed state.
+     *
+     * @param parameterCount Number of parameters in the layer.
+     * @param learningRate Learning rate of the layer.
+     * @return The bound optimizer.
+     */
+    public Optimizer bind(int parameterCount, double learningRate) {
+        Optimizer bound = copy();
+        bound._learningRate = learningRate;
+        bound._state = new double[getStateSlots()][parameterCount];
+        return bound;
+    }
+
+    /**
+     * Creates an unbound instance with the same hyperparameters.
+     *
+     * @return The new instance.
+     */
+    protected abstract Optimizer copy();
+
+    /**
+     * Gets the number of state values kept for every parameter.
+     *
+     * @return Number of state slots.
+     */
+    protected abstract int getStateSlots();
+
+    /**
+     * Gets the memory a bound instance keeps for a layer's state.
+     *
+     * @param parameterCount Number of parameters in the layer.
+     * @return Size in bytes of the state slots.
+     */
+    public long getStateByteSize(int parameterCount) {
+        return (long) getStateSlots() * parameterCount * Double.BYTES;
+    }
+
+    /**
+     * Starts a new step. Layers call this once per backward pass, before their updates.
+     */
+    public void beginStep() {
+        _step++;
+    }
+
+    /**
+     * Updates a contiguous run of parameters.
+     *
+     * @param weights Array holding the parameters.
+     * @param weightOffset Index of the first parameter in the array.
+     * @param gradient Array holding the gradient.
+     * @param gradientOffset Index of the first gradient value.
+     * @param gradientScale Factor applied to every gradient value, e.g. the input of a fully connected row.
+     * @param length Number of parameters to update.
+     * @param parameterIndex Index of the first parameter in the layer's flattened parameters.
+     */
+    public abstract void update(double[] weights, int weightOffset, double[] gradient, int gradientOffset,
+                                double gradientScale, int length, int parameterIndex);
+
+    /**
+     * Whether the optimizer keeps no state, so a parameter with a zero gradient stays unchanged and
+     * layers may skip it.
+     *
+     * @return True if zero gradients can be skipped.
+     */
+    public boolean isStateless() {
+        return getStateSlots() == 0;
+    }
+
+    public long getStepCount() {
+        return _step;
+    }
+}
@@ -0,0 +1,31 @@
+package optimizers;
+
+import java.io.Serial;
+
+/**
+ * Plain stochastic gradient descent: every parameter moves against its gradient, scaled by the learning rate.
+ */
+public class SgdOptimizer extends Optimizer {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected Optimizer copy() {
+        return new SgdOptimizer();
+    }
+
+    @Override
+    protected int getStateSlots() {
+        return 0;
+    }
+
+    @Override
+    public void update(double[] weights, int weightOffset, double[] gradient, int gradientOffset,
+                       double gradientScale, int length, int parameterIndex) {
+        double step = gradientScale * _learningRate;
+
+        for (int k = 0; k < length; k++) {
+            weights[weightOffset + k] -= gradient[gradientOffset + k] * step;
+        }
+    }
+}
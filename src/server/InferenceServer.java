@@ -0,0 +1,257 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import data.Image;
+import network.Main;
+import network.ModelRegistry;
+import network.NeuralNetwork;
+import network.ParallelScheduler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP inference server for a saved network.
+ *
+ * Every request is handled on its own virtual thread, which simply blocks until the
+ * {@link MicroBatcher} has run the batch containing its image. Endpoints:
+ * <ul>
+ *     <li>{@code POST /predict} with the image's pixel values (0-255, comma or whitespace
+ *     separated, row by row) as the body, answered with {@code {"digit":7}}.</li>
+ *     <li>{@code GET /stats}, answered with request and batch counts, p50/p99 latency, throughput,
+ *     the current model version and the latency of the last model swap.</li>
+ * </ul>
+ * Networks come from a {@link ModelRegistry}, so a server started on a model directory picks up
+ * new model files without a restart.
+ * The server only binds to the loopback address.
+ */
+public class InferenceServer {
+    private final HttpServer _server;  // Underlying HTTP server
+    private final ExecutorService _executor;  // Virtual thread per request
+    private final ModelRegistry _models;  // Supplies the network currently being served
+    private final MicroBatcher _batcher;  // Coalesces requests into batches
+    private final LatencyRecorder _latencies;  // Latency of every completed prediction
+    private final int _inputRows;  // Number of rows in every input image
+    private final int _inputColumns;  // Number of columns in every input image
+
+    /**
+     * Constructor to initialize the server. Call {@link #start()} to begin accepting requests.
+     *
+     * @param network The network used for inference.
+     * @param port Port to listen on, or 0 to pick a free one.
+     * @param inputRows Number of rows in every input image.
+     * @param inputColumns Number of columns in every input image.
+     * @param maxBatchSize Largest number of requests run together.
+     * @param maxDelayMicros How long a request may wait for its batch to fill, in microseconds.
+     * @throws IOException If the server socket cannot be opened.
+     */
+    public InferenceServer(NeuralNetwork network, int port, int inputRows, int inputColumns, int maxBatchSize, long maxDelayMicros) throws IOException {
+        this(ModelRegistry.fixed(network, "static"), port, inputRows, inputColumns, maxBatchSize, maxDelayMicros);
+    }
+
+    /**
+     * Constructor to initialize the server on a model registry. Call {@link #start()} to begin accepting requests.
+     *
+     * @param models Registry supplying the network to serve.
+     * @param port Port to listen on, or 0 to pick a free one.
+     * @param inputRows Number of rows in every input image.
+     * @param inputColumns Number of columns in every input image.
+     * @param maxBatchSize Largest number of requests run together.
+     * @param maxDelayMicros How long a request may wait for its batch to fill, in microseconds.
+     * @throws IOException If the server socket cannot be opened.
+     */
+    public InferenceServer(ModelRegistry models, int port, int inputRows, int inputColumns, int maxBatchSize, long maxDelayMicros) throws IOException {
+        _models = models;
+        _inputRows = inputRows;
+        _inputColumns = inputColumns;
+        _latencies = new LatencyRecorder(10_000);
+        _batcher = new MicroBatcher(models, maxBatchSize, maxDelayMicros, _latencies);
+        _executor = Executors.newVirtualThreadPerTaskExecutor();
+
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        _server.setExecutor(_executor);
+    }
+
+    /**
+     * Registers the endpoints and starts accepting requests.
+     */
+    public void start() {
+        _server.createContext("/predict", this::handlePredict);
+        _server.createContext("/stats", this::handleStats);
+        _server.start();
+    }
+
+    /**
+     * Stops accepting requests and shuts down the batcher and the model registry.
+     */
+    public void stop() {
+        _server.stop(0);
+        _batcher.shutdown();
+        _executor.shutdown();
+        _models.close();
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return The bound port.
+     */
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    public LatencyRecorder getLatencies() {
+        return _latencies;
+    }
+
+    /**
+     * Builds the statistics report served by {@code GET /stats}.
+     *
+     * @return JSON object with request and batch counts, latency percentiles, throughput and model version.
+     */
+    public String getStatsJson() {
+        long requests = _latencies.getCount();
+        long batches = _batcher.getBatchCount();
+
+        return String.format(Locale.ROOT,
+                "{\"requests\":%d,\"batches\":%d,\"averageBatchSize\":%.2f,\"p50Micros\":%.1f,\"p99Micros\":%.1f,\"throughputPerSecond\":%.1f,"
+                        + "\"modelVersion\":\"%s\",\"modelSwaps\":%d,\"lastSwapMillis\":%d}",
+                requests, batches, batches == 0 ? 0.0 : (double) requests / batches,
+                _latencies.getPercentileMicros(50), _latencies.getPercentileMicros(99), _latencies.getThroughputPerSecond(),
+                _models.getCurrentVersion(), _models.getSwapCount(), _models.getLastSwapMillis());
+    }
+
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\":\"use POST\"}");
+                return;
+            }
+
+            Image image;
+            try (InputStream body = exchange.getRequestBody()) {
+                image = parseImage(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+                return;
+            }
+
+            try {
+                int digit = _batcher.submit(image).get();
+                respond(exchange, 200, "{\"digit\":" + digit + "}");
+            } catch (ExecutionException e) {
+                respond(exchange, 500, "{\"error\":\"inference failed\"}");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "{\"error\":\"interrupted\"}");
+            }
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            respond(exchange, 200, getStatsJson());
+        }
+    }
+
+    /**
+     * Parses a request body into an image.
+     *
+     * @param body Pixel values separated by commas or whitespace, row by row.
+     * @return The parsed image, with an unknown (-1) label.
+     * @throws IllegalArgumentException If the body does not hold exactly one value per pixel.
+     */
+    private Image parseImage(String body) {
+        String[] items = body.trim().split("[,\\s]+");
+        if (items.length != _inputRows * _inputColumns) {
+            throw new IllegalArgumentException("expected " + _inputRows * _inputColumns + " pixel values but got " + items.length);
+        }
+
+        double[][] data = new double[_inputRows][_inputColumns];
+        int i = 0;
+        for (int row = 0; row < _inputRows; row++) {
+            for (int col = 0; col < _inputColumns; col++) {
+                try {
+                    data[row][col] = Double.parseDouble(items[i++]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("pixel " + (i - 1) + " is not a number");
+                }
+            }
+        }
+        return new Image(data, -1);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Starts a server for a saved network on the loopback address.
+     *
+     * @param args Model path, then optionally port (default 8080), max batch size (default 32)
+     *             and latency budget in microseconds (default 2000). When the model path is a
+     *             directory, the newest model in it is served and new model files are swapped in live.
+     */
+    public static void main(String[] args) throws IOException {
+        String modelPath = args.length > 0 ? args[0] : "out/trained_networkV5.ser";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        int maxBatchSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        long maxDelayMicros = args.length > 3 ? Long.parseLong(args[3]) : 2_000;
+
+        ModelRegistry models;
+        if (Files.isDirectory(Path.of(modelPath))) {
+            models = ModelRegistry.watch(Path.of(modelPath), 200);
+        } else {
+            NeuralNetwork network = Main.loadNetwork(modelPath);
+            if (network == null) {
+                return;  // Loading already reported the error
+            }
+            network.foldBatchNorm();  // Served networks never train, so batch norm folds into its neighbours
+            network.warmUp(200);
+            models = ModelRegistry.fixed(network, Path.of(modelPath).getFileName().toString());
+        }
+
+        tuneParallelism(models.current().scheduler(), maxBatchSize);
+
+        InferenceServer server = new InferenceServer(models, port, 28, 28, maxBatchSize, maxDelayMicros);
+        server.start();
+        System.out.println("Inference server listening on http://127.0.0.1:" + server.getPort() + " (POST /predict, GET /stats)");
+    }
+
+    /**
+     * Measures how to share the cores between the images of a batch and the work inside each kernel,
+     * for single requests and for full batches, unless this model architecture was already tuned on
+     * this machine. Models of the same architecture swapped in later pick the result up from the cache.
+     *
+     * @param scheduler Scheduler of the model to serve.
+     * @param maxBatchSize Largest number of requests run together.
+     */
+    private static void tuneParallelism(ParallelScheduler scheduler, int maxBatchSize) {
+        List<Image> sample = ParallelScheduler.syntheticImages(maxBatchSize, 28, 28, 1);
+        printTuning("Single requests", scheduler.autoTune(sample, 1));
+        printTuning("Batches of " + maxBatchSize, scheduler.autoTune(sample, maxBatchSize));
+    }
+
+    private static void printTuning(String name, ParallelScheduler.Tuning tuning) {
+        tuning.microsPerImage().forEach((split, micros) -> System.out.printf(Locale.ROOT,
+                "Batch of %d with %s: %.1f us per image%n", tuning.batchSize(), split, micros));
+        System.out.println(name + " run with " + tuning.best());
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Records request latencies and completions so percentiles and throughput can be reported.
+ * Only the most recent {@code capacity} latencies are kept, so percentiles describe recent
+ * behaviour and memory stays constant however long the server runs.
+ */
+public class LatencyRecorder {
+    private final long[] _samples;  // Ring of the most recent latencies, in nanoseconds
+    private long _recorded;  // Total number of latencies recorded
+    private final long _startNanos;  // When recording started, for throughput
+
+    /**
+     * Constructor to initialize the recorder.
+     *
+     * @param capacity Number of recent latencies kept for percentile calculations.
+     */
+    public LatencyRecorder(int capacity) {
+        _samples = new long[capacity];
+        _startNanos = System.nanoTime();
+    }
+
+    /**
+     * Records the latency of one completed request.
+     *
+     * @param nanos Latency in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        _samples[(int) (_recorded % _samples.length)] = nanos;
+        _recorded++;
+    }
+
+    /**
+     * Gets the total number of recorded requests.
+     *
+     * @return Number of requests recorded since the recorder was created.
+     */
+    public synchronized long getCount() {
+        return _recorded;
+    }
+
+    /**
+     * Calculates a latency percentile over the recent samples.
+     *
+     * @param percentile Percentile between 0 and 100.
+     * @return The latency at that percentile in microseconds, or 0 when nothing was recorded.
+     */
+    public double getPercentileMicros(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(_samples, (int) Math.min(_recorded, _samples.length));
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1_000.0;
+    }
+
+    /**
+     * Calculates the average throughput since the recorder was created.
+     *
+     * @return Completed requests per second.
+     */
+    public double getThroughputPerSecond() {
+        double seconds = (System.nanoTime() - _startNanos) / 1e9;
+        return seconds > 0 ? getCount() / seconds : 0;
+    }
+}
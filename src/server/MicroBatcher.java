@@ -0,0 +1,177 @@
+package server;
+
+import data.Image;
+import network.ModelRegistry;
+import network.ParallelScheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces single-image requests into micro-batches for the network.
+ *
+ * Callers submit images from any number of threads and receive a future. A single worker thread
+ * takes the oldest pending request and keeps collecting more until either the batch is full or the
+ * oldest request has waited for the latency budget, then hands the whole batch to the registry's
+ * current network. A swap in the registry therefore takes effect at the next batch. Every batch
+ * runs through a {@link ParallelScheduler}, which shares the cores between the batch's images and
+ * the work inside each kernel. Every model of the registry comes with its own scheduler, whose
+ * replicas are copied before the model goes live, so no batch waits for a copy. Each image
+ * still gets its own forward pass, so batching saves hand-offs between threads, not arithmetic.
+ */
+public class MicroBatcher {
+    private record Pending(Image image, long enqueuedNanos, CompletableFuture<Integer> result) {
+    }
+
+    private final BlockingQueue<Pending> _queue = new LinkedBlockingQueue<>();  // Requests waiting for a batch
+    private final ModelRegistry _models;  // Supplies the network for every batch
+    private final int _maxBatchSize;  // Largest number of requests run together
+    private final long _maxDelayNanos;  // How long the oldest request may wait for its batch to fill
+    private final LatencyRecorder _latencies;  // Enqueue-to-completion latency of every request
+    private final AtomicLong _batches = new AtomicLong();  // Number of batches run so far
+    private final Thread _worker;  // Thread running the batches
+    private ParallelScheduler _scheduler;  // Scheduler of the last batch's model, closed when the model changes; only used by the worker
+    private volatile boolean _running = true;
+
+    /**
+     * Constructor to initialize the batcher and start its worker thread.
+     *
+     * @param models Registry supplying the network used for inference.
+     * @param maxBatchSize Largest number of requests run together.
+     * @param maxDelayMicros How long the oldest request may wait for its batch to fill, in microseconds.
+     * @param latencies Recorder receiving the latency of every completed request.
+     */
+    public MicroBatcher(ModelRegistry models, int maxBatchSize, long maxDelayMicros, LatencyRecorder latencies) {
+        _models = models;
+        _maxBatchSize = maxBatchSize;
+        _maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        _latencies = latencies;
+        models.current().scheduler().prepare(maxBatchSize);  // Swapped-in models get as many replicas as this one
+
+        _worker = new Thread(this::run, "micro-batcher");
+        _worker.setDaemon(true);
+        _worker.start();
+    }
+
+    /**
+     * Queues an image for the next batch.
+     *
+     * @param image The image to classify.
+     * @return A future completed with the predicted label.
+     */
+    public CompletableFuture<Integer> submit(Image image) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        if (!_running) {
+            result.completeExceptionally(new IllegalStateException("Batcher has been shut down"));
+            return result;
+        }
+        _queue.add(new Pending(image, System.nanoTime(), result));
+        return result;
+    }
+
+    /**
+     * Gets the number of batches run so far.
+     *
+     * @return Number of batches.
+     */
+    public long getBatchCount() {
+        return _batches.get();
+    }
+
+    /**
+     * Stops the worker and fails every request that has not been run yet.
+     */
+    public void shutdown() {
+        _running = false;
+        _worker.interrupt();
+
+        Pending pending;
+        while ((pending = _queue.poll()) != null) {
+            pending.result().completeExceptionally(new IllegalStateException("Batcher has been shut down"));
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(_maxBatchSize);
+        List<Image> images = new ArrayList<>(_maxBatchSize);
+
+        while (_running) {
+            try {
+                Pending first = _queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Keep collecting until the batch is full or the oldest request has used up its budget
+                long deadline = first.enqueuedNanos() + _maxDelayNanos;
+                while (batch.size() < _maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Pending next = wait > 0 ? _queue.poll(wait, TimeUnit.NANOSECONDS) : _queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                runBatch(batch, images);
+            } catch (InterruptedException e) {
+                for (Pending pending : batch) {
+                    pending.result().completeExceptionally(new IllegalStateException("Batcher has been shut down"));
+                }
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+                images.clear();
+            }
+        }
+
+        // Fail anything that slipped in while shutting down
+        Pending pending;
+        while ((pending = _queue.poll()) != null) {
+            pending.result().completeExceptionally(new IllegalStateException("Batcher has been shut down"));
+        }
+        if (_scheduler != null) {
+            _scheduler.close();
+        }
+    }
+
+    private void runBatch(List<Pending> batch, List<Image> images) {
+        try {
+            for (Pending pending : batch) {
+                images.add(pending.image());
+            }
+
+            ModelRegistry.Model model = _models.current();
+            if (model.scheduler() != _scheduler) {
+                if (_scheduler != null) {
+                    _scheduler.close();  // Only this thread runs batches, so the old model is idle
+                }
+                _scheduler = model.scheduler();
+            }
+            int[] guesses;
+            synchronized (model.network()) {
+                guesses = _scheduler.guess(images);
+            }
+            _batches.incrementAndGet();
+
+            long now = System.nanoTime();
+            for (int i = 0; i < batch.size(); i++) {
+                _latencies.record(now - batch.get(i).enqueuedNanos());
+                batch.get(i).result().complete(guesses[i]);
+            }
+        } catch (Exception e) {
+            System.err.println("Error running inference batch: " + e.getMessage());
+            e.printStackTrace();
+            for (Pending pending : batch) {
+                pending.result().completeExceptionally(e);
+            }
+        }
+    }
+}
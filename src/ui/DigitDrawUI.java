@@ -5,16 +5,46 @@ import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
-
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import network.IncrementalPredictor;
 import network.Main;
 import network.NeuralNetwork;
 import data.Image;
+import data.ImageConverter;
 
 public class DigitDrawUI extends JFrame {
     private static final int GRID_SIZE = 28;
+    private static final long PREDICTION_DELAY_MILLIS = 60;  // Quiet period after the last stroke before predicting
+    private static final int WARM_UP_ITERATIONS = 200;  // Synthetic forward passes run while the window opens
     private JPanel drawingPanel;
     private BufferedImage drawingImage;
     private NeuralNetwork network;
+    private JLabel predictionLabel;  // Shows the live prediction while drawing
+
+    // Predictions run on one background thread so the EDT only ever paints
+    private final transient ScheduledExecutorService predictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "digit-predictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private transient ScheduledFuture<?> pendingPrediction;  // Debounced live prediction, touched on the EDT only
+
+    // Hand-off from the EDT to the prediction thread, guarded by pixelLock
+    private final transient Object pixelLock = new Object();
+    private final double[][] pixels = new double[GRID_SIZE][GRID_SIZE];  // Latest drawing as network input
+    private int[] dirtyRegion;  // Pixels changed since the last prediction, or null
+    private boolean cleared;  // Whether the drawing was cleared since the last prediction
+
+    // Owned by the prediction thread
+    private final double[][] predictorPixels = new double[GRID_SIZE][GRID_SIZE];
+    private final Image predictorImage = new Image(predictorPixels, -1);
+    private transient IncrementalPredictor predictor;
 
     public DigitDrawUI(NeuralNetwork network) {
         this.network = network;
@@ -37,9 +67,12 @@ public class DigitDrawUI extends JFrame {
         JButton submitButton = new JButton("Submit");
         submitButton.addActionListener(e -> submitDrawing());
 
+        predictionLabel = new JLabel("Draw a digit");
+
         JPanel controlPanel = new JPanel();
         controlPanel.add(clearButton);
         controlPanel.add(submitButton);
+        controlPanel.add(predictionLabel);
 
         add(drawingPanel, BorderLayout.CENTER);
         add(controlPanel, BorderLayout.SOUTH);
@@ -49,6 +82,39 @@ public class DigitDrawUI extends JFrame {
                 draw(evt.getX(), evt.getY());
             }
         });
+
+        if (network != null) {
+            predictionExecutor.execute(this::warmUp);
+        }
+    }
+
+    /**
+     * Compiles the prediction kernels while the window opens, so the first stroke is predicted at
+     * full speed: runs synthetic forward passes, then region updates of random strokes. Runs on the
+     * prediction thread, which owns the predictor, and leaves the predictor on the blank drawing.
+     */
+    private void warmUp() {
+        try {
+            network.warmUp(WARM_UP_ITERATIONS);
+            predictor = new IncrementalPredictor(network);
+            Image stroke = new Image(new double[GRID_SIZE][GRID_SIZE], -1);
+            predictor.reset(stroke);
+            Random random = new Random(GRID_SIZE);
+            for (int n = 0; n < WARM_UP_ITERATIONS; n++) {
+                int row = random.nextInt(GRID_SIZE - 2);
+                int column = random.nextInt(GRID_SIZE - 2);
+                for (int i = row; i < row + 3; i++) {
+                    for (int j = column; j < column + 3; j++) {
+                        stroke.getData()[i][j] = random.nextDouble();
+                    }
+                }
+                predictor.update(stroke, new int[]{row, row + 3, column, column + 3});
+            }
+            predictor.reset(predictorImage);  // Nothing has been copied into it yet, so it is still blank
+        } catch (Exception e) {
+            System.err.println("Error warming up the predictor: " + e.getMessage());
+            e.printStackTrace();
+        }
     }
 
     private void clearDrawing() {
@@ -57,6 +123,15 @@ public class DigitDrawUI extends JFrame {
         g2d.fillRect(0, 0, drawingImage.getWidth(), drawingImage.getHeight());
         g2d.dispose();
         repaint();
+
+        synchronized (pixelLock) {
+            for (double[] row : pixels) {
+                Arrays.fill(row, 0.0);
+            }
+            dirtyRegion = null;
+            cleared = true;
+        }
+        predictionLabel.setText("Draw a digit");
     }
 
     private void draw(int x, int y) {
@@ -77,6 +152,95 @@ public class DigitDrawUI extends JFrame {
 
         g2d.dispose();
         repaint();
+
+        // The feather effect touches the neighbouring pixels as well
+        markDirty(pixelY - 1, pixelY + 2, pixelX - 1, pixelX + 2);
+    }
+
+    /**
+     * Copies changed pixels into the shared buffer and (re)schedules the live prediction, so a
+     * fast stroke only triggers one prediction once it pauses. Runs on the EDT.
+     */
+    private void markDirty(int rowStart, int rowEnd, int columnStart, int columnEnd) {
+        rowStart = Math.max(0, rowStart);
+        rowEnd = Math.min(GRID_SIZE, rowEnd);
+        columnStart = Math.max(0, columnStart);
+        columnEnd = Math.min(GRID_SIZE, columnEnd);
+        if (rowStart >= rowEnd || columnStart >= columnEnd) {
+            return;
+        }
+
+        synchronized (pixelLock) {
+            for (int i = rowStart; i < rowEnd; i++) {
+                for (int j = columnStart; j < columnEnd; j++) {
+                    pixels[i][j] = pixelValue(j, i);
+                }
+            }
+
+            if (dirtyRegion == null) {
+                dirtyRegion = new int[]{rowStart, rowEnd, columnStart, columnEnd};
+            } else {
+                dirtyRegion[0] = Math.min(dirtyRegion[0], rowStart);
+                dirtyRegion[1] = Math.max(dirtyRegion[1], rowEnd);
+                dirtyRegion[2] = Math.min(dirtyRegion[2], columnStart);
+                dirtyRegion[3] = Math.max(dirtyRegion[3], columnEnd);
+            }
+        }
+
+        if (pendingPrediction != null) {
+            pendingPrediction.cancel(false);
+        }
+        pendingPrediction = predictionExecutor.schedule(this::predictLive, PREDICTION_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Brings the predictor up to date with the shared buffer. Runs on the prediction thread.
+     *
+     * @param full Whether to recompute the whole network instead of only the changed region.
+     */
+    private void syncPredictor(boolean full) {
+        int[] region;
+        boolean reset;
+
+        synchronized (pixelLock) {
+            region = dirtyRegion;
+            reset = cleared || full || predictor == null;
+            if (reset) {
+                for (int i = 0; i < GRID_SIZE; i++) {
+                    System.arraycopy(pixels[i], 0, predictorPixels[i], 0, GRID_SIZE);
+                }
+            } else if (region != null) {
+                for (int i = region[0]; i < region[1]; i++) {
+                    System.arraycopy(pixels[i], region[2], predictorPixels[i], region[2], region[3] - region[2]);
+                }
+            }
+            dirtyRegion = null;
+            cleared = false;
+        }
+
+        if (predictor == null) {
+            predictor = new IncrementalPredictor(network);
+        }
+        if (reset) {
+            predictor.reset(predictorImage);
+        } else if (region != null) {
+            predictor.update(predictorImage, region);
+        }
+    }
+
+    private void predictLive() {
+        try {
+            syncPredictor(false);
+            int prediction = predictor.getPrediction();
+            SwingUtilities.invokeLater(() -> predictionLabel.setText("Looks like a " + prediction));
+        } catch (Exception e) {
+            System.err.println("Error predicting drawing: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private double pixelValue(int x, int y) {
+        return ImageConverter.grayValue(drawingImage.getRGB(x, y)) / 255.0;  // Convert to grayscale (0.0 to 1.0)
     }
 
     private void applyFeatherEffect(Graphics2D g2d, int x, int y) {
@@ -116,27 +280,21 @@ public class DigitDrawUI extends JFrame {
 
 
     private void submitDrawing() {
-        double[][] data = new double[GRID_SIZE][GRID_SIZE];
-
-        // Correct the coordinate mapping to ensure the image is captured as drawn
-        for (int i = 0; i < GRID_SIZE; i++) {
-            for (int j = 0; j < GRID_SIZE; j++) {
-                int pixel = drawingImage.getRGB(j, i); // Notice the switch of i and j
-                data[i][j] = (pixel & 0xFF) / 255.0;  // Convert to grayscale (0.0 to 1.0)
+        // The EDT already copied every stroke into the shared buffer, so run a full, exact
+        // prediction from it on the prediction thread and only come back to show the result
+        predictionExecutor.execute(() -> {
+            try {
+                syncPredictor(true);
+                int prediction = predictor.getPrediction();
+                SwingUtilities.invokeLater(() -> {
+                    predictionLabel.setText("Looks like a " + prediction);
+                    JOptionPane.showMessageDialog(this, "This looks like a " + prediction + " to me!");
+                });
+            } catch (Exception e) {
+                System.err.println("Error predicting drawing: " + e.getMessage());
+                e.printStackTrace();
             }
-        }
-
-        // Print the 2D array to inspect the input data
-//        printInputData(data);
-
-        // Create an Image object with the 2D array
-        Image userImage = new Image(data, -1); // Label is -1 because it's unknown at this point
-
-        // Pass the data to the neural network to get the prediction
-        int prediction = network.guess(userImage);
-
-        // Display the prediction
-        JOptionPane.showMessageDialog(this, "This looks like a " + prediction + " to me!");
+        });
     }
 
     // Method to print the 2D array representing the image data
@@ -154,6 +312,9 @@ public class DigitDrawUI extends JFrame {
 
     public static void main(String[] args) {
         NeuralNetwork network = Main.loadNetwork("out/trained_networkV3.ser"); // Load the saved network
+        if (network != null) {
+            network.foldBatchNorm();  // The UI only predicts, so batch norm folds into its neighbours
+        }
         SwingUtilities.invokeLater(() -> {
             DigitDrawUI ui = new DigitDrawUI(network);
             ui.setVisible(true);